@@ -1,25 +1,41 @@
 package com.learn.btree;
 
+import com.learn.cache.CacheStats;
 import com.learn.data.DataItem;
 import com.learn.data.DataManager;
 import com.learn.page.Page;
 import com.learn.page.PageCache;
-import com.learn.table.Row;
 import com.learn.value.Value;
 
 import java.nio.ByteBuffer;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * 节点从 NodeCache 中获取，解析好的节点一直留在缓存中，直到超过缓存的大小被淘汰
+ * 并发控制用的是 latch crabbing：每个节点的 latch 是 Node 上的读写锁，
+ * 节点在使用期间一直从 NodeCache 中获取着，同时访问同一个节点的线程拿到的是同一个 Node，也就是同一把锁。
+ * rootLatch 看作根节点的父节点，保护 rootUid。
+ * 1、查找：从上往下，先拿到子节点的读锁，再释放父节点的读锁
+ * 2、插入：先按查找的方式下降，只对叶子节点加写锁，叶子节点不会分裂时直接插入（大部分插入），
+ *    否则从 rootLatch 开始一路加写锁重新下降，子节点不会分裂时释放它上面所有的锁，分裂只会修改还持有写锁的节点
+ * 3、删除不合并节点，只修改叶子节点，和不分裂的插入一样
+ * 加锁的顺序总是从上往下，同一层的叶子节点只有范围扫描会从左往右持有两个，写操作在叶子层只持有一个节点，不会死锁
  * @author peiyou
  * @version 1.0
  * @className BPlusTree
  * @date 2023/7/14 14:46
  **/
 public class BPlusTree {
-    private Node root;
+
+    // 表数据第一页的第一个槽中存放根节点的uid，见 Table.create
+    public static final long ROOT_POINTER_UID = 1L << 32;
+
+    // 根节点的uid，还没有根节点时为0，持有 rootLatch 时访问
+    private long rootUid;
     // 最多有这么多个key
     private int maxKeys;
     // 除了根节点外，最少有多少个key
@@ -31,7 +47,19 @@ public class BPlusTree {
 
     private PageCache pageCache;
 
+    private final NodeCache nodeCache;
+
+    // 根节点的父节点，换根节点和批量加载时加写锁
+    private final ReadWriteLock rootLatch = new ReentrantReadWriteLock();
+
     public BPlusTree(DataManager dataManager, PageCache pageCache, long rootUid) throws Exception {
+        this(dataManager, pageCache, rootUid, NodeCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param nodeCacheSize 解析好的节点最多占用的内存，单位字节
+     */
+    public BPlusTree(DataManager dataManager, PageCache pageCache, long rootUid, long nodeCacheSize) throws Exception {
         /**
          * 按Node大小计算得去 409， 这里取400吧。 计算方式 看 Node类的注释。
          * {@link Node}
@@ -41,228 +69,393 @@ public class BPlusTree {
         this.minKeys = (int)(Math.ceil(m / 2.0)) - 1;
         this.dataManager = dataManager;
         this.pageCache = pageCache;
-        if (rootUid != 0) {
-            root = loadNode(rootUid);
-        }
+        this.rootUid = rootUid;
+        this.nodeCache = new NodeCache(dataManager, nodeCacheSize);
     }
 
     public void add(Value key, long value) throws Exception {
-        Entry entry = new Entry(key, value);
-        if (root == null) {
-            root = this.newNode();
-            root.setDirty(true);
-            root.addKey(entry);
-            root.flush();
-            return;
-        }
-
-        Value splitKey = add(root.getUid(), entry);
-        if (splitKey != null) {
-            // 更新根节点
-            Node oldRoot = root;
-            Node newRoot = this.newNode();
-            newRoot.setDirty(true);
-            newRoot.setLeaf(false);
-            newRoot.getKeys().add(new Entry(splitKey, 0));
-            newRoot.addChild(oldRoot.getUid());
-            newRoot.addChild(oldRoot.getSibling());
-            newRoot.flush();
-
-            root = newRoot;
-            // 更新表数据的根节点的uid
-            Page rootPage = pageCache.get(1);
-            rootPage.update(Page.DATA_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(root.getUid()).array());
-            rootPage.release();
+        Node leaf = writeLeaf(key);
+        if (leaf != null) {
+            try {
+                if (leaf.search(key) >= 0 || leaf.size() < maxKeys) {
+                    insert(leaf, key, value);
+                    leaf.flush();
+                    return;
+                }
+            } finally {
+                unlatch(leaf, true);
+            }
         }
+        addPessimistic(key, value);
     }
 
-
-
     /**
-     * 添加值，如果返回一个非空的节点，说明发生了分裂
-     * @param nodeUid
-     * @param entry
-     * @return
+     * 叶子节点可能分裂时，从 rootLatch 开始加写锁下降，held 是还持有写锁的节点，从上往下
+     * 子节点不满时它不会分裂，释放它上面所有的锁
      */
-    private Value add(long nodeUid, Entry entry) throws Exception {
-        Node node = loadNode(nodeUid);
-        List<Entry> keys = node.getKeys();
-        int keyIndex = findKeyIndex(entry, keys);
-        if (node.isLeaf()) {
-            node.setDirty(true);
-            // 查找插入位置
-            if (keyIndex == keys.size()) {
-                // 这种情况下，说明添加在末尾
-                node.addKey(entry);
-            } else {
-                if (node.getKeys().get(keyIndex).getKey().compareTo(entry.getKey()) == 0) {
-                    // 是同一条数据，更新
-                    node.updateValue(keyIndex, entry.getValue());
+    private void addPessimistic(Value key, long value) throws Exception {
+        Lock rootWrite = rootLatch.writeLock();
+        rootWrite.lock();
+        boolean rootHeld = true;
+        List<Node> held = new ArrayList<>();
+        try {
+            if (rootUid == 0) {
+                Node root = this.newNode();
+                root.setDirty(true);
+                root.insert(0, key, value);
+                root.flush();
+                release(root);
+                setRoot(root.getUid());
+                return;
+            }
+            Node node = latch(rootUid, true);
+            held.add(node);
+            while (true) {
+                if (node.size() < maxKeys) {
+                    // 这个节点能放下子节点分裂出来的key，它上面的锁不再需要
+                    for (int i = 0; i < held.size() - 1; i++) {
+                        unlatch(held.get(i), true);
+                    }
+                    held.subList(0, held.size() - 1).clear();
+                    if (rootHeld) {
+                        rootWrite.unlock();
+                        rootHeld = false;
+                    }
+                }
+                if (node.isLeaf()) {
+                    break;
+                }
+                node = latch(node.getChild(node.childIndex(key)), true);
+                held.add(node);
+            }
+
+            Split split = null;
+            for (int i = held.size() - 1; i >= 0; i--) {
+                node = held.get(i);
+                if (i == held.size() - 1) {
+                    insert(node, key, value);
                 } else {
-                    // 说明添加在中间
-                    node.addKey(keyIndex, entry);
+                    // 子节点发生了分裂，分出来的节点在它的右边
+                    node.setDirty(true);
+                    node.insert(node.childIndex(split.key()), split.key(), split.right());
+                }
+                split = splitIfFull(node);
+                if (split == null) {
+                    break;
                 }
             }
-            node.flush();
-            if (keys.size() > maxKeys) {
-                return split(nodeUid);
+            if (split != null) {
+                // 根节点分裂了，这时一定还持有 rootLatch，更新根节点
+                Node newRoot = this.newNode();
+                newRoot.setDirty(true);
+                newRoot.setLeaf(false);
+                newRoot.setChild(0, rootUid);
+                newRoot.insert(0, split.key(), split.right());
+                newRoot.flush();
+                release(newRoot);
+                setRoot(newRoot.getUid());
             }
-            return null;
-        } else {
-            // 是非叶子节点时
-            Long nextUid = node.getChildList().get(keyIndex);
-            node.flush();
-            Value newKey = add(nodeUid, entry);
-            if (newKey == null) {
-                // 说明没有发生分裂了
-                return null;
-            } else {
-                // 子节点发生了分裂
-                // 获取到右节点的第一个key
-                node.setDirty(true);
-                node.addKey(new Entry(newKey, 0));
-                Node next = loadNode(nextUid);
-                node.addChild(next.getSibling());
-
-                next.flush();
-                node.flush();
-                if (node.getKeys().size() > maxKeys) {
-                    return split(nodeUid);
-                }
+        } finally {
+            for (Node node : held) {
+                unlatch(node, true);
+            }
+            if (rootHeld) {
+                rootWrite.unlock();
             }
         }
-        return null;
     }
 
     /**
-     * 查找entry在keys中的位置，如果没找到可能是返回0和keys.size()
-     * 返回 0 时 可能是找到了0号位置，判断key.compare(entity.getKey)==0。也可能是比第一个key还小。
-     * 返回keys.size()时，肯定是比所有的key都大。
-     * 返回中间位置时，可能是要插入数据的位置，也可能是数据本身。中间位置时，需要比较key的值与entity.getKey的值是否相等。
-     * @author Peiyou
-     * @date 2023/7/15 16:46
-     * @param entry
-     * @param keys
-     * @return
+     * 在叶子节点中插入或者更新key
      */
-    private int findKeyIndex(Entry entry, List<Entry> keys) {
-        int keyIndex = 0;
-        while(keyIndex < keys.size()) {
-            if (keys.get(keyIndex).compareTo(entry) <= 0) {
-                keyIndex++;
-            } else {
-                break;
+    private void insert(Node leaf, Value key, long value) {
+        leaf.setDirty(true);
+        int index = leaf.search(key);
+        if (index >= 0) {
+            // 是同一条数据，更新
+            leaf.setChild(index, value);
+        } else {
+            leaf.insert(-index - 1, key, value);
+        }
+    }
+
+    /**
+     * 开始批量加载，树必须是空的，每个节点写入 maxKeys * fillFactor 个key，见 BulkLoader
+     * 返回之后持有 rootLatch 的写锁，直到 finish 或者 cancel，期间别的读写都在等待
+     */
+    public BulkLoader bulkLoad(double fillFactor) throws Exception {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new RuntimeException("填充因子必须在0和1之间：" + fillFactor);
+        }
+        Lock rootWrite = rootLatch.writeLock();
+        rootWrite.lock();
+        try {
+            if (rootUid != 0) {
+                Node root = latch(rootUid, false);
+                int size = root.size();
+                unlatch(root, false);
+                if (size > 0) {
+                    throw new RuntimeException("只能批量加载空的索引。");
+                }
             }
+        } catch (Exception e) {
+            rootWrite.unlock();
+            throw e;
         }
-        return keyIndex;
+        return new BulkLoader(this, Math.max(1, (int) (maxKeys * fillFactor)));
+    }
+
+    void unlock() {
+        rootLatch.writeLock().unlock();
+    }
+
+    /**
+     * 更新表数据的根节点的uid，持有 rootLatch 的写锁时调用
+     */
+    void setRoot(long uid) throws Exception {
+        DataItem rootItem = dataManager.get(ROOT_POINTER_UID);
+        rootItem.update(ByteBuffer.allocate(Long.BYTES).putLong(uid).array());
+        dataManager.release(ROOT_POINTER_UID);
+        this.rootUid = uid;
     }
 
     /**
-     * 分裂达到maxKeys的节点
-     * 返回被分裂出来的key
+     * 超过maxKeys的节点分裂成两个，返回分裂出来的key和右边的节点
+     * 右边的节点在父节点修改之前只能通过 sibling 访问到，写入之后才释放这个节点的写锁
      * @author Peiyou
      * @date 2023/7/14 17:28
-     * @param nodeUid
-     * @return
      */
-    private Value split(long nodeUid) throws Exception {
-        Node node = loadNode(nodeUid);
-        Node newNode = this.newNode();
-        node.setDirty(true);
-        newNode.setDirty(true);
-        newNode.setLeaf(node.isLeaf());
-
-        int size = node.getKeys().size();
-        int index = size / 2;
-        int removeIndex = 0;
-
-        Iterator<Entry> keyIterator = node.getKeys().iterator();
-        // 处理key
-        while (keyIterator.hasNext()) {
-            Entry entry = keyIterator.next();
-            if (removeIndex >= index) {
-                keyIterator.remove();
-                newNode.addKey(entry);
-            }
-            removeIndex++;
-        }
-        if (node.isLeaf()) {
-            return newNode.getKeys().get(0).getKey();
-        }
-        // 处理子节点
-        removeIndex = 0;
-        Iterator<Long> iterator = node.getChildList().iterator();
-        while (iterator.hasNext()) {
-            Long childNode = iterator.next();
-            // 请注意这里与上面的区别，少了个等号，因为对于子节点，是要多保留一个的。
-            if (removeIndex > index) {
-                iterator.remove();
-                newNode.addChild(childNode);
-            }
-            removeIndex++;
+    private Split splitIfFull(Node node) throws Exception {
+        if (node.size() <= maxKeys) {
+            node.flush();
+            return null;
         }
-        Value key = newNode.getKeys().get(0).getKey();
-        newNode.getKeys().remove(0);
-        node.setSibling(newNode.getUid());
-        newNode.flush();
+        Node right = this.newNode();
+        Value key = node.splitTo(right);
+        right.flush();
+        release(right);
         node.flush();
-        return key;
+        return new Split(key, right.getUid());
     }
 
     public Long search(Value key) throws Exception {
-        if (root == null) return null;
-        Entry result = null;
-        Entry entry = new Entry(key, 0);
-        int index = Collections.binarySearch(root.getKeys(), entry);
-        if (index < 0) {
-            result = search(root.getUid(), entry);
-        } else {
-            if (root.isLeaf()) {
-                result = root.getKeys().get(index);
-            } else {
-                Long node = root.getChildList().get(index + 1);
-                result = search(node, entry);
-            }
+        Node node = readLeaf(key);
+        if (node == null) {
+            return null;
+        }
+        try {
+            int index = node.search(key);
+            return index < 0 ? null : node.getChild(index);
+        } finally {
+            unlatch(node, false);
         }
-        if (result == null) {
+    }
+
+    /**
+     * 从根节点加读锁下降到key所在的叶子节点，key为null时是最左边的叶子节点，返回时持有叶子节点的读锁
+     * @return 还没有根节点时返回null
+     */
+    private Node readLeaf(Value key) throws Exception {
+        Node node = readRoot();
+        if (node == null) {
             return null;
         }
-        return result.getValue();
+        while (!node.isLeaf()) {
+            Node child;
+            try {
+                child = latch(node.getChild(key == null ? 0 : node.childIndex(key)), false);
+            } finally {
+                unlatch(node, false);
+            }
+            node = child;
+        }
+        return node;
     }
 
-    private Entry search(Long nodeUid, Entry entry) throws Exception {
-        Node node = loadNode(nodeUid);
-        node.flush();
-        if (node.isLeaf()) {
-            int index = Collections.binarySearch(node.getKeys(), entry);
-            if (index < 0) {
+    /**
+     * 和 readLeaf 一样下降，叶子节点加写锁。持有父节点的读锁时把叶子节点的读锁换成写锁，
+     * 叶子节点分裂需要父节点的写锁，换锁期间不会分裂，仍然是key所在的叶子节点
+     */
+    private Node writeLeaf(Value key) throws Exception {
+        Lock rootRead = rootLatch.readLock();
+        rootRead.lock();
+        Node parent = null;
+        Node node;
+        try {
+            if (rootUid == 0) {
                 return null;
+            }
+            node = latch(rootUid, false);
+            while (!node.isLeaf()) {
+                if (parent != null) {
+                    unlatch(parent, false);
+                } else {
+                    rootRead.unlock();
+                }
+                parent = node;
+                node = latch(node.getChild(node.childIndex(key)), false);
+            }
+            unlatch(node, false);
+            return latch(node.getUid(), true);
+        } finally {
+            if (parent != null) {
+                unlatch(parent, false);
             } else {
-                return node.getKeys().get(index);
+                rootRead.unlock();
             }
-        } else {
-            List<Entry> keys = node.getKeys();
-            int keyIndex = findKeyIndex(entry, keys);
-            long nextNode = node.getChildList().get(keyIndex);
-            return search(nextNode, entry);
         }
     }
 
-    public Node loadNode(long uid) throws Exception {
-        DataItem dataItem = dataManager.get(uid);
-        return new Node(dataItem, uid);
+    /**
+     * 加读锁获取根节点，之后根节点不会被替换
+     */
+    private Node readRoot() throws Exception {
+        Lock rootRead = rootLatch.readLock();
+        rootRead.lock();
+        try {
+            return rootUid == 0 ? null : latch(rootUid, false);
+        } finally {
+            rootRead.unlock();
+        }
+    }
+
+    /**
+     * 范围扫描，from 和 to 为null时不限制，见 Cursor
+     */
+    public Cursor scan(Value from, boolean fromInclusive, Value to, boolean toInclusive) {
+        return new Cursor(this, from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * 读取 cursor 的下一批key：第一次下降到下界所在的叶子节点，之后重新读取当前的叶子节点，
+     * 取比上一次返回的key大的部分，没有时沿 sibling 往后找，先拿到后一个节点的读锁再释放前一个
+     * @return 是否读到了key
+     */
+    boolean read(Cursor cursor) throws Exception {
+        Node node = cursor.leafUid == 0 ? readLeaf(cursor.low) : latch(cursor.leafUid, false);
+        if (node == null) {
+            return false;
+        }
+        try {
+            while (true) {
+                int from = 0;
+                if (cursor.low != null) {
+                    int index = node.search(cursor.low);
+                    from = index < 0 ? -index - 1 : (cursor.lowInclusive ? index : index + 1);
+                }
+                int count = node.size() - from;
+                cursor.leafUid = node.getUid();
+                if (count > 0) {
+                    if (cursor.keys.length < count) {
+                        cursor.keys = new Value[node.size()];
+                        cursor.values = new long[node.size()];
+                    }
+                    for (int i = 0; i < count; i++) {
+                        cursor.keys[i] = node.getKey(from + i);
+                        cursor.values[i] = node.getChild(from + i);
+                    }
+                    cursor.count = count;
+                    return true;
+                }
+                // 删除不合并节点，叶子节点可能是空的
+                if (node.getSibling() == 0) {
+                    cursor.count = 0;
+                    return false;
+                }
+                Node next = latch(node.getSibling(), false);
+                unlatch(node, false);
+                node = next;
+            }
+        } finally {
+            unlatch(node, false);
+        }
+    }
+
+    /**
+     * 删除key，只有key当前指向uid时才删除，已经指向新版本的key不受影响
+     * 删除后不合并节点，叶子节点的key可以少于minKeys
+     * @return 是否删除了
+     */
+    public boolean remove(Value key, long uid) throws Exception {
+        Node node = writeLeaf(key);
+        if (node == null) {
+            return false;
+        }
+        try {
+            int index = node.search(key);
+            if (index < 0 || node.getChild(index) != uid) {
+                return false;
+            }
+            node.setDirty(true);
+            node.remove(index);
+            node.flush();
+            return true;
+        } finally {
+            unlatch(node, true);
+        }
+    }
+
+    /**
+     * 叶子节点中所有的值，按key的顺序
+     */
+    public List<Long> values() throws Exception {
+        List<Long> values = new ArrayList<>();
+        Cursor cursor = scan(null, true, null, true);
+        while (cursor.next()) {
+            values.add(cursor.value());
+        }
+        return values;
+    }
+
+    /**
+     * 获取节点并加锁
+     */
+    private Node latch(long uid, boolean write) throws Exception {
+        Node node = nodeCache.get(uid);
+        (write ? node.getLatch().writeLock() : node.getLatch().readLock()).lock();
+        return node;
+    }
+
+    private void unlatch(Node node, boolean write) throws Exception {
+        (write ? node.getLatch().writeLock() : node.getLatch().readLock()).unlock();
+        nodeCache.release(node.getUid());
     }
 
+    /**
+     * 不再使用新建的节点
+     */
+    void release(Node node) throws Exception {
+        nodeCache.release(node.getUid());
+    }
+
+    public CacheStats getNodeCacheStats() {
+        return nodeCache.getStats();
+    }
+
+    /**
+     * 新建一个空的叶子节点，返回时占用着节点，用完之后 release
+     */
+    Node newNode() throws Exception {
+        return nodeCache.get(newNodeUid(pageCache));
+    }
+
+    /**
+     * 不经过缓存新建一个空的叶子节点
+     */
     public static Node newNode(PageCache pageCache, DataManager dataManager) throws Exception {
+        return new Node(dataManager, newNodeUid(pageCache));
+    }
+
+    private static long newNodeUid(PageCache pageCache) throws Exception {
         Page page = pageCache.newPage(Page.SIZE);
-        int offset = page.write(DataItem.wrap(Node.initNodeData()));
+        int slot = page.write(DataItem.wrap(Node.initNodeData()));
         pageCache.releaseForCache(page);
-        long uid = ((long)page.getPageNo()) << 32 | ((long)offset);
-        DataItem dataItem = dataManager.get(uid);
-        return new Node(dataItem, uid);
+        return ((long)page.getPageNo()) << 32 | ((long)slot);
     }
 
-    public Node newNode() throws Exception {
-        return BPlusTree.newNode(this.pageCache, this.dataManager);
+    /**
+     * 节点分裂的结果，key 是父节点中新加的key，right 是分裂出来的右边的节点
+     */
+    private record Split(Value key, long right) {
     }
 }
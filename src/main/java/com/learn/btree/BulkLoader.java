@@ -0,0 +1,128 @@
+package com.learn.btree;
+
+import com.learn.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 自底向上批量建立一棵空的 B+ 树，key 必须按顺序递增地加入
+ * 每一层只保留最右边还没写满的节点：叶子节点写到 fillFactor 就换下一个节点，新节点的第一个key和uid加到上一层，
+ * 上一层满了也一样往上加，每个节点写满之后只写一次，不再从根节点查找和分裂
+ * 同一层的节点和分裂时一样用 sibling 串起来。加载期间持有树的 rootLatch，finish 之后新的根节点才生效，cancel 时树不变
+ * @author peiyou
+ * @version 1.0
+ * @className BulkLoader
+ * @date 2026/10/18 23:58
+ **/
+public class BulkLoader {
+
+    private final BPlusTree tree;
+
+    // 每个节点写入的key的个数
+    private final int capacity;
+
+    // 每一层最右边的节点，0是叶子节点
+    private final List<Node> levels;
+
+    private Value lastKey;
+
+    private long count;
+
+    private boolean finished;
+
+    BulkLoader(BPlusTree tree, int capacity) {
+        this.tree = tree;
+        this.capacity = capacity;
+        this.levels = new ArrayList<>();
+    }
+
+    public void add(Value key, long uid) throws Exception {
+        if (finished) {
+            throw new RuntimeException("批量加载已经结束。");
+        }
+        if (lastKey != null && key.compareTo(lastKey) <= 0) {
+            throw new RuntimeException("批量加载的key必须递增，不能重复：" + key.getObject());
+        }
+        lastKey = key;
+        count++;
+        append(0, key, uid);
+    }
+
+    /**
+     * 在 level 层最右边的节点后面加上key，叶子节点的 child 是记录的uid，非叶子节点的 child 是key右边的子节点
+     */
+    private void append(int level, Value key, long child) throws Exception {
+        if (levels.isEmpty()) {
+            levels.add(tree.newNode());
+        }
+        Node node = levels.get(level);
+        if (node.size() < capacity) {
+            node.insert(node.size(), key, child);
+            return;
+        }
+        // 写满了，换一个新的节点，key加到上一层，区分两个节点
+        Node next = tree.newNode();
+        next.setLeaf(level == 0);
+        if (level == 0) {
+            next.insert(0, key, child);
+        } else {
+            // 非叶子节点的key上移，新节点只有一个子节点
+            next.setChild(0, child);
+        }
+        node.setSibling(next.getUid());
+        node.setDirty(true);
+        node.flush();
+        tree.release(node);
+        if (levels.size() == level + 1) {
+            // 最上层也满了，新的一层第一个子节点是写满的这个节点
+            Node parent = tree.newNode();
+            parent.setLeaf(false);
+            parent.setChild(0, node.getUid());
+            levels.add(parent);
+        }
+        levels.set(level, next);
+        append(level + 1, key, next.getUid());
+    }
+
+    /**
+     * 写入每一层最右边的节点，最上层的节点成为根节点，释放树的锁
+     * @return 加载的key的个数
+     */
+    public long finish() throws Exception {
+        if (finished) {
+            return count;
+        }
+        finished = true;
+        try {
+            for (Node node : levels) {
+                node.setDirty(true);
+                node.flush();
+                tree.release(node);
+            }
+            if (!levels.isEmpty()) {
+                tree.setRoot(levels.get(levels.size() - 1).getUid());
+            }
+        } finally {
+            tree.unlock();
+        }
+        return count;
+    }
+
+    /**
+     * 放弃加载，树不变，已经写入的节点不再被引用
+     */
+    public void cancel() throws Exception {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            for (Node node : levels) {
+                tree.release(node);
+            }
+        } finally {
+            tree.unlock();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.learn.btree;
+
+import com.learn.value.Value;
+
+/**
+ * 主键索引的范围扫描，只从根节点下降一次，之后沿叶子节点的 sibling 往后读
+ * 每次持有树的锁读取一个叶子节点中还没有返回过的key，两次读取之间树可以被修改：
+ * 总是从上一次读到的最后一个key之后继续，叶子节点分裂出去的key在它的 sibling 中，不会漏掉也不会重复；
+ * 读到之后才插入、并且落在已经读到的这一批范围内的key不会再读到
+ * 用法：while (cursor.next()) { cursor.key(); cursor.value(); }
+ * @author peiyou
+ * @version 1.0
+ * @className Cursor
+ * @date 2026/10/18 23:55
+ **/
+public class Cursor {
+
+    private final BPlusTree tree;
+
+    // 下界，为null时从最小的key开始；读过一个叶子节点之后是最后返回的key
+    Value low;
+
+    boolean lowInclusive;
+
+    // 上界，为null时读到最大的key
+    private final Value high;
+
+    private final boolean highInclusive;
+
+    // 当前读取的叶子节点，还没有下降时为0
+    long leafUid;
+
+    // 当前叶子节点中读到的key和值
+    Value[] keys;
+
+    long[] values;
+
+    int count;
+
+    private int position;
+
+    private boolean finished;
+
+    Cursor(BPlusTree tree, Value low, boolean lowInclusive, Value high, boolean highInclusive) {
+        this.tree = tree;
+        this.low = low;
+        this.lowInclusive = lowInclusive;
+        this.high = high;
+        this.highInclusive = highInclusive;
+        this.keys = new Value[0];
+        this.values = new long[0];
+    }
+
+    /**
+     * 移到下一个key，没有时返回false
+     */
+    public boolean next() throws Exception {
+        if (finished) {
+            return false;
+        }
+        position++;
+        if (position >= count) {
+            if (count > 0) {
+                low = keys[count - 1];
+                lowInclusive = false;
+            }
+            position = 0;
+            if (!tree.read(this)) {
+                finished = true;
+                return false;
+            }
+        }
+        if (high != null) {
+            int cmp = keys[position].compareTo(high);
+            if (cmp > 0 || (cmp == 0 && !highInclusive)) {
+                finished = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Value key() {
+        return keys[position];
+    }
+
+    public long value() {
+        return values[position];
+    }
+}
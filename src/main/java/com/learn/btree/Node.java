@@ -1,13 +1,17 @@
 package com.learn.btree;
 
-import com.google.common.primitives.Bytes;
 import com.learn.data.DataItem;
+import com.learn.data.DataManager;
 import com.learn.page.Page;
 import com.learn.value.Value;
+import com.learn.value.ValueInt;
+import com.learn.value.ValueLong;
+import com.learn.value.ValueShort;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * [isLeaf][keySize][sibling]
@@ -25,6 +29,9 @@ import java.util.List;
  * 第一个13是 (isLeaf + keySize + sibling)的大小，第二个13是DataItem 中浪费的 加 上Page 中浪费的 (valid, size, pageSize, pageOffset)
  * 需要有 n个key和n+1个child 所以最多可以放 n * 32 + (n + 1) * 8 = 16 * 1024 - 13 - 13 取个整数 400个。 会浪费一点点空间，就算这样吧。
  *
+ * 内存中 SHORT、INT、LONG 类型的key直接放在 long 数组中，比较时不用经过 Value，其他类型的key放在 Value 数组中，
+ * 查找都是二分查找。文件中的格式不变。
+ * 解析好的节点放在 NodeCache 中，不占用数据项，写回时才获取数据项。
  *
  * @author peiyou
  * @version 1.0
@@ -34,73 +41,228 @@ import java.util.List;
 public class Node {
     // 节点的uid
     private long uid;
-    private List<Entry> keys;
-    private List<Long> childList;
+
+    // key的类型，还没有key时是 Value.NULL
+    private int keyType = Value.NULL;
+
+    // 整数类型的key
+    private long[] longKeys;
+
+    // 其他类型的key
+    private Value[] keys;
+
+    private int size;
+
+    // 叶子节点是每个key对应的记录的uid，有 size 个；非叶子节点是子节点的uid，有 size + 1 个
+    private long[] children;
 
     private long sibling;
     private boolean isLeaf;
 
-    private DataItem dataItem;
+    private final DataManager dataManager;
 
-    public static final int NODE_SIZE = Page.SIZE - Page.DATA_OFFSET - DataItem.DATA;
+    // 节点的读写锁，见 BPlusTree
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
 
-    private boolean dirty;
+    public static final int NODE_SIZE = Page.SIZE - Page.DATA_OFFSET - Page.SLOT_SIZE - DataItem.DATA;
 
-    private Node() {
-        keys = new ArrayList<>();
-        childList = new ArrayList<>();
-        sibling = 0;
-        isLeaf = false;
-    }
+    // 节点头 isLeaf + keySize + sibling 的大小
+    private static final int HEADER_SIZE = 1 + Integer.BYTES + Long.BYTES;
+
+    private boolean dirty;
 
-    public Node(DataItem dataItem, long uid) {
-        this.dataItem = dataItem;
-        keys = new ArrayList<>();
-        childList = new ArrayList<>();
-        ByteBuffer buffer = ByteBuffer.wrap(dataItem.getData());
+    public Node(DataManager dataManager, long uid) throws Exception {
+        this.dataManager = dataManager;
+        this.uid  = uid;
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(dataManager.get(uid).getData());
+        } finally {
+            dataManager.release(uid);
+        }
         byte leaf = buffer.get();
         this.isLeaf = leaf == (byte)1;
-        this.uid  = uid;
-        int keySize = buffer.getInt();
+        this.size = buffer.getInt();
         this.sibling = buffer.getLong();
-        Value[] keyArray = new Value[keySize];
-        for (int i = 0; i < keySize; i ++) {
+        this.children = new long[size + 2];
+        for (int i = 0; i < size; i ++) {
             // 主键肯定不能为空, 所以type一定是具体的值
             int type = buffer.getInt();
-            Value key = Value.getValueByType(type, buffer, false);
-            keyArray[i] = key;
-        }
-        // 读取子节点，有两种可能
-        // 非叶子节点
-        if (!isLeaf) {
-            for (int i = 0; i < keySize + 1; i++) {
-                childList.add(buffer.getLong());
+            if (i == 0) {
+                initKeys(type, size + 1);
             }
-            for (Value key: keyArray) {
-                keys.add(new Entry(key, 0));
+            if (longKeys != null) {
+                longKeys[i] = readLong(type, buffer);
+            } else {
+                keys[i] = Value.getValueByType(type, buffer, false);
             }
+        }
+        // 非叶子节点的子节点比key多一个
+        int childCount = isLeaf ? size : size + 1;
+        for (int i = 0; i < childCount; i++) {
+            children[i] = buffer.getLong();
+        }
+    }
+
+    private void initKeys(int type, int capacity) {
+        this.keyType = type;
+        if (isIntegral(type)) {
+            this.longKeys = new long[capacity];
         } else {
-            for (int i = 0; i < keySize; i++) {
-                long value = buffer.getLong();
-                keys.add(new Entry(keyArray[i], value));
+            this.keys = new Value[capacity];
+        }
+    }
+
+    private static boolean isIntegral(int type) {
+        return type == Value.SHORT || type == Value.INT || type == Value.LONG;
+    }
+
+    private static long readLong(int type, ByteBuffer buffer) {
+        return switch (type) {
+            case Value.SHORT -> buffer.getShort();
+            case Value.INT -> buffer.getInt();
+            default -> buffer.getLong();
+        };
+    }
+
+    private static long toLong(Value key) {
+        return ((Number) key.getObject()).longValue();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Value getKey(int index) {
+        if (longKeys == null) {
+            return keys[index];
+        }
+        long key = longKeys[index];
+        return switch (keyType) {
+            case Value.SHORT -> new ValueShort((short) key, false);
+            case Value.INT -> new ValueInt((int) key, false);
+            default -> new ValueLong(key, false);
+        };
+    }
+
+    /**
+     * 二分查找key，找到时返回位置，找不到时返回 -(插入位置) - 1，和 Arrays.binarySearch 一样
+     */
+    public int search(Value key) {
+        if (longKeys != null && isIntegral(key.getType())) {
+            return Arrays.binarySearch(longKeys, 0, size, toLong(key));
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getKey(mid).compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
             }
         }
+        return -(low + 1);
     }
 
-    public List<Entry> getKeys() {
-        return keys;
+    /**
+     * 不大于key的key的个数，非叶子节点中key在这个位置的子节点下
+     */
+    public int childIndex(Value key) {
+        int index = search(key);
+        return index >= 0 ? index + 1 : -index - 1;
     }
 
-    public void setKeys(List<Entry> keys) {
-        this.keys = keys;
+    /**
+     * 在 index 位置插入key，叶子节点的 child 是key对应的记录的uid，非叶子节点的 child 是key右边的子节点
+     */
+    public void insert(int index, Value key, long child) {
+        if (keyType == Value.NULL) {
+            initKeys(key.getType(), 16);
+        }
+        ensureCapacity(size + 1);
+        if (longKeys != null) {
+            System.arraycopy(longKeys, index, longKeys, index + 1, size - index);
+            longKeys[index] = toLong(key);
+        } else {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            keys[index] = key;
+        }
+        int childIndex = isLeaf ? index : index + 1;
+        int childCount = isLeaf ? size : size + 1;
+        System.arraycopy(children, childIndex, children, childIndex + 1, childCount - childIndex);
+        children[childIndex] = child;
+        size++;
+    }
+
+    /**
+     * 删除叶子节点中 index 位置的key
+     */
+    public void remove(int index) {
+        if (longKeys != null) {
+            System.arraycopy(longKeys, index + 1, longKeys, index, size - index - 1);
+        } else {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            keys[size - 1] = null;
+        }
+        System.arraycopy(children, index + 1, children, index, size - index - 1);
+        size--;
+    }
+
+    /**
+     * 把后一半的key移到 right 中，right 接在这个节点的后面，返回父节点中用来区分两个节点的key
+     * 叶子节点返回 right 的第一个key；非叶子节点中间的key移到父节点中，两边都不保留
+     */
+    public Value splitTo(Node right) {
+        int index = size / 2;
+        right.isLeaf = isLeaf;
+        right.keyType = keyType;
+        right.longKeys = longKeys == null ? null : new long[longKeys.length];
+        right.keys = keys == null ? null : new Value[keys.length];
+        right.children = new long[children.length];
+        Value splitKey = getKey(index);
+        int from = isLeaf ? index : index + 1;
+        int count = size - from;
+        if (longKeys != null) {
+            System.arraycopy(longKeys, from, right.longKeys, 0, count);
+        } else {
+            System.arraycopy(keys, from, right.keys, 0, count);
+            Arrays.fill(keys, index, size, null);
+        }
+        // 非叶子节点的子节点多一个
+        int childCount = isLeaf ? count : count + 1;
+        System.arraycopy(children, from, right.children, 0, childCount);
+        right.size = count;
+        this.size = index;
+        right.sibling = this.sibling;
+        this.sibling = right.uid;
+        this.dirty = true;
+        right.dirty = true;
+        return splitKey;
     }
 
-    public List<Long> getChildList() {
-        return childList;
+    private void ensureCapacity(int capacity) {
+        if (children.length < capacity + 1) {
+            int newCapacity = Math.max(capacity + 1, children.length * 2);
+            children = Arrays.copyOf(children, newCapacity);
+            if (longKeys != null) {
+                longKeys = Arrays.copyOf(longKeys, newCapacity);
+            } else if (keys != null) {
+                keys = Arrays.copyOf(keys, newCapacity);
+            }
+        }
     }
 
-    public void setChildList(List<Long> childList) {
-        this.childList = childList;
+    public long getChild(int index) {
+        return children[index];
+    }
+
+    public void setChild(int index, long child) {
+        ensureCapacity(index);
+        children[index] = child;
     }
 
     public long getSibling() {
@@ -127,33 +289,14 @@ public class Node {
         this.uid = uid;
     }
 
-    public void addKey(Entry entry) {
-        this.getKeys().add(entry);
-    }
-
-    public void addKey(int index, Entry entry) {
-        this.getKeys().add(index, entry);
-    }
-    public void addChild(Long node) {
-        this.getChildList().add(node);
+    public ReadWriteLock getLatch() {
+        return latch;
     }
 
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
     }
 
-    /**
-     * 只更新key对应的实体类的value值
-     * @author Peiyou
-     * @date 2023/7/15 16:35
-     * @param index
-     * @param value
-     * @return
-     */
-    public void updateValue(int index, long value) {
-        this.getKeys().get(index).setValue(value);
-    }
-
     public static byte[] initNodeData() {
         byte[] nodeData = new byte[Node.NODE_SIZE];
         nodeData[0] = (byte) 1; // isLeaf
@@ -165,37 +308,60 @@ public class Node {
     }
 
     public void flush() throws Exception {
-        if (dirty) {
-            this.reWriteData();
+        DataItem dataItem = dataManager.get(uid);
+        try {
+            if (dirty) {
+                this.reWriteData(dataItem);
+            }
+            dataItem.force();
+        } finally {
+            dataManager.release(uid);
         }
-        this.dataItem.force();
         this.dirty = false;
     }
 
     /**
      * 更改node对象后，将对象数据回写到文件中
      */
-    private void reWriteData() {
-        byte[] isLeaf = new byte[] {this.isLeaf ? (byte) 1 : (byte) 0};
-        byte[] keySize = ByteBuffer.allocate(Integer.BYTES).putInt(this.keys.size()).array();
-        byte[] sibling = ByteBuffer.allocate(Long.BYTES).putLong(this.sibling).array();
-        byte[] keyBytes = new byte[0];
-        for (int i = 0; i < this.keys.size(); i++) {
-            keyBytes = Bytes.concat(keyBytes, this.keys.get(i).getKey().getInputBytes());
-        }
-        // child
-        byte[] childBytes = new byte[0];
-        if (this.isLeaf) {
-            for (int i = 0; i < this.keys.size(); i++) {
-               long value = this.keys.get(i).getValue();
-                childBytes = Bytes.concat(childBytes, ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+    private void reWriteData(DataItem dataItem) {
+        int childCount = isLeaf ? size : size + 1;
+        byte[][] keyBytes = new byte[size][];
+        int keyLength = 0;
+        if (longKeys == null) {
+            for (int i = 0; i < size; i++) {
+                keyBytes[i] = keys[i].getInputBytes();
+                keyLength += keyBytes[i].length;
             }
         } else {
-            for (int i = 0; i < this.childList.size(); i++) {
-                long childUid = this.childList.get(i);
-                childBytes = Bytes.concat(childBytes, ByteBuffer.allocate(Long.BYTES).putLong(childUid).array());
+            keyLength = size * (Integer.BYTES + width(keyType));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyLength + childCount * Long.BYTES);
+        buffer.put(this.isLeaf ? (byte) 1 : (byte) 0);
+        buffer.putInt(size);
+        buffer.putLong(sibling);
+        for (int i = 0; i < size; i++) {
+            if (longKeys == null) {
+                buffer.put(keyBytes[i]);
+                continue;
             }
+            buffer.putInt(keyType);
+            switch (keyType) {
+                case Value.SHORT -> buffer.putShort((short) longKeys[i]);
+                case Value.INT -> buffer.putInt((int) longKeys[i]);
+                default -> buffer.putLong(longKeys[i]);
+            }
+        }
+        for (int i = 0; i < childCount; i++) {
+            buffer.putLong(children[i]);
         }
-        this.dataItem.update(Bytes.concat(isLeaf, keySize, sibling, keyBytes, childBytes));
+        dataItem.update(buffer.array());
+    }
+
+    private static int width(int type) {
+        return switch (type) {
+            case Value.SHORT -> Short.BYTES;
+            case Value.INT -> Integer.BYTES;
+            default -> Long.BYTES;
+        };
     }
 }
@@ -0,0 +1,45 @@
+package com.learn.btree;
+
+import com.learn.cache.AbstractCache;
+import com.learn.data.DataManager;
+
+/**
+ * 解析好的节点的缓存，key是节点的uid，见 BPlusTree
+ * 节点只通过缓存中的对象修改，持有写锁时修改并 flush 写回数据项，缓存中的对象总是最新的，不需要失效
+ * 根节点和上层的节点一直被访问，留在缓存中，查找时不再从数据项中解析每个key
+ * 缓存的节点不占用数据项和页，每个节点按它在页中的大小 Node.NODE_SIZE 算（节点会变大，按解析时的大小算不准），
+ * 超过容量时用CLOCK淘汰没有被使用的节点
+ * @author peiyou
+ * @version 1.0
+ * @className NodeCache
+ * @date 2026/10/18 23:59
+ **/
+public class NodeCache extends AbstractCache<Node> {
+
+    // 默认的缓存大小，单位字节
+    public static final long DEFAULT_CAPACITY = 16L * 1024 * 1024;
+
+    private final DataManager dataManager;
+
+    public NodeCache(DataManager dataManager, long capacity) {
+        super(capacity);
+        this.dataManager = dataManager;
+    }
+
+    @Override
+    protected Node getForCache(long uid) throws Exception {
+        return new Node(dataManager, uid);
+    }
+
+    /**
+     * 修改过的节点在释放写锁之前已经写回，淘汰时没有要写的
+     */
+    @Override
+    public void releaseForCache(Node node) {
+    }
+
+    @Override
+    protected long sizeOf(Node node) {
+        return Node.NODE_SIZE;
+    }
+}
@@ -1,8 +1,13 @@
 package com.learn.cache;
 
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -11,109 +16,283 @@ import java.util.concurrent.locks.ReentrantLock;
  * page页与dataItem应该是个可以上锁的对象
  * 如果只有page可以缓存，那读写锁时，只能针对页面
  * 如果要对行记录也可以上锁，那就需要缓存dataItem，只有是同一对象，才能保证是同一把锁
+ *
+ * 引用数为0的资源不会立即释放，而是继续驻留在内存中，直到占用超过容量时用CLOCK算法淘汰。
+ * 容量为0时保持原来的行为：引用数为0就立即释放。
+ *
+ * 每个资源对应一个 Entry，放在同一个 ConcurrentHashMap 中，没有全局锁：
+ * 1、同一个资源同时未命中时，只有放入 Entry 的线程去加载，其他线程等待 Entry 中的 future（single-flight）
+ * 2、引用数是 Entry 上的原子变量，淘汰时把引用数从0改成 EVICTING，和引用数的增加互斥
+ * 3、被淘汰的资源写回完成之后才从 map 中删除，期间的获取等待写回结束再重新加载
+ * 4、CLOCK 的指针就是 map 上的迭代器，Entry 上的访问位给被访问过的资源第二次机会
  * @author peiyou
  * @version 1.0
  * @className AbstractCache
  * @date 2023/7/20 10:06
  **/
 public abstract class AbstractCache<T> {
-    private Map<Long, T> cache = new ConcurrentHashMap<>();
 
-    // 有几个引用了同一个资源，引用数为0的资源是可以释放的
-    private Map<Long, Integer> references;
+    // 引用数为这个值表示资源正在被淘汰
+    private static final int EVICTING = -1;
 
-    // 正在从文件中获取page页
-    private Map<Long, Boolean> getting;
+    private final ConcurrentHashMap<Long, Entry<T>> entries = new ConcurrentHashMap<>();
 
-    protected Lock lock;
+    // 缓存容量，单位由 sizeOf 决定
+    private final long capacity;
+
+    // 当前驻留的资源占用的大小
+    private final AtomicLong used = new AtomicLong();
+
+    private final CacheStats stats;
+
+    // 同一时间只有一个线程转动CLOCK的指针，拿不到锁的线程不等待
+    private final Lock evictLock = new ReentrantLock();
+
+    // CLOCK的指针，只在持有evictLock时使用
+    private Iterator<Entry<T>> hand;
 
     public AbstractCache() {
-        this.references = new ConcurrentHashMap<>();
-        this.getting = new ConcurrentHashMap<>();
-        lock = new ReentrantLock();
+        this(0);
+    }
+
+    public AbstractCache(long capacity) {
+        this.capacity = capacity;
+        this.stats = new CacheStats();
     }
 
     public T get(long uid) throws Exception {
-        while(true) {
-            lock.lock();
-            if(getting.containsKey(uid)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+        while (true) {
+            Entry<T> entry = entries.get(uid);
+            if (entry == null) {
+                Entry<T> created = new Entry<>(uid);
+                entry = entries.putIfAbsent(uid, created);
+                if (entry == null) {
+                    return load(created);
                 }
+            }
+            T obj;
+            try {
+                // 其他线程正在加载时在这里等待，不占用CPU
+                obj = entry.loaded.join();
+            } catch (CompletionException e) {
+                // 加载失败的 Entry 已经被删除，重新尝试
                 continue;
             }
-
-            if(cache.containsKey(uid)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(uid);
-                references.put(uid, references.get(uid) + 1);
-                lock.unlock();
+            if (entry.pin()) {
+                stats.recordHit();
                 return obj;
             }
-
-            // 尝试获取该资源
-            getting.put(uid, true);
-            lock.unlock();
-            break;
+            // 正在被淘汰，等写回完成后重新加载
+            entry.evicted.join();
         }
+    }
 
-        T obj = null;
+    private T load(Entry<T> entry) throws Exception {
+        stats.recordMiss();
+        T obj;
         try {
-            obj = getForCache(uid);
-        } catch(Exception e) {
-            lock.lock();
-            getting.remove(uid);
-            lock.unlock();
+            obj = getForCache(entry.uid);
+        } catch (Exception e) {
+            entries.remove(entry.uid, entry);
+            entry.loaded.completeExceptionally(e);
             throw e;
         }
-
-        lock.lock();
-        getting.remove(uid);
-        cache.put(uid, obj);
-        references.put(uid, 1);
-        lock.unlock();
-
+        entry.value = obj;
+        entry.size = sizeOf(obj);
+        used.addAndGet(entry.size);
+        entry.loaded.complete(obj);
+        evictIfNeeded();
         return obj;
     }
 
     public void release(long uid) throws Exception {
-        lock.lock();
+        Entry<T> entry = entries.get(uid);
+        if (entry == null) {
+            return;
+        }
+        if (entry.refs.decrementAndGet() > 0) {
+            return;
+        }
+        if (capacity <= 0) {
+            // 没有缓冲池，引用数为0就立即写回，记为直通而不是淘汰
+            if (entry.refs.compareAndSet(0, EVICTING)) {
+                evict(entry, false);
+            }
+        } else {
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * 把一个刚创建出来的资源直接放入缓存，引用数为0
+     */
+    protected void putResident(long uid, T obj) {
+        if (capacity <= 0) {
+            return;
+        }
+        Entry<T> entry = new Entry<>(uid);
+        entry.refs.set(0);
+        entry.value = obj;
+        entry.size = sizeOf(obj);
+        entry.loaded.complete(obj);
+        if (entries.putIfAbsent(uid, entry) != null) {
+            return;
+        }
+        used.addAndGet(entry.size);
+        evictIfNeeded();
+    }
+
+    /**
+     * 占用超过容量时转动CLOCK的指针选出引用数为0的资源淘汰
+     * 被选中的资源在写回完成之前一直留在map中，其他线程不会从文件中读到旧数据
+     */
+    private void evictIfNeeded() {
+        if (capacity <= 0 || used.get() <= capacity || !evictLock.tryLock()) {
+            return;
+        }
+        List<Entry<T>> victims = new ArrayList<>();
+        try {
+            long excess = used.get() - capacity;
+            // 最多转两圈，第一圈清除访问位，第二圈淘汰
+            int steps = entries.size() * 2;
+            while (excess > 0 && steps-- > 0) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = entries.values().iterator();
+                    if (!hand.hasNext()) {
+                        break;
+                    }
+                }
+                Entry<T> entry = hand.next();
+                if (entry.refs.get() != 0 || !entry.loaded.isDone()) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    continue;
+                }
+                if (entry.refs.compareAndSet(0, EVICTING)) {
+                    victims.add(entry);
+                    excess -= entry.size;
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+        // 在锁外写回，写回的IO不会阻塞其他资源的获取
+        for (Entry<T> victim : victims) {
+            evict(victim, true);
+        }
+    }
+
+    private void evict(Entry<T> entry, boolean pooled) {
         try {
-            int ref = references.get(uid)-1;
-            if(ref == 0) {
-                T obj = this.get(uid);
-                releaseForCache(obj);
-                references.remove(uid);
-                cache.remove(uid);
+            releaseForCache(entry.value);
+            if (pooled) {
+                stats.recordEviction();
             } else {
-                references.put(uid, ref);
+                stats.recordPassThrough();
             }
         } finally {
-            lock.unlock();
+            used.addAndGet(-entry.size);
+            entries.remove(entry.uid, entry);
+            entry.evicted.complete(null);
         }
     }
 
+    /**
+     * 把所有驻留的脏资源写回，但不淘汰（检查点）
+     */
+    public void flush() {
+        for (T obj : residentValues()) {
+            flushForCache(obj);
+        }
+    }
+
+    /**
+     * 当前驻留在缓存中的所有资源的快照，包括正在写回的资源
+     */
+    protected List<T> residentValues() {
+        List<T> values = new ArrayList<>(entries.size());
+        for (Entry<T> entry : entries.values()) {
+            if (entry.loaded.isDone() && entry.value != null) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
     protected abstract T getForCache(long pageNo) throws Exception;
 
     public abstract void releaseForCache(T obj);
 
+    /**
+     * 写回资源但不释放，默认什么都不做
+     */
+    protected void flushForCache(T obj) {
+    }
+
+    /**
+     * 资源占用的大小，默认每个资源算1
+     */
+    protected long sizeOf(T obj) {
+        return 1;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
     public void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Entry<T> entry : entries.values()) {
+            if (entry.loaded.isDone() && entry.value != null && entry.refs.get() != EVICTING) {
+                releaseForCache(entry.value);
+            }
+            entries.remove(entry.uid, entry);
+        }
+        used.set(0);
+    }
+
+    /**
+     * 一个资源在缓存中的状态
+     */
+    private static final class Entry<T> {
+
+        private final long uid;
+
+        // 加载完成后完成，加载失败时异常完成
+        private final CompletableFuture<T> loaded = new CompletableFuture<>();
+
+        // 写回完成、从map中删除后完成
+        private final CompletableFuture<Void> evicted = new CompletableFuture<>();
+
+        // 引用数，加载的线程持有第一个引用
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        // CLOCK的访问位
+        private volatile boolean referenced = true;
+
+        private volatile T value;
+
+        private volatile long size;
+
+        private Entry(long uid) {
+            this.uid = uid;
+        }
+
+        /**
+         * 增加一个引用，资源正在被淘汰时返回false
+         */
+        private boolean pin() {
+            while (true) {
+                int ref = refs.get();
+                if (ref == EVICTING) {
+                    return false;
+                }
+                if (refs.compareAndSet(ref, ref + 1)) {
+                    referenced = true;
+                    return true;
+                }
             }
-        } finally {
-            lock.unlock();
         }
     }
 }
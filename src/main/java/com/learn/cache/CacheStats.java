@@ -0,0 +1,77 @@
+package com.learn.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存的命中统计
+ * @author peiyou
+ * @version 1.0
+ * @className CacheStats
+ * @date 2026/10/17 10:40
+ **/
+public class CacheStats {
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    // 被淘汰的资源数
+    private final AtomicLong evictions = new AtomicLong();
+
+    // 没有缓冲池时引用数归0直接丢弃的资源数，不算淘汰
+    private final AtomicLong passThroughs = new AtomicLong();
+
+    // 淘汰或检查点时写回的脏资源数
+    private final AtomicLong writeBacks = new AtomicLong();
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    public void recordPassThrough() {
+        passThroughs.incrementAndGet();
+    }
+
+    public void recordWriteBack() {
+        writeBacks.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getPassThroughs() {
+        return passThroughs.get();
+    }
+
+    public long getWriteBacks() {
+        return writeBacks.get();
+    }
+
+    public double hitRatio() {
+        long total = getHits() + getMisses();
+        return total == 0 ? 0 : (double) getHits() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", passThroughs=" + getPassThroughs() + ", writeBacks=" + getWriteBacks() + ", hitRatio=" + String.format("%.4f", hitRatio());
+    }
+}
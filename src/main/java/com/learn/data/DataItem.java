@@ -10,7 +10,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * [valid][size][data]
- * 数据项，格式如上
+ * 数据项，格式如上，放在页的一个槽中，页整理时会移动位置，所以每次访问都通过槽找到当前的位置
  * @author peiyou
  * @version 1.0
  * @className DataItem
@@ -22,15 +22,12 @@ public class DataItem {
     public static final int DATA = SIZE + 4;
 
     /**
-     * 在页中的偏移量
+     * 在页中的槽号
      */
-    private final int offset;
+    private final int slot;
 
     private final int size;
 
-    // 对于更新时，用来保存旧值的
-    private byte[] oldRaw;
-
     private Page page;
 
     private byte valid;
@@ -38,20 +35,21 @@ public class DataItem {
     private Lock rLock;
     private Lock wLock;
 
-    public DataItem(int offset, Page page) {
-        this.offset = offset;
+    public DataItem(int slot, Page page) {
+        this.slot = slot;
         this.page = page;
-        ByteBuffer buffer = ByteBuffer.wrap(page.getData());
-        buffer.position(offset);
-        this.valid = buffer.get();
-        this.size = buffer.getInt();
+        byte[] header = new byte[DATA];
+        page.readRecord(slot, VALID, header);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        this.valid = buffer.get(VALID);
+        this.size = buffer.getInt(SIZE);
         ReadWriteLock lock = new ReentrantReadWriteLock();
         rLock = lock.readLock();
         wLock = lock.writeLock();
     }
 
     /**
-     * 插入数据返回数据在页中的偏移量
+     * 插入数据返回数据在页中的槽号
      * @author Peiyou
      * @date 2023/7/14 09:12
      * @param data
@@ -70,22 +68,11 @@ public class DataItem {
      * @return
      */
     public void updateValid(boolean valid) {
-        setOldRaw();
-        byte[] newData = new byte[size];
-        System.arraycopy(oldRaw, 0, newData, 0, size);
-        newData[0] = valid ? (byte)1: (byte) 0;
-        this.valid = newData[0];
-        page.update(offset, newData);
+        byte validByte = valid ? (byte)1: (byte) 0;
+        page.update(Page.SUPER_XID, slot, VALID, new byte[]{validByte});
+        this.valid = validByte;
     }
 
-    private void setOldRaw() {
-        oldRaw = new byte[size];
-        ByteBuffer buffer = ByteBuffer.wrap(page.getData());
-        buffer.position(offset);
-        byte validByte = buffer.get();
-        int size = buffer.getInt();
-        buffer.get(oldRaw);
-    }
     public static byte[] wrap(byte[] data) {
         byte[] valid = new byte[]{(byte)1};
         byte[] size = ByteBuffer.allocate(Integer.BYTES).putInt(data.length).array();
@@ -106,13 +93,27 @@ public class DataItem {
 
     public byte[] getData() {
         byte[] data = new byte[size];
-        System.arraycopy(page.getData(), offset + DATA, data, 0, data.length);
+        page.readRecord(slot, DATA, data);
         return data;
     }
 
     public void update(byte[] data) {
-        setOldRaw();
-        page.update(offset + DATA, data);
+        update(Page.SUPER_XID, data);
+    }
+
+    /**
+     * xid事务更新整个数据
+     */
+    public void update(long xid, byte[] data) {
+        update(xid, 0, data);
+    }
+
+    /**
+     * xid事务从数据的dataOffset位置开始更新，只记录被修改部分的日志
+     * 修改前的内容记录在日志中，用于回滚
+     */
+    public void update(long xid, int dataOffset, byte[] data) {
+        page.update(xid, slot, DATA + dataOffset, data);
     }
 
     public Lock getReadLock() {
@@ -1,9 +1,9 @@
 package com.learn.data;
 
 import com.learn.cache.AbstractCache;
+import com.learn.page.FreeSpaceMap;
 import com.learn.page.Page;
 import com.learn.page.PageCache;
-import com.learn.page.PageIndex;
 import com.learn.page.PageInfo;
 
 /**
@@ -14,44 +14,98 @@ import com.learn.page.PageInfo;
  **/
 public class DataManager extends AbstractCache<DataItem> {
 
-    private PageIndex pageIndex;
+    private FreeSpaceMap freeSpaceMap;
 
     private PageCache pageCache;
 
     public DataManager(PageCache pageCache) {
-        this.pageIndex = new PageIndex();
+        this(pageCache, new FreeSpaceMap());
+    }
+
+    public DataManager(PageCache pageCache, FreeSpaceMap freeSpaceMap) {
+        this.freeSpaceMap = freeSpaceMap;
         this.pageCache = pageCache;
     }
 
     public long insert(byte[] data) throws Exception {
+        return insert(Page.SUPER_XID, data);
+    }
+
+    /**
+     * xid事务插入数据，返回数据的uid
+     */
+    public long insert(long xid, byte[] data) throws Exception {
         byte[] wrap = DataItem.wrap(data);
-        PageInfo pageInfo = null;
+        Page page;
         while (true) {
-            pageInfo = pageIndex.select(wrap.length);
+            PageInfo pageInfo = freeSpaceMap.select(wrap.length);
             if (pageInfo == null) {
-                // 没有找到合适的页
-                Page page = pageCache.newPage(wrap.length);
-                pageIndex.add(page.getPageNo(), page.freeSize());
-            } else {
+                // 没有找到合适的页，新页还要放下页头和一个槽
+                page = pageCache.newPage(wrap.length + Page.DATA_OFFSET + Page.SLOT_SIZE);
+                freeSpaceMap.update(page.getPageNo(), page.freeSize());
+                continue;
+            }
+            page = pageCache.get(pageInfo.pageNo());
+            // 检查和写入之间不能有别的线程插入或释放，页锁是可重入的，写入时会再锁一次
+            page.getPageLock().lock();
+            if (page.freeSize() >= wrap.length) {
                 break;
             }
+            page.getPageLock().unlock();
+            // 空闲空间表记录的不准确，按实际的空闲空间重新记录
+            page.release();
+            freeSpaceMap.update(page.getPageNo(), page.freeSize());
+        }
+        int slot;
+        try {
+            slot = page.write(xid, wrap);
+        } finally {
+            page.getPageLock().unlock();
         }
-        Page page = pageCache.get(pageInfo.pageNo());
-        int offset = page.write(wrap);
         long uid = (long) page.getPageNo();
-        uid = uid << 32 | ((long) offset);
+        uid = uid << 32 | ((long) slot);
         page.release();
-        pageIndex.add(page.getPageNo(), page.freeSize());
+        freeSpaceMap.update(page.getPageNo(), page.freeSize());
         return uid;
     }
 
+    /**
+     * uid 的槽中是否还有记录，已经释放时返回false
+     */
+    public boolean exists(long uid) throws Exception {
+        int pageNo = (int) (uid >>> 32);
+        int slot = (int)(uid & ((1L<<32) - 1));
+        Page page = pageCache.get(pageNo);
+        try {
+            return page.recordLength(slot) > 0;
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * 释放数据项占用的空间，槽可以被之后的插入复用
+     * 调用方需要保证已经没有事务能访问到这个数据项
+     */
+    public void free(long uid) throws Exception {
+        int pageNo = (int) (uid >>> 32);
+        int slot = (int)(uid & ((1L<<32) - 1));
+        Page page = pageCache.get(pageNo);
+        try {
+            page.free(slot);
+        } finally {
+            page.release();
+        }
+        freeSpaceMap.update(pageNo, page.freeSize());
+    }
+
 
     @Override
     protected DataItem getForCache(long uid) throws Exception {
         int pageNo = (int) (uid >>> 32);
-        int offset = (int)(uid & ((1L<<32) - 1));
+        int slot = (int)(uid & ((1L<<32) - 1));
         Page page = pageCache.get(pageNo);
-        DataItem item = new DataItem(offset, page);
+        DataItem item = new DataItem(slot, page);
         // 验证数据
         /*
         if (!item.isValid()) {
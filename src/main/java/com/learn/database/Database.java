@@ -1,8 +1,11 @@
 package com.learn.database;
 
+import com.learn.log.LogManager;
+import com.learn.log.Recovery;
 import com.learn.table.Column;
 import com.learn.table.Table;
 import com.learn.transaction.TransactionManager;
+import com.learn.version.Vacuum;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -35,6 +38,8 @@ public class Database {
 
     private String path;
 
+    private File xidFile;
+
     private Database() {
         this.lock = new ReentrantLock();
     }
@@ -77,11 +82,21 @@ public class Database {
         try {
             RandomAccessFile raf = new RandomAccessFile(xidFile, "rw");
             FileChannel fileChannel = raf.getChannel();
-            database.transactionManager = new TransactionManager(raf, fileChannel);
+            LogManager logManager = LogManager.open(new File(xidFile.getParent(), dbName + LogManager.LOG_SUFFIX));
+            database.transactionManager = new TransactionManager(raf, fileChannel, logManager);
+            // 上次没有正常关闭时，按日志把数据文件恢复到一致的状态
+            Recovery recovery = Recovery.recover(xidFile.getParent(), logManager, database.transactionManager);
+            if (recovery != null && recovery.getRedoNanos() > 1000000) {
+                // 用这次实际的重做速度估算下次的恢复时间
+                logManager.getCheckpointer().setRedoBytesPerMilli(recovery.getRedoBytes() * 1000000 / recovery.getRedoNanos());
+            }
+            logManager.getCheckpointer().start();
+            database.transactionManager.getVacuum().start();
         } catch (IOException e) {
             throw  new RuntimeException(e);
         }
         database.path = xidFile.getParent();
+        database.xidFile = xidFile;
         return database;
     }
 
@@ -90,12 +105,19 @@ public class Database {
     }
 
     public Table getTable(String tableName) {
+        return getTable(tableName, Table.STORAGE_FILE);
+    }
+
+    /**
+     * @param storage 表第一次加载时使用的读写方式，{@link Table#STORAGE_FILE} 或 {@link Table#STORAGE_MMAP}
+     */
+    public Table getTable(String tableName, int storage) {
         Table table = tableInfo.get(tableName);
         if (table == null) {
             // 如果表未加载，去数据库目录下载入
             lock.lock();
             try {
-                Table temp = new Table(this.path, tableName, transactionManager);
+                Table temp = new Table(this.path, tableName, transactionManager, storage);
                 tableInfo.put(tableName, temp);
             } catch (Exception e) {
                 throw new RuntimeException(e);
@@ -108,9 +130,13 @@ public class Database {
     }
 
     public Table createTable(String tableName, List<Column> columns) throws Exception {
+        return createTable(tableName, columns, Table.STORAGE_FILE);
+    }
+
+    public Table createTable(String tableName, List<Column> columns, int storage) throws Exception {
         lock.lock();
         try {
-            Table table = Table.create(this.path, tableName, columns, this.transactionManager);
+            Table table = Table.create(this.path, tableName, columns, this.transactionManager, storage);
             tableInfo.put(tableName, table);
         } finally {
             lock.unlock();
@@ -124,12 +150,34 @@ public class Database {
             for (Table table: tableInfo.values()) {
                 table.close();
             }
+            // 所有的表都已经写回，检查点之后下次打开不需要重做
+            transactionManager.getLogManager().getCheckpointer().checkpoint();
             transactionManager.close();
         } finally {
             this.lock.unlock();
         }
     }
 
+    /**
+     * 冻结所有表中比 horizon 小的事务留下的版本，然后截断 .xid 文件
+     * 没有载入的表也会被载入，只有所有表都冻结完成才能丢掉这些事务的状态
+     * 冻结时删除了索引的版本在截断之前清理一遍，没有更老的事务时空间马上释放
+     * @return 截断之后的 frozenXid，比它小的事务都按已提交处理
+     */
+    public long freeze() throws Exception {
+        long limit = transactionManager.horizon();
+        String[] names = new File(path).list((dir, name) -> name.endsWith(Table.frm));
+        if (names != null) {
+            for (String name : names) {
+                getTable(name.substring(0, name.length() - Table.frm.length())).freeze(limit);
+            }
+        }
+        Vacuum vacuum = transactionManager.getVacuum();
+        while (vacuum.vacuum() > 0) {
+        }
+        return transactionManager.truncate(xidFile, limit);
+    }
+
     public boolean dropTable(String tableName) {
         Table table = tableInfo.get(tableName);
         if (table == null) {
@@ -75,7 +75,7 @@ public class DatabaseManager {
      * 数据库是一个目录，目录里面包含
      * 1、{databaseName}.xid 事务相关文件
      * 2、xxx.frm 和 xxx.idb 的表文件
-     * 3、xxx.log 文件（todo 后面加上日志功能）
+     * 3、{databaseName}.log 预写日志文件
      */
     private void findAndInitDatabase(File file) {
         if (!file.isDirectory()) {
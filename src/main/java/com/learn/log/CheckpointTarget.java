@@ -0,0 +1,25 @@
+package com.learn.log;
+
+/**
+ * 参与检查点的缓存，每个记日志的数据文件一个
+ * @author peiyou
+ * @version 1.0
+ * @className CheckpointTarget
+ * @date 2026/10/18 11:00
+ **/
+public interface CheckpointTarget {
+
+    int dirtyPageCount();
+
+    int residentPageCount();
+
+    /**
+     * 按页号顺序写回所有的脏页（包括正在被淘汰的页），返回写回的页数
+     */
+    int writeDirtyPages();
+
+    /**
+     * 把数据文件刷到磁盘
+     */
+    void sync();
+}
@@ -0,0 +1,224 @@
+package com.learn.log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 模糊检查点，每个日志文件一个
+ * 后台线程定期检查，脏页比例超过 maxDirtyRatio，或者按上次检查点之后的日志量估算的恢复时间超过
+ * targetRecoveryMillis 时做一次检查点：
+ * 1、记下当前日志的末尾 redoLsn，和还没有结束的事务中最早的一条修改 undoLsn
+ * 2、各个文件按页号顺序写回所有的脏页（写回前先保证日志落盘），然后fsync，.xid 文件也一起fsync
+ * 3、写入检查点记录，把它的位置记到日志文件头，恢复时从 undoLsn 开始分析、从 redoLsn 开始重做
+ * 4、undoLsn 之前的日志不再需要，由 LogManager 回收
+ * redoLsn 之前的修改要么在这次写回的脏页里，要么之前已经写回、由这次的fsync落盘。
+ * undoLsn 之前结束的事务，状态已经写入 .xid 文件并由这次的fsync落盘。
+ * 检查点期间不阻塞页的读写，期间的修改都在 redoLsn 之后，由恢复时重做。
+ * @author peiyou
+ * @version 1.0
+ * @className Checkpointer
+ * @date 2026/10/18 11:00
+ **/
+public class Checkpointer {
+
+    // 默认脏页比例超过一半时做检查点
+    public static final double DEFAULT_MAX_DIRTY_RATIO = 0.5;
+
+    // 默认恢复时间不超过10秒
+    public static final long DEFAULT_TARGET_RECOVERY_MILLIS = 10_000;
+
+    // 估算恢复时间用的重做速度，每毫秒重做的日志字节数（约32MB/s，偏保守）
+    public static final long DEFAULT_REDO_BYTES_PER_MILLI = 32 * 1024;
+
+    private static final long CHECK_INTERVAL_MILLIS = 100;
+
+    private final LogManager logManager;
+
+    private final List<CheckpointTarget> targets;
+
+    // 同一时间只做一个检查点，注销的文件要等正在进行的检查点结束
+    private final Lock lock;
+
+    private volatile double maxDirtyRatio = DEFAULT_MAX_DIRTY_RATIO;
+
+    private volatile long targetRecoveryMillis = DEFAULT_TARGET_RECOVERY_MILLIS;
+
+    private volatile long redoBytesPerMilli = DEFAULT_REDO_BYTES_PER_MILLI;
+
+    private Thread worker;
+
+    private volatile boolean stopped;
+
+    private volatile long lastRedoLsn;
+
+    private volatile long checkpointCount;
+
+    private volatile long lastDurationNanos;
+
+    private volatile int lastPagesWritten;
+
+    private volatile long totalPagesWritten;
+
+    private volatile RuntimeException lastError;
+
+    Checkpointer(LogManager logManager) {
+        this.logManager = logManager;
+        this.targets = new CopyOnWriteArrayList<>();
+        this.lock = new ReentrantLock();
+    }
+
+    public void register(CheckpointTarget target) {
+        targets.add(target);
+    }
+
+    public void unregister(CheckpointTarget target) {
+        lock.lock();
+        try {
+            targets.remove(target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 启动后台线程，恢复完成之后调用
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        lastRedoLsn = logManager.getNextLsn();
+        worker = new Thread(this::run, "checkpointer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (worker == null) {
+            return;
+        }
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+
+    private void run() {
+        while (!stopped) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (needCheckpoint()) {
+                    checkpoint();
+                }
+            } catch (RuntimeException e) {
+                // 下一轮再试，错误留给调用方查看
+                lastError = e;
+            }
+        }
+    }
+
+    private boolean needCheckpoint() {
+        long resident = 0;
+        long dirty = 0;
+        for (CheckpointTarget target : targets) {
+            resident += target.residentPageCount();
+            dirty += target.dirtyPageCount();
+        }
+        if (resident > 0 && dirty >= resident * maxDirtyRatio) {
+            return true;
+        }
+        return estimateRecoveryMillis() >= targetRecoveryMillis;
+    }
+
+    /**
+     * 按上次检查点之后的日志量估算崩溃后的恢复时间
+     */
+    public long estimateRecoveryMillis() {
+        return (logManager.getNextLsn() - lastRedoLsn) / redoBytesPerMilli;
+    }
+
+    /**
+     * 做一次检查点，返回写回的页数
+     */
+    public int checkpoint() {
+        lock.lock();
+        try {
+            long begin = System.nanoTime();
+            long redoLsn = logManager.getNextLsn();
+            long undoLsn = Math.min(redoLsn, logManager.getOldestActiveLsn());
+            int pages = 0;
+            for (CheckpointTarget target : targets) {
+                pages += target.writeDirtyPages();
+            }
+            for (CheckpointTarget target : targets) {
+                target.sync();
+            }
+            logManager.checkpoint(redoLsn, undoLsn);
+            lastRedoLsn = redoLsn;
+            checkpointCount++;
+            lastPagesWritten = pages;
+            totalPagesWritten += pages;
+            lastDurationNanos = System.nanoTime() - begin;
+            return pages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxDirtyRatio(double maxDirtyRatio) {
+        this.maxDirtyRatio = maxDirtyRatio;
+    }
+
+    public void setTargetRecoveryMillis(long targetRecoveryMillis) {
+        this.targetRecoveryMillis = targetRecoveryMillis;
+    }
+
+    /**
+     * 用实际测得的重做速度估算恢复时间，例如 {@link Recovery} 的结果
+     */
+    public void setRedoBytesPerMilli(long redoBytesPerMilli) {
+        this.redoBytesPerMilli = Math.max(1, redoBytesPerMilli);
+    }
+
+    public long getLastRedoLsn() {
+        return lastRedoLsn;
+    }
+
+    public long getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    public long getLastDurationNanos() {
+        return lastDurationNanos;
+    }
+
+    public int getLastPagesWritten() {
+        return lastPagesWritten;
+    }
+
+    public long getTotalPagesWritten() {
+        return totalPagesWritten;
+    }
+
+    public RuntimeException getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpointer{checkpoints=" + checkpointCount + ", lastPages=" + lastPagesWritten
+                + ", lastDuration=" + lastDurationNanos / 1000000 + "ms, totalPages=" + totalPagesWritten
+                + ", redoLsn=" + lastRedoLsn + "}";
+    }
+}
@@ -0,0 +1,626 @@
+package com.learn.log;
+
+import com.learn.page.Page;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 预写日志（redo/undo 都在记录里），每个数据库一个 {databaseName}.log 文件
+ * [magic][startLsn][checkpointLsn][size][checksum][record][size][checksum][record]...
+ * lsn 是记录在整个日志中的位置，只会增大，文件中第一条记录的位置是 startLsn，
+ * checkpointLsn 是最后一个检查点记录的位置，恢复时不用扫描整个日志去找检查点。
+ * 检查点之后，恢复不再需要的前缀超过 recycleBytes 时，把剩下的日志复制到新文件再改名替换，回收前缀。
+ *
+ * 追加日志只是放进内存中的缓冲区，由单独的写日志线程写入文件并fsync。
+ * 提交事务时等待日志落盘，写日志线程在一次fsync期间到达的提交会在下一次fsync中一起完成（组提交），
+ * 所以并发提交的事务共用一次fsync。
+ * 数据页写回前必须先保证页上最后一条修改的日志已经落盘。
+ * @author peiyou
+ * @version 1.0
+ * @className LogManager
+ * @date 2026/10/17 15:40
+ **/
+public class LogManager {
+
+    public static final String LOG_SUFFIX = ".log";
+
+    // 每条记录的头 [size][checksum]
+    private static final int RECORD_HEADER = Integer.BYTES * 2;
+
+    // 文件头 [magic][startLsn][checkpointLsn]，没有文件头的是旧的日志，记录从文件开头开始
+    private static final int MAGIC = 0x57414C31;
+    private static final int FILE_HEADER = Integer.BYTES + Long.BYTES * 2;
+    private static final int CHECKPOINT_LSN_OFFSET = Integer.BYTES + Long.BYTES;
+
+    // 还没有做过检查点
+    public static final long NO_CHECKPOINT = -1;
+
+    // 检查点之后可以回收的前缀超过这个大小才替换文件
+    public static final long DEFAULT_RECYCLE_BYTES = 16 * 1024 * 1024;
+
+    // 没有提交在等待时，缓冲区超过这个大小也会写入文件
+    private static final int FLUSH_THRESHOLD = 1024 * 1024;
+
+    // 没有提交在等待时，最多隔这么久写一次文件
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final File logFile;
+
+    // 回收前缀时替换成新文件，只有写日志线程会替换
+    private volatile RandomAccessFile file;
+
+    private volatile FileChannel fileChannel;
+
+    // 文件中第一条记录的位置
+    private volatile long startLsn;
+
+    // 最后一个检查点记录的位置
+    private volatile long checkpointLsn;
+
+    private final Lock lock;
+
+    // 有日志需要写入
+    private final Condition hasWork;
+
+    // 有日志落盘了
+    private final Condition flushed;
+
+    // 还没有写入文件的日志
+    private ByteArrayOutputStream buffer;
+
+    // 下一条日志的位置
+    private long nextLsn;
+
+    // 这个位置之前的日志都已经落盘
+    private long flushedLsn;
+
+    // 等待落盘的最大位置
+    private long requestedLsn;
+
+    private boolean closed;
+
+    // 有事务修改过页、还没有结束的事务 -> 它的第一条页修改日志的位置
+    private final Map<Long, Long> firstLsns;
+
+    // 等待写日志线程把检查点记到文件头里
+    private boolean checkpointRequested;
+
+    private long requestedCheckpointLsn;
+
+    // 这个位置之前的日志恢复时用不到了
+    private long requestedTruncateLsn;
+
+    private volatile long recycleBytes = DEFAULT_RECYCLE_BYTES;
+
+    private final AtomicLong recycleCount = new AtomicLong();
+
+    private IOException error;
+
+    private final Thread writer;
+
+    // fsync的次数，和提交的次数对比可以看出组提交的效果
+    private final AtomicLong syncCount = new AtomicLong();
+
+    private final AtomicLong recordCount = new AtomicLong();
+
+    private final Checkpointer checkpointer;
+
+    private LogManager(File logFile) throws IOException {
+        this.logFile = logFile;
+        this.file = new RandomAccessFile(logFile, "rw");
+        this.fileChannel = file.getChannel();
+        this.lock = new ReentrantLock();
+        this.hasWork = lock.newCondition();
+        this.flushed = lock.newCondition();
+        this.buffer = new ByteArrayOutputStream();
+        this.firstLsns = new HashMap<>();
+        readHeader();
+        // 截掉最后写了一半的记录
+        long end = forEach(startLsn, record -> {});
+        if (position(end) != fileChannel.size()) {
+            fileChannel.truncate(position(end));
+        }
+        this.nextLsn = end;
+        this.flushedLsn = end;
+        this.requestedLsn = end;
+        this.writer = new Thread(this::writeLoop, "log-writer-" + file.hashCode());
+        this.writer.setDaemon(true);
+        this.writer.start();
+        this.checkpointer = new Checkpointer(this);
+    }
+
+    public static LogManager open(File logFile) {
+        try {
+            if (!logFile.exists() && !logFile.createNewFile()) {
+                throw new RuntimeException(logFile.getName() + "日志文件创建失败.");
+            }
+            if (!logFile.canRead() || !logFile.canWrite()) {
+                throw new RuntimeException(logFile.getName() + "日志文件无法读写.");
+            }
+            return new LogManager(logFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        long size = fileChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        if (size >= FILE_HEADER) {
+            readFully(fileChannel, header, 0);
+            if (header.getInt(0) == MAGIC) {
+                startLsn = header.getLong(Integer.BYTES);
+                checkpointLsn = header.getLong(CHECKPOINT_LSN_OFFSET);
+                return;
+            }
+        }
+        if (size == 0) {
+            writeFully(fileChannel, header(0, NO_CHECKPOINT), 0);
+            fileChannel.force(true);
+        } else {
+            // 旧的日志没有文件头，记录从0开始，补上文件头
+            replaceFile(0, size, 0, NO_CHECKPOINT);
+        }
+        startLsn = 0;
+        checkpointLsn = NO_CHECKPOINT;
+    }
+
+    private static ByteBuffer header(long startLsn, long checkpointLsn) {
+        return ByteBuffer.allocate(FILE_HEADER).putInt(MAGIC).putLong(startLsn).putLong(checkpointLsn).flip();
+    }
+
+    // lsn 在当前文件中的位置
+    private long position(long lsn) {
+        return FILE_HEADER + lsn - startLsn;
+    }
+
+    /**
+     * 追加一条日志，返回这条日志结束的位置，等待这个位置落盘就保证了这条日志落盘
+     */
+    public long append(LogRecord record) {
+        byte[] data = record.toBytes();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).putInt(data.length).putInt((int) crc.getValue());
+        lock.lock();
+        try {
+            if (closed) {
+                throw new RuntimeException("日志已关闭.");
+            }
+            if (record.getXid() > Page.SUPER_XID && (record.getType() == LogRecord.INSERT || record.getType() == LogRecord.UPDATE)) {
+                // 事务的第一条修改，这之后的日志在事务结束之前都不能回收
+                firstLsns.putIfAbsent(record.getXid(), nextLsn);
+            }
+            buffer.write(header.array(), 0, RECORD_HEADER);
+            buffer.write(data, 0, data.length);
+            nextLsn += RECORD_HEADER + data.length;
+            recordCount.incrementAndGet();
+            if (buffer.size() >= FLUSH_THRESHOLD) {
+                hasWork.signal();
+            }
+            return nextLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待lsn之前的日志都落盘
+     */
+    public void flush(long lsn) {
+        lock.lock();
+        try {
+            if (lsn > nextLsn) {
+                lsn = nextLsn;
+            }
+            while (flushedLsn < lsn) {
+                if (error != null) {
+                    throw new RuntimeException("写日志失败.", error);
+                }
+                if (lsn > requestedLsn) {
+                    requestedLsn = lsn;
+                    hasWork.signal();
+                }
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 提交事务，返回时提交日志已经落盘
+     */
+    public void commit(long xid) {
+        flush(append(LogRecord.commit(xid)));
+    }
+
+    /**
+     * 回滚不需要等待落盘，崩溃后没有提交记录的事务同样会被回滚
+     */
+    public void abort(long xid) {
+        append(LogRecord.abort(xid));
+    }
+
+    /**
+     * 事务的状态已经写入 .xid 文件，之后的检查点会把它刷到磁盘，它的日志可以回收了
+     * 不能在写提交或回滚记录的时候就放掉：检查点有可能在状态写入之前刷 .xid 文件，
+     * 日志又被回收，崩溃后这个事务的结果就丢了
+     */
+    public void finish(long xid) {
+        lock.lock();
+        try {
+            firstLsns.remove(xid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 还没有结束的事务中最早的一条修改的位置，没有时返回日志的末尾
+     */
+    public long getOldestActiveLsn() {
+        lock.lock();
+        try {
+            long oldest = nextLsn;
+            for (long lsn : firstLsns.values()) {
+                oldest = Math.min(oldest, lsn);
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写入检查点记录并等待落盘，然后由写日志线程把它的位置记到文件头里，
+     * undoLsn 之前的日志超过 recycleBytes 时顺便回收
+     */
+    public void checkpoint(long redoLsn, long undoLsn) {
+        long lsn;
+        long end;
+        lock.lock();
+        try {
+            lsn = nextLsn;
+            end = append(LogRecord.checkpoint(redoLsn, undoLsn));
+        } finally {
+            lock.unlock();
+        }
+        flush(end);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new RuntimeException("日志已关闭.");
+            }
+            requestedCheckpointLsn = lsn;
+            requestedTruncateLsn = undoLsn;
+            checkpointRequested = true;
+            hasWork.signal();
+            while (checkpointRequested) {
+                if (error != null) {
+                    throw new RuntimeException("写日志失败.", error);
+                }
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            byte[] data;
+            long start;
+            long end;
+            boolean checkpoint;
+            long checkpointAt;
+            long truncateAt;
+            lock.lock();
+            try {
+                while (!checkpointRequested
+                        && (buffer.size() == 0 || (requestedLsn <= flushedLsn && buffer.size() < FLUSH_THRESHOLD && !closed))) {
+                    if (closed && buffer.size() == 0) {
+                        return;
+                    }
+                    long left = hasWork.awaitNanos(FLUSH_INTERVAL_NANOS);
+                    if (left <= 0 && buffer.size() > 0) {
+                        // 定时写入，不让缓冲区积压太多
+                        break;
+                    }
+                }
+                data = buffer.toByteArray();
+                buffer.reset();
+                start = flushedLsn;
+                end = nextLsn;
+                checkpoint = checkpointRequested;
+                checkpointAt = requestedCheckpointLsn;
+                truncateAt = requestedTruncateLsn;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException ex = null;
+            try {
+                if (data.length > 0) {
+                    writeFully(fileChannel, ByteBuffer.wrap(data), position(start));
+                    fileChannel.force(false);
+                    syncCount.incrementAndGet();
+                }
+                if (checkpoint) {
+                    writeCheckpoint(checkpointAt, truncateAt, end);
+                }
+            } catch (IOException e) {
+                ex = e;
+            }
+
+            lock.lock();
+            try {
+                if (ex != null) {
+                    error = ex;
+                } else {
+                    flushedLsn = end;
+                }
+                if (checkpoint) {
+                    checkpointRequested = false;
+                }
+                flushed.signalAll();
+                if (ex != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 只有写日志线程调用，end 之前的日志都已经在文件中
+     */
+    private void writeCheckpoint(long checkpointAt, long truncateAt, long end) throws IOException {
+        if (truncateAt - startLsn >= Math.max(1, recycleBytes)) {
+            replaceFile(position(truncateAt), position(end), truncateAt, checkpointAt);
+            recycleCount.incrementAndGet();
+        } else {
+            writeFully(fileChannel, ByteBuffer.allocate(Long.BYTES).putLong(0, checkpointAt), CHECKPOINT_LSN_OFFSET);
+            fileChannel.force(false);
+        }
+        checkpointLsn = checkpointAt;
+    }
+
+    /**
+     * 把文件中 [from, to) 的日志复制到新文件，再改名替换日志文件
+     * 改名之前崩溃，旧文件和旧的文件头都还在，恢复时从上一个检查点开始
+     */
+    private void replaceFile(long from, long to, long newStartLsn, long newCheckpointLsn) throws IOException {
+        File tmp = new File(logFile.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            writeFully(channel, header(newStartLsn, newCheckpointLsn), 0);
+            channel.position(FILE_HEADER);
+            long copied = 0;
+            while (copied < to - from) {
+                copied += fileChannel.transferTo(from + copied, to - from - copied, channel);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        fileChannel.close();
+        file.close();
+        file = new RandomAccessFile(logFile, "rw");
+        fileChannel = file.getChannel();
+        startLsn = newStartLsn;
+    }
+
+    // 改名要等目录落盘才持久，有的系统不能打开目录，这时只能依靠文件系统自己
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(logFile.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    /**
+     * 读取lsn位置的一条记录，记录不完整时返回null
+     */
+    public LogRecord read(long lsn) throws IOException {
+        FileChannel channel = fileChannel;
+        long position = position(lsn);
+        if (lsn < startLsn || position + RECORD_HEADER > channel.size()) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        readFully(channel, header, position);
+        int size = header.getInt(0);
+        if (size <= 0 || position + RECORD_HEADER + size > channel.size()) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(size);
+        readFully(channel, data, position + RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(data.array());
+        if ((int) crc.getValue() != header.getInt(Integer.BYTES)) {
+            return null;
+        }
+        return LogRecord.parse(data.flip(), lsn);
+    }
+
+    /**
+     * 从fromLsn开始依次读取日志，直到文件末尾或者遇到不完整的记录，已经回收的部分跳过
+     * 返回最后一条完整记录结束的位置
+     * 不能和回收前缀的检查点同时调用
+     */
+    public long forEach(long fromLsn, Consumer<LogRecord> consumer) throws IOException {
+        FileChannel channel = this.fileChannel;
+        long lsn = Math.max(fromLsn, startLsn);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(position(lsn))), 1024 * 1024));
+        try {
+            while (true) {
+                int size;
+                int checksum;
+                try {
+                    size = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return lsn;
+                }
+                if (size <= 0 || position(lsn) + RECORD_HEADER + size > channel.size()) {
+                    return lsn;
+                }
+                byte[] data = new byte[size];
+                try {
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    return lsn;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    return lsn;
+                }
+                consumer.accept(LogRecord.parse(ByteBuffer.wrap(data), lsn));
+                lsn += RECORD_HEADER + size;
+            }
+        } finally {
+            channel.position(0);
+        }
+    }
+
+    /**
+     * 清空日志，只能在恢复完成、所有的修改都已经写入数据文件之后调用
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            if (buffer.size() > 0 || flushedLsn != nextLsn) {
+                throw new RuntimeException("还有日志没有落盘，不能清空.");
+            }
+            fileChannel.truncate(FILE_HEADER);
+            writeFully(fileChannel, header(0, NO_CHECKPOINT), 0);
+            fileChannel.force(true);
+            startLsn = 0;
+            checkpointLsn = NO_CHECKPOINT;
+            nextLsn = 0;
+            flushedLsn = 0;
+            requestedLsn = 0;
+            firstLsns.clear();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFlushedLsn() {
+        lock.lock();
+        try {
+            return flushedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getNextLsn() {
+        lock.lock();
+        try {
+            return nextLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getStartLsn() {
+        return startLsn;
+    }
+
+    public long getCheckpointLsn() {
+        return checkpointLsn;
+    }
+
+    /**
+     * 检查点之后可以回收的前缀超过这个大小才替换文件，0 表示每个检查点都回收
+     */
+    public void setRecycleBytes(long recycleBytes) {
+        this.recycleBytes = recycleBytes;
+    }
+
+    /**
+     * 回收前缀的次数
+     */
+    public long getRecycleCount() {
+        return recycleCount.get();
+    }
+
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    public void close() {
+        checkpointer.stop();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            hasWork.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+            fileChannel.close();
+            file.close();
+        } catch (InterruptedException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
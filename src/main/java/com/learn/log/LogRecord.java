@@ -0,0 +1,258 @@
+package com.learn.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 日志记录
+ * 页相关的记录是物理日志，记录了哪个文件的哪一页的哪个位置写入了什么内容
+ * [type][xid]...
+ * 页相关的记录都有 [file][pageNo][slot][offset]
+ * PAGE_INIT [type][xid][file][pageNo][0][size]                 新申请的页
+ * INSERT    [type][xid][file][pageNo][slot][offset][after]     把记录放到slot中，offset是记录在页内的位置
+ * UPDATE    [type][xid][file][pageNo][slot][offset][before][after] 修改记录的一部分，offset是记录内的偏移量
+ * FREE      [type][xid][file][pageNo][slot][0]                 释放记录
+ * PAGE_IMAGE [type][xid][file][pageNo][0][0][after]            页整理之后整页的内容
+ * COMMIT    [type][xid]
+ * ABORT     [type][xid]
+ * CHECKPOINT [type][xid][redoLsn][undoLsn]               检查点，redoLsn之前的修改都已经写入数据文件，
+ *                                                        undoLsn之前没有还需要撤销的修改
+ * file 由 [size][data] 组成，是数据库目录下的文件名，例如 test.idb
+ * @author peiyou
+ * @version 1.0
+ * @className LogRecord
+ * @date 2026/10/17 15:10
+ **/
+public class LogRecord {
+
+    public static final byte PAGE_INIT = 0;
+    public static final byte INSERT = 1;
+    public static final byte UPDATE = 2;
+    public static final byte COMMIT = 3;
+    public static final byte ABORT = 4;
+    public static final byte CHECKPOINT = 5;
+    public static final byte FREE = 6;
+    public static final byte PAGE_IMAGE = 7;
+
+    private byte type;
+
+    private long xid;
+
+    private String fileName;
+
+    private int pageNo;
+
+    private int slot;
+
+    // PAGE_INIT 时是页的大小，INSERT 时是页内偏移量，UPDATE 时是记录内的偏移量
+    private int offset;
+
+    private byte[] before;
+
+    private byte[] after;
+
+    // 检查点记录中，恢复时重做开始的位置
+    private long redoLsn;
+
+    // 检查点记录中，检查点开始时还没有结束的事务最早的一条修改，恢复时从这里开始分析
+    private long undoLsn;
+
+    // 在日志文件中的开始位置，只有从文件中读出来的记录才有
+    private long lsn;
+
+    private LogRecord() {
+    }
+
+    public static LogRecord pageInit(String fileName, int pageNo, int size) {
+        LogRecord record = new LogRecord();
+        record.type = PAGE_INIT;
+        record.fileName = fileName;
+        record.pageNo = pageNo;
+        record.offset = size;
+        return record;
+    }
+
+    public static LogRecord insert(long xid, String fileName, int pageNo, int slot, int offset, byte[] data) {
+        LogRecord record = new LogRecord();
+        record.type = INSERT;
+        record.xid = xid;
+        record.fileName = fileName;
+        record.pageNo = pageNo;
+        record.slot = slot;
+        record.offset = offset;
+        record.after = data;
+        return record;
+    }
+
+    public static LogRecord update(long xid, String fileName, int pageNo, int slot, int offset, byte[] before, byte[] after) {
+        LogRecord record = new LogRecord();
+        record.type = UPDATE;
+        record.xid = xid;
+        record.fileName = fileName;
+        record.pageNo = pageNo;
+        record.slot = slot;
+        record.offset = offset;
+        record.before = before;
+        record.after = after;
+        return record;
+    }
+
+    /**
+     * 释放记录不需要撤销（释放的都是已经没有事务能看到的记录），用超级事务记录
+     */
+    public static LogRecord free(String fileName, int pageNo, int slot) {
+        LogRecord record = new LogRecord();
+        record.type = FREE;
+        record.fileName = fileName;
+        record.pageNo = pageNo;
+        record.slot = slot;
+        return record;
+    }
+
+    public static LogRecord pageImage(String fileName, int pageNo, byte[] image) {
+        LogRecord record = new LogRecord();
+        record.type = PAGE_IMAGE;
+        record.fileName = fileName;
+        record.pageNo = pageNo;
+        record.after = image;
+        return record;
+    }
+
+    public static LogRecord commit(long xid) {
+        LogRecord record = new LogRecord();
+        record.type = COMMIT;
+        record.xid = xid;
+        return record;
+    }
+
+    public static LogRecord abort(long xid) {
+        LogRecord record = new LogRecord();
+        record.type = ABORT;
+        record.xid = xid;
+        return record;
+    }
+
+    public static LogRecord checkpoint(long redoLsn, long undoLsn) {
+        LogRecord record = new LogRecord();
+        record.type = CHECKPOINT;
+        record.redoLsn = redoLsn;
+        record.undoLsn = undoLsn;
+        return record;
+    }
+
+    public byte[] toBytes() {
+        byte[] name = fileName == null ? new byte[0] : fileName.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + Long.BYTES;
+        switch (type) {
+            case PAGE_INIT, FREE -> length += Integer.BYTES + name.length + Integer.BYTES * 3;
+            case INSERT, PAGE_IMAGE -> length += Integer.BYTES + name.length + Integer.BYTES * 4 + after.length;
+            case UPDATE -> length += Integer.BYTES + name.length + Integer.BYTES * 5 + before.length + after.length;
+            case CHECKPOINT -> length += Long.BYTES * 2;
+            default -> {
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(type).putLong(xid);
+        if (isPageRecord(type)) {
+            buffer.putInt(name.length).put(name);
+            buffer.putInt(pageNo).putInt(slot).putInt(offset);
+        }
+        if (type == UPDATE) {
+            buffer.putInt(before.length).put(before);
+        }
+        if (type == INSERT || type == UPDATE || type == PAGE_IMAGE) {
+            buffer.putInt(after.length).put(after);
+        }
+        if (type == CHECKPOINT) {
+            buffer.putLong(redoLsn).putLong(undoLsn);
+        }
+        return buffer.array();
+    }
+
+    public static LogRecord parse(ByteBuffer buffer, long lsn) {
+        LogRecord record = new LogRecord();
+        record.lsn = lsn;
+        record.type = buffer.get();
+        record.xid = buffer.getLong();
+        byte type = record.type;
+        if (type > PAGE_IMAGE || type < PAGE_INIT) {
+            throw new RuntimeException("不支持的日志类型：" + type);
+        }
+        if (isPageRecord(type)) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            record.fileName = new String(name, StandardCharsets.UTF_8);
+            record.pageNo = buffer.getInt();
+            record.slot = buffer.getInt();
+            record.offset = buffer.getInt();
+        }
+        if (type == UPDATE) {
+            record.before = new byte[buffer.getInt()];
+            buffer.get(record.before);
+        }
+        if (type == INSERT || type == UPDATE || type == PAGE_IMAGE) {
+            record.after = new byte[buffer.getInt()];
+            buffer.get(record.after);
+        }
+        if (type == CHECKPOINT) {
+            record.redoLsn = buffer.getLong();
+            record.undoLsn = buffer.getLong();
+        }
+        return record;
+    }
+
+    /**
+     * 是否是修改页的记录，恢复时需要重做
+     */
+    public static boolean isPageRecord(byte type) {
+        return type == PAGE_INIT || type == INSERT || type == UPDATE || type == FREE || type == PAGE_IMAGE;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getPageNo() {
+        return pageNo;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getSize() {
+        return offset;
+    }
+
+    public byte[] getBefore() {
+        return before;
+    }
+
+    public byte[] getAfter() {
+        return after;
+    }
+
+    public long getRedoLsn() {
+        return redoLsn;
+    }
+
+    public long getUndoLsn() {
+        return undoLsn;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+}
@@ -0,0 +1,471 @@
+package com.learn.log;
+
+import com.learn.page.Page;
+import com.learn.transaction.TransactionManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 崩溃恢复，在数据库打开、表还没有加载之前执行
+ * 1、分析：按日志文件头找到最后一个检查点，从它记录的 undoLsn 开始顺序读取日志，
+ *    找出有提交记录和回滚记录的事务，没有结束的事务的页修改留下来用于撤销。
+ *    undoLsn 之前结束的事务，状态已经由检查点刷到 .xid 文件
+ * 2、重做：从最后一个检查点记录的 redoLsn 开始，页的修改按 (文件, 页号) 分给多个线程，
+ *    同一页的记录只由一个线程按日志顺序重放，不同页之间没有依赖，可以并行。
+ *    重做不区分事务，所有的修改都重放一遍（包括之后要撤销的）
+ * 3、撤销：没有结束的事务按日志倒序撤销，通过槽找到记录当前的位置，UPDATE 写回修改前的内容，INSERT 把数据项标记为无效
+ * 4、修正 .xid 文件：有提交记录的事务标记为已提交，仍然是活跃状态的事务标记为已回滚
+ * 最后把数据文件刷到磁盘并清空日志。
+ * @author peiyou
+ * @version 1.0
+ * @className Recovery
+ * @date 2026/10/18 09:20
+ **/
+public class Recovery {
+
+    // 每个线程一次从队列里取出的记录数
+    private static final int BATCH_SIZE = 1024;
+
+    // 每个线程的队列里最多积压的批次，读日志比重放快时阻塞读线程
+    private static final int QUEUE_BATCHES = 16;
+
+    // 每个线程最多缓存的页数，超过后写回最早用过的页
+    private static final int CACHED_PAGES = 1024;
+
+    // 数据项开头的有效标志位，撤销插入时置为0，见 DataItem
+    private static final byte INVALID = 0;
+
+    private final String path;
+
+    private final LogManager logManager;
+
+    private final TransactionManager transactionManager;
+
+    private final int threads;
+
+    // 恢复期间打开的数据文件，文件名 -> channel
+    private final Map<String, FileChannel> files;
+
+    private final List<RandomAccessFile> opened;
+
+    // 最后一个检查点记录的重做开始位置
+    private long redoLsn;
+
+    // 分析开始的位置
+    private long analysisLsn;
+
+    private long redoBytes;
+
+    private long redoCount;
+
+    private long undoCount;
+
+    private long redoNanos;
+
+    private long totalNanos;
+
+    private Recovery(String path, LogManager logManager, TransactionManager transactionManager, int threads) {
+        this.path = path;
+        this.logManager = logManager;
+        this.transactionManager = transactionManager;
+        this.threads = threads;
+        this.files = new ConcurrentHashMap<>();
+        this.opened = new ArrayList<>();
+    }
+
+    public static Recovery recover(String path, LogManager logManager, TransactionManager transactionManager) {
+        return recover(path, logManager, transactionManager, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads 重做使用的线程数
+     * @return 日志为空时不需要恢复，返回null
+     */
+    public static Recovery recover(String path, LogManager logManager, TransactionManager transactionManager, int threads) {
+        if (logManager.getNextLsn() == logManager.getStartLsn()) {
+            return null;
+        }
+        Recovery recovery = new Recovery(path, logManager, transactionManager, threads);
+        try {
+            recovery.run();
+            return recovery;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("恢复失败.", e);
+        } finally {
+            recovery.closeFiles();
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        long begin = System.nanoTime();
+        Set<Long> committed = new HashSet<>();
+        // 还没有结束的事务 -> 它的页修改记录
+        Map<Long, List<LogRecord>> pending = new HashMap<>();
+
+        // 没有检查点时从头开始，检查点之前开始、还没有结束的事务从它的第一条修改开始
+        analysisLsn = logManager.getStartLsn();
+        redoLsn = analysisLsn;
+        if (logManager.getCheckpointLsn() != LogManager.NO_CHECKPOINT) {
+            LogRecord checkpoint = logManager.read(logManager.getCheckpointLsn());
+            if (checkpoint == null || checkpoint.getType() != LogRecord.CHECKPOINT) {
+                throw new RuntimeException("日志文件头中的检查点位置不对：" + logManager.getCheckpointLsn());
+            }
+            redoLsn = checkpoint.getRedoLsn();
+            analysisLsn = checkpoint.getUndoLsn();
+        }
+        long end = logManager.forEach(analysisLsn, record -> {
+            switch (record.getType()) {
+                case LogRecord.COMMIT -> {
+                    committed.add(record.getXid());
+                    pending.remove(record.getXid());
+                }
+                case LogRecord.ABORT -> pending.remove(record.getXid());
+                // 文件头还没有记下的检查点，重做可以从更后面开始
+                case LogRecord.CHECKPOINT -> redoLsn = Math.max(redoLsn, record.getRedoLsn());
+                case LogRecord.INSERT, LogRecord.UPDATE -> {
+                    if (record.getXid() != Page.SUPER_XID && !committed.contains(record.getXid())) {
+                        pending.computeIfAbsent(record.getXid(), k -> new ArrayList<>()).add(record);
+                    }
+                }
+            }
+        });
+        redoBytes = end - redoLsn;
+
+        List<RedoWorker> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            RedoWorker worker = new RedoWorker(i);
+            worker.start();
+            workers.add(worker);
+        }
+        List<List<LogRecord>> batches = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            batches.add(new ArrayList<>(BATCH_SIZE));
+        }
+
+        // 只重做最后一个检查点之后的修改，之前的修改已经在数据文件中
+        AtomicReference<InterruptedException> interrupted = new AtomicReference<>();
+        logManager.forEach(redoLsn, record -> {
+            byte type = record.getType();
+            if (!LogRecord.isPageRecord(type)) {
+                return;
+            }
+            redoCount++;
+            int index = partition(record.getFileName(), record.getPageNo());
+            List<LogRecord> batch = batches.get(index);
+            batch.add(record);
+            if (batch.size() >= BATCH_SIZE) {
+                try {
+                    workers.get(index).queue.put(batch);
+                } catch (InterruptedException e) {
+                    interrupted.set(e);
+                }
+                batches.set(index, new ArrayList<>(BATCH_SIZE));
+            }
+        });
+        if (interrupted.get() != null) {
+            throw interrupted.get();
+        }
+        for (int i = 0; i < threads; i++) {
+            RedoWorker worker = workers.get(i);
+            if (!batches.get(i).isEmpty()) {
+                worker.queue.put(batches.get(i));
+            }
+            // 空的批次表示结束
+            worker.queue.put(new ArrayList<>());
+        }
+        for (RedoWorker worker : workers) {
+            worker.join();
+            if (worker.error != null) {
+                throw new RuntimeException("重做失败.", worker.error);
+            }
+        }
+        redoNanos = System.nanoTime() - begin;
+
+        undo(pending);
+        fixTransactions(committed, pending.keySet());
+        for (FileChannel channel : files.values()) {
+            channel.force(false);
+        }
+        transactionManager.sync();
+        // 所有的修改都已经在数据文件中，日志可以清空了
+        logManager.reset();
+        totalNanos = System.nanoTime() - begin;
+    }
+
+    public long getRedoLsn() {
+        return redoLsn;
+    }
+
+    public long getAnalysisLsn() {
+        return analysisLsn;
+    }
+
+    /**
+     * 重做的日志字节数，和重做耗时一起可以算出重做的速度
+     */
+    public long getRedoBytes() {
+        return redoBytes;
+    }
+
+    public long getRedoCount() {
+        return redoCount;
+    }
+
+    public long getUndoCount() {
+        return undoCount;
+    }
+
+    public long getRedoNanos() {
+        return redoNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    private int partition(String fileName, int pageNo) {
+        return Math.floorMod(Objects.hash(fileName, pageNo), threads);
+    }
+
+    /**
+     * 按日志倒序撤销没有结束的事务，撤销的记录很少，单线程完成
+     */
+    private void undo(Map<Long, List<LogRecord>> pending) throws IOException {
+        List<LogRecord> records = new ArrayList<>();
+        for (Map.Entry<Long, List<LogRecord>> entry : pending.entrySet()) {
+            // 日志被清空过，.xid 中已经是提交状态的事务不撤销
+            if (!isCommitted(entry.getKey())) {
+                records.addAll(entry.getValue());
+            }
+        }
+        records.sort((a, b) -> Long.compare(b.getLsn(), a.getLsn()));
+        for (LogRecord record : records) {
+            FileChannel channel = channel(record.getFileName());
+            if (channel == null || (record.getType() != LogRecord.UPDATE && record.getType() != LogRecord.INSERT)) {
+                continue;
+            }
+            // 记录在页内的位置要通过槽目录找，整理页之后位置可能已经变了
+            long pageOffset = Page.pageOffset(record.getPageNo());
+            ByteBuffer page = readPage(channel, pageOffset);
+            int recordOffset = Page.slotOffset(page, record.getSlot());
+            if (recordOffset == 0) {
+                continue;
+            }
+            if (record.getType() == LogRecord.UPDATE) {
+                page.put(recordOffset + record.getOffset(), record.getBefore());
+            } else {
+                page.put(recordOffset, INVALID);
+            }
+            writeFully(channel, page.position(0), pageOffset);
+            undoCount++;
+        }
+    }
+
+    private boolean isCommitted(long xid) {
+        return xid <= transactionManager.getXidCounter() && transactionManager.isCommitted(xid);
+    }
+
+    private void fixTransactions(Set<Long> committed, Set<Long> undone) {
+        long xidCounter = transactionManager.getXidCounter();
+        for (long xid : committed) {
+            if (xid <= xidCounter) {
+                transactionManager.recoverXID(xid, true);
+            }
+        }
+        for (long xid : undone) {
+            if (xid <= xidCounter && !transactionManager.isCommitted(xid)) {
+                transactionManager.recoverXID(xid, false);
+            }
+        }
+        // 没有写过数据的活跃事务也一并结束，冻结的事务不再有状态
+        for (long xid = transactionManager.getFrozenXid(); xid <= xidCounter; xid++) {
+            if (transactionManager.isActive(xid)) {
+                transactionManager.recoverXID(xid, false);
+            }
+        }
+    }
+
+    private FileChannel channel(String fileName) throws IOException {
+        FileChannel channel = files.get(fileName);
+        if (channel != null) {
+            return channel;
+        }
+        synchronized (opened) {
+            channel = files.get(fileName);
+            if (channel == null) {
+                File file = new File(path, fileName);
+                if (!file.exists()) {
+                    // 表已经被删除，它的日志不需要重放
+                    return null;
+                }
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                opened.add(raf);
+                channel = raf.getChannel();
+                files.put(fileName, channel);
+            }
+            return channel;
+        }
+    }
+
+    private void closeFiles() {
+        synchronized (opened) {
+            for (RandomAccessFile raf : opened) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // 关闭失败不影响恢复的结果
+                }
+            }
+            opened.clear();
+            files.clear();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("读取页失败，位置：" + position);
+            }
+        }
+    }
+
+    private static ByteBuffer readPage(FileChannel channel, long offset) throws IOException {
+        ByteBuffer sizeBuf = ByteBuffer.allocate(Integer.BYTES);
+        readFully(channel, sizeBuf, offset);
+        ByteBuffer page = ByteBuffer.allocate(sizeBuf.getInt(0));
+        readFully(channel, page, offset);
+        return page;
+    }
+
+    /**
+     * 重做线程，只处理分给自己的页，页在内存中重放完再写回文件
+     */
+    private class RedoWorker extends Thread {
+
+        private final BlockingQueue<List<LogRecord>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+
+        // 最近用过的页，按访问顺序排列
+        private final LinkedHashMap<PageKey, ByteBuffer> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+        private Throwable error;
+
+        RedoWorker(int index) {
+            super("recovery-redo-" + index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<LogRecord> batch = queue.take();
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    if (error == null) {
+                        for (LogRecord record : batch) {
+                            redo(record);
+                        }
+                    }
+                }
+                if (error == null) {
+                    for (Map.Entry<PageKey, ByteBuffer> entry : pages.entrySet()) {
+                        writeBack(entry.getKey(), entry.getValue());
+                    }
+                }
+            } catch (Throwable e) {
+                error = e;
+                // 继续消费队列，不让读日志的线程阻塞
+                drain();
+            }
+        }
+
+        private void drain() {
+            try {
+                while (!queue.take().isEmpty()) {
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void redo(LogRecord record) throws IOException {
+            FileChannel channel = channel(record.getFileName());
+            if (channel == null) {
+                return;
+            }
+            PageKey key = new PageKey(record.getFileName(), record.getPageNo());
+            switch (record.getType()) {
+                case LogRecord.PAGE_INIT -> {
+                    // 新页从空白开始，之后的修改都会在日志中
+                    ByteBuffer page = ByteBuffer.allocate(record.getSize());
+                    Page.init(page, record.getSize());
+                    cache(key, page);
+                }
+                case LogRecord.PAGE_IMAGE -> cache(key, ByteBuffer.wrap(record.getAfter().clone()));
+                case LogRecord.INSERT -> Page.putRecord(load(key, channel), record.getSlot(), record.getOffset(), record.getAfter());
+                case LogRecord.UPDATE -> {
+                    ByteBuffer page = load(key, channel);
+                    // 文件中的页可能比这条记录新：数据项之后被释放，页又被写回了，这时槽已经不存在，
+                    // 按0算会把修改写到页头上
+                    int recordOffset = Page.slotOffset(page, record.getSlot());
+                    if (recordOffset != 0) {
+                        page.put(recordOffset + record.getOffset(), record.getAfter());
+                    }
+                }
+                case LogRecord.FREE -> Page.freeSlot(load(key, channel), record.getSlot());
+                default -> {
+                }
+            }
+        }
+
+        private ByteBuffer load(PageKey key, FileChannel channel) throws IOException {
+            ByteBuffer page = pages.get(key);
+            if (page != null) {
+                return page;
+            }
+            page = readPage(channel, Page.pageOffset(key.pageNo));
+            cache(key, page);
+            return page;
+        }
+
+        private void cache(PageKey key, ByteBuffer page) throws IOException {
+            pages.put(key, page);
+            if (pages.size() > CACHED_PAGES) {
+                Iterator<Map.Entry<PageKey, ByteBuffer>> iterator = pages.entrySet().iterator();
+                Map.Entry<PageKey, ByteBuffer> eldest = iterator.next();
+                iterator.remove();
+                writeBack(eldest.getKey(), eldest.getValue());
+            }
+        }
+
+        private void writeBack(PageKey key, ByteBuffer page) throws IOException {
+            writeFully(files.get(key.fileName), page.duplicate().position(0), Page.pageOffset(key.pageNo));
+        }
+    }
+
+    private record PageKey(String fileName, int pageNo) {
+    }
+}
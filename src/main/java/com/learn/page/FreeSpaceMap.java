@@ -0,0 +1,149 @@
+package com.learn.page;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 持久化的空闲空间表，每张表一个 {tableName}.fsm 文件
+ * 每个数据页在FSM页中占一个字节，记录它的空闲空间所在的档位（每档 STEP 个字节），
+ * 每个FSM页只有槽0一条记录，第 n 个数据页对应第 (n-1)/PAGES_PER_FSM_PAGE+1 个FSM页的记录中 (n-1)%PAGES_PER_FSM_PAGE 的位置。
+ * 打开表时不读取，第一次找不到合适的页时才按顺序把FSM页一页一页地载入内存中的 PageIndex，
+ * 之后插入数据时同时更新 PageIndex 和FSM页。
+ * FSM只是一个提示，不记录日志，崩溃后可能不准确，使用前需要检查页实际的空闲空间。
+ * @author peiyou
+ * @version 1.0
+ * @className FreeSpaceMap
+ * @date 2026/10/18 15:30
+ **/
+public class FreeSpaceMap {
+
+    // 每个FSM页可以记录的数据页数
+    public static final int PAGES_PER_FSM_PAGE = Page.SIZE - Page.DATA_OFFSET - Page.SLOT_SIZE;
+
+    // 一个档位的字节数，一个字节可以表示256档
+    private static final int STEP = Page.SIZE / 256;
+
+    private final PageIndex pageIndex;
+
+    // 为空时只在内存中记录
+    private final PageCache pageCache;
+
+    // FSM文件中的页数
+    private int fsmPages;
+
+    // 已经载入 PageIndex 的FSM页数，这些页记录的数据页才会出现在 PageIndex 中
+    private int loadedPages;
+
+    private final Lock lock;
+
+    /**
+     * 只在内存中记录空闲空间，重启后丢失
+     */
+    public FreeSpaceMap() {
+        this(null, 0);
+    }
+
+    public FreeSpaceMap(PageCache pageCache, int fsmPages) {
+        this.pageIndex = new PageIndex();
+        this.pageCache = pageCache;
+        this.fsmPages = fsmPages;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * 选出一个空闲空间可能不小于size的数据页，选出的页在 update 之前不会再被选中
+     */
+    public PageInfo select(int size) throws Exception {
+        while (true) {
+            PageInfo pageInfo = pageIndex.select(size);
+            if (pageInfo != null || !loadNext()) {
+                return pageInfo;
+            }
+        }
+    }
+
+    /**
+     * 更新数据页的空闲空间
+     */
+    public void update(int pageNo, int freeSize) throws Exception {
+        lock.lock();
+        try {
+            if (pageCache != null) {
+                writeBucket(pageNo, freeSize);
+            }
+            if (pageCache == null || fsmPageNo(pageNo) <= loadedPages) {
+                pageIndex.add(pageNo, freeSize);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 载入下一个FSM页，没有可以载入的页时返回false
+     */
+    private boolean loadNext() throws Exception {
+        lock.lock();
+        try {
+            if (pageCache == null || loadedPages >= fsmPages) {
+                return false;
+            }
+            int fsmPageNo = loadedPages + 1;
+            Page page = pageCache.get(fsmPageNo);
+            try {
+                int firstPageNo = (fsmPageNo - 1) * PAGES_PER_FSM_PAGE + 1;
+                byte[] buckets = new byte[PAGES_PER_FSM_PAGE];
+                page.readRecord(0, 0, buckets);
+                for (int i = 0; i < PAGES_PER_FSM_PAGE; i++) {
+                    int bucket = Byte.toUnsignedInt(buckets[i]);
+                    if (bucket > 0) {
+                        pageIndex.add(firstPageNo + i, bucket * STEP);
+                    }
+                }
+            } finally {
+                page.release();
+            }
+            loadedPages = fsmPageNo;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBucket(int pageNo, int freeSize) throws Exception {
+        int fsmPageNo = fsmPageNo(pageNo);
+        while (fsmPages < fsmPageNo) {
+            // 新的FSM页的记录内容全为0，不需要载入
+            Page page = pageCache.get(pageCache.newPage(Page.SIZE).getPageNo());
+            try {
+                page.write(new byte[PAGES_PER_FSM_PAGE]);
+            } finally {
+                page.release();
+            }
+            if (loadedPages == fsmPages) {
+                loadedPages++;
+            }
+            fsmPages++;
+        }
+        byte bucket = (byte) Math.min(255, freeSize / STEP);
+        int offset = (pageNo - 1) % PAGES_PER_FSM_PAGE;
+        Page page = pageCache.get(fsmPageNo);
+        try {
+            byte[] old = new byte[1];
+            page.readRecord(0, offset, old);
+            if (old[0] != bucket) {
+                page.update(0, offset, new byte[]{bucket});
+            }
+        } finally {
+            page.release();
+        }
+    }
+
+    private static int fsmPageNo(int pageNo) {
+        return (pageNo - 1) / PAGES_PER_FSM_PAGE + 1;
+    }
+
+    public int getLoadedPages() {
+        return loadedPages;
+    }
+}
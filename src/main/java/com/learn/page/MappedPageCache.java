@@ -0,0 +1,171 @@
+package com.learn.page;
+
+import com.learn.log.LogManager;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存映射方式的PageCache
+ * 表文件按SEGMENT_SIZE分段映射，加载页时直接返回映射上的一个视图，不再申请新的数组复制内容，
+ * 操作系统的页缓存就充当了缓冲池。
+ * 每段只映射到当前的文件长度，newPage让文件变长后，用到新的位置时再重新映射这一段。
+ * 旧的映射和新的映射是同一份文件内容，已经拿到手的页不受影响。
+ * 跨越两段的大页退回到普通的文件读写。
+ * 没有日志时按 READ_WRITE 映射，修改直接落在文件的页缓存上，写回时只需要 force。
+ * 挂了日志时按 PRIVATE 映射：修改只在进程私有的副本上，操作系统不会把它写回文件，
+ * 和普通的页一样，写回时先等页上的日志落盘，再用带位置的写把整页写入文件，保证先写日志的顺序。
+ * 没有修改过的映射页能看到之后写入文件的内容；修改过的页的副本在这一段重新映射之前一直占用内存。
+ * 日志要在读取页之前挂上。
+ * @author peiyou
+ * @version 1.0
+ * @className MappedPageCache
+ * @date 2026/10/17 14:05
+ **/
+public class MappedPageCache extends PageCache {
+
+    // 每段映射64MB
+    public static final long SEGMENT_SIZE = 4096L * Page.SIZE;
+
+    // 映射的页在堆里只有一个很小的对象，按这个大小计算缓冲池的占用
+    private static final long MAPPED_PAGE_FOOTPRINT = 128;
+
+    private final List<MappedByteBuffer> segments;
+
+    private final Lock mapLock;
+
+    // 挂了日志时按 PRIVATE 映射
+    private volatile boolean logged;
+
+    public MappedPageCache(FileChannel fileChannel, int maxPageNo) {
+        this(fileChannel, maxPageNo, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MappedPageCache(FileChannel fileChannel, int maxPageNo, long bufferSize) {
+        super(fileChannel, maxPageNo, bufferSize);
+        this.segments = new ArrayList<>();
+        this.mapLock = new ReentrantLock();
+    }
+
+    /**
+     * 之后的映射都是 PRIVATE，已经按 READ_WRITE 映射过的段上的修改会绕过日志，所以要在读取页之前调用
+     */
+    @Override
+    public void attachLog(LogManager logManager, String fileName) {
+        mapLock.lock();
+        try {
+            if (!segments.isEmpty()) {
+                throw new RuntimeException("内存映射的页已经读取过，不能再挂日志.");
+            }
+            logged = true;
+        } finally {
+            mapLock.unlock();
+        }
+        super.attachLog(logManager, fileName);
+    }
+
+    @Override
+    public Page getForCache(long uid) throws Exception {
+        int pageNo = (int) uid;
+        long offset = Page.pageOffset(pageNo);
+        int inSegment = (int) (offset % SEGMENT_SIZE);
+        int size = segment(offset, Integer.BYTES).getInt(inSegment);
+        if (inSegment + size > SEGMENT_SIZE) {
+            return super.getForCache(uid);
+        }
+        MappedByteBuffer segment = segment(offset, size);
+        return Page.loadPage(segment.slice(inSegment, size), pageNo, this);
+    }
+
+    @Override
+    protected Page initPage(int pageNo, int size) {
+        // 先按普通方式写入文件，让文件变长
+        Page page = super.initPage(pageNo, size);
+        long offset = Page.pageOffset(pageNo);
+        int inSegment = (int) (offset % SEGMENT_SIZE);
+        if (inSegment + size > SEGMENT_SIZE) {
+            return page;
+        }
+        try {
+            MappedByteBuffer segment = segment(offset, size);
+            return Page.loadPage(segment.slice(inSegment, size), pageNo, this);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 没有日志时映射的页不需要写回，只需要把修改刷到磁盘
+     * 有日志时私有映射上的修改不会到达文件，和普通的页一样在日志落盘之后写回
+     */
+    @Override
+    protected void flushForCache(Page page) {
+        if (!page.isMapped() || logged) {
+            super.flushForCache(page);
+            return;
+        }
+        Lock pageLock = page.getPageLock();
+        pageLock.lock();
+        try {
+            if (page.isDirty()) {
+                getStats().recordWriteBack();
+                flushLog(page);
+                page.forceMapping();
+            }
+            page.setDirty(false);
+        } finally {
+            pageLock.unlock();
+        }
+    }
+
+    @Override
+    protected long sizeOf(Page page) {
+        return page.isMapped() ? MAPPED_PAGE_FOOTPRINT : page.size();
+    }
+
+    /**
+     * 获取offset所在的段，保证这一段至少映射到了 offset + length 的位置
+     */
+    private MappedByteBuffer segment(long offset, int length) throws IOException {
+        int index = (int) (offset / SEGMENT_SIZE);
+        long end = offset % SEGMENT_SIZE + length;
+        mapLock.lock();
+        try {
+            while (segments.size() <= index) {
+                segments.add(null);
+            }
+            MappedByteBuffer segment = segments.get(index);
+            if (segment == null || segment.capacity() < end) {
+                // 文件变长了，按现在的长度重新映射这一段
+                long start = index * SEGMENT_SIZE;
+                long mapSize = Math.min(SEGMENT_SIZE, fileChannel.size() - start);
+                if (mapSize < end) {
+                    throw new IOException("页超出了文件的范围，位置：" + offset);
+                }
+                FileChannel.MapMode mode = logged ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_WRITE;
+                segment = fileChannel.map(mode, start, mapSize);
+                segments.set(index, segment);
+            }
+            return segment;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mapLock.lock();
+        try {
+            // 映射在没有引用后由GC回收
+            segments.clear();
+        } finally {
+            mapLock.unlock();
+        }
+    }
+}
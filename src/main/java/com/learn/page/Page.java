@@ -1,11 +1,20 @@
 package com.learn.page;
 
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * [size][offset][data]
+ * 带槽目录的页
+ * [size][freeStart][slotCount][record0][record1]...      ...[slot1][slot0]
+ * 记录从页头之后向后追加，槽目录从页尾向前增长，每个槽 [offset][length]，offset为0表示槽是空闲的。
+ * 记录用槽号定位，uid = pageNo << 32 | slot，页内整理空间时记录会移动，但槽号不变。
+ * 记录被释放后留下的空洞在插入放不下时通过整理（把存活的记录依次挪到页头之后）回收。
+ * 页的内容可以是堆内的数组，也可以是内存映射文件中的一段
  * @author peiyou
  * @version 1.0
  * @className Page
@@ -15,14 +24,25 @@ public class Page {
     // 每页的前4个字节是页的长度
     public static final int SIZE_OFFSET = 0;
 
+    // 空闲空间的开始位置
     public static final int USE_OFFSET_SIZE = 4;
 
-    public static final int DATA_OFFSET = 8;
+    // 槽的个数（包括空闲的槽）
+    public static final int SLOT_COUNT_OFFSET = 8;
+
+    public static final int DATA_OFFSET = 12;
+
+    // 每个槽 [offset][length]
+    public static final int SLOT_SIZE = 8;
 
     // 普通页的大小为16kb，其它页肯定是16kb的整数倍
     public static final int SIZE = 16 * 1024;
 
-    private byte[] data;
+    // 不属于任何用户事务的修改（索引、表信息）用超级事务记录日志，总是当作已提交
+    public static final long SUPER_XID = 0;
+
+    // 所有读写都用绝对位置，不依赖buffer的position
+    private ByteBuffer data;
 
     // 是否为脏页
     private boolean dirty;
@@ -32,6 +52,12 @@ public class Page {
 
     private int size;
 
+    // 存活的记录占用的字节数，和offset一起算出可以整理出来的空洞
+    private int liveBytes;
+
+    // 空闲的槽的个数，插入时优先复用
+    private int freeSlots;
+
     /**
      * 写入数据时需要锁定
      */
@@ -41,14 +67,19 @@ public class Page {
 
     private PageCache pageCache;
 
+    private long lsn;
+
     /**
      *
      * @param size 需要的大小
      * @param data 申请下来的容器
      */
     public Page(int size, byte[] data, int pageNo, PageCache pageCache) {
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).putInt(size);
-        System.arraycopy(buffer.array(), 0, data, SIZE_OFFSET, 4);
+        this(size, ByteBuffer.wrap(data), pageNo, pageCache);
+    }
+
+    public Page(int size, ByteBuffer data, int pageNo, PageCache pageCache) {
+        init(data, size);
         pageLock = new ReentrantLock();
         this.offset = DATA_OFFSET;
         this.data = data;
@@ -56,71 +87,305 @@ public class Page {
         this.pageNo = pageNo;
         this.pageCache = pageCache;
         this.size = size;
-        setOffset();
     }
 
-    private Page(byte[] data, int pageNo, PageCache pageCache) {
+    private Page(ByteBuffer data, int pageNo, PageCache pageCache) {
         this.data = data;
         this.pageNo = pageNo;
         this.pageCache = pageCache;
         this.dirty = false;
-        this.size = data.length;
+        this.size = data.capacity();
         pageLock = new ReentrantLock();
     }
 
     public static Page loadPage(byte[] data, int pageNo, PageCache pageCache) {
+        return loadPage(ByteBuffer.wrap(data), pageNo, pageCache);
+    }
+
+    /**
+     * 在已有的内容上创建页，内容不会被复制
+     */
+    public static Page loadPage(ByteBuffer data, int pageNo, PageCache pageCache) {
         Page page = new Page(data, pageNo, pageCache);
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        int size = buffer.getInt();
-        page.offset = buffer.getInt();
+        page.offset = data.getInt(USE_OFFSET_SIZE);
+        page.countSlots();
         return page;
     }
+
+    private void countSlots() {
+        liveBytes = 0;
+        freeSlots = 0;
+        int slotCount = slotCount(data);
+        for (int slot = 0; slot < slotCount; slot++) {
+            int slotPos = slotPosition(size, slot);
+            if (data.getInt(slotPos) == 0) {
+                freeSlots++;
+            } else {
+                liveBytes += data.getInt(slotPos + Integer.BYTES);
+            }
+        }
+    }
+
+    /**
+     * 初始化一个空页的页头
+     */
+    public static void init(ByteBuffer data, int size) {
+        data.putInt(SIZE_OFFSET, size);
+        data.putInt(USE_OFFSET_SIZE, DATA_OFFSET);
+        data.putInt(SLOT_COUNT_OFFSET, 0);
+    }
+
+    public static int slotCount(ByteBuffer data) {
+        return data.getInt(SLOT_COUNT_OFFSET);
+    }
+
+    private static int slotPosition(int size, int slot) {
+        return size - (slot + 1) * SLOT_SIZE;
+    }
+
+    /**
+     * 记录在页内的位置，槽不存在或者空闲时返回0
+     */
+    public static int slotOffset(ByteBuffer data, int slot) {
+        if (slot < 0 || slot >= slotCount(data)) {
+            return 0;
+        }
+        return data.getInt(slotPosition(data.getInt(SIZE_OFFSET), slot));
+    }
+
+    /**
+     * 把记录放到指定的槽和位置，插入和重做插入都使用这个方法，保证结果一样
+     */
+    public static void putRecord(ByteBuffer data, int slot, int offset, byte[] record) {
+        int size = data.getInt(SIZE_OFFSET);
+        data.put(offset, record);
+        int slotPos = slotPosition(size, slot);
+        data.putInt(slotPos, offset);
+        data.putInt(slotPos + Integer.BYTES, record.length);
+        if (slot >= slotCount(data)) {
+            // 中间跳过的槽一定已经存在，这里只会是追加一个槽
+            data.putInt(SLOT_COUNT_OFFSET, slot + 1);
+        }
+        int end = offset + record.length;
+        if (data.getInt(USE_OFFSET_SIZE) < end) {
+            data.putInt(USE_OFFSET_SIZE, end);
+        }
+    }
+
+    /**
+     * 释放槽，记录占用的空间留到整理时回收
+     */
+    public static void freeSlot(ByteBuffer data, int slot) {
+        int slotPos = slotPosition(data.getInt(SIZE_OFFSET), slot);
+        data.putInt(slotPos, 0);
+        data.putInt(slotPos + Integer.BYTES, 0);
+    }
+
     /**
      * 写入内容，会更新页内偏移量<p/>
-     * 返回的值是写入时的开始位置
+     * 返回的值是记录所在的槽号
      * @param bytes
      * @return
      */
     public int write(byte[] bytes) {
+        return write(SUPER_XID, bytes);
+    }
+
+    /**
+     * 插入一条记录，并记录xid事务的插入日志
+     * 连续的空闲空间不够但是加上空洞够用时，先整理页
+     */
+    public int write(long xid, byte[] bytes) {
         pageLock.lock();
-        int startOffset = offset;
         try {
+            int slot = freeSlots > 0 ? findFreeSlot() : slotCount(data);
+            int slotEnd = slotPosition(size, slot);
+            if (slot < slotCount(data)) {
+                slotEnd = slotPosition(size, slotCount(data) - 1);
+            }
+            if (offset + bytes.length > slotEnd) {
+                compact();
+            }
+            if (offset + bytes.length > slotEnd) {
+                throw new RuntimeException("页空间不足，页号：" + pageNo);
+            }
             dirty = true;
-            System.arraycopy(bytes, 0, this.data, startOffset, bytes.length);
+            int startOffset = offset;
+            if (slot < slotCount(data)) {
+                freeSlots--;
+            }
+            putRecord(data, slot, startOffset, bytes);
             offset = startOffset + bytes.length;
-            setOffset();
+            liveBytes += bytes.length;
+            if (pageCache != null) {
+                setLsn(pageCache.logInsert(xid, pageNo, slot, startOffset, bytes));
+            }
+            return slot;
         } finally {
             pageLock.unlock();
         }
-        return startOffset;
+    }
+
+    private int findFreeSlot() {
+        int slotCount = slotCount(data);
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (data.getInt(slotPosition(size, slot)) == 0) {
+                return slot;
+            }
+        }
+        throw new RuntimeException("槽目录损坏，页号：" + pageNo);
+    }
+
+    /**
+     * 整理页：存活的记录按位置顺序挪到页头之后，槽号不变
+     * 整理会移动很多记录，直接记录整页的内容
+     */
+    private void compact() {
+        int slotCount = slotCount(data);
+        List<int[]> records = new ArrayList<>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            int slotPos = slotPosition(size, slot);
+            int recordOffset = data.getInt(slotPos);
+            if (recordOffset != 0) {
+                records.add(new int[]{slot, recordOffset, data.getInt(slotPos + Integer.BYTES)});
+            }
+        }
+        records.sort(Comparator.comparingInt(r -> r[1]));
+        int target = DATA_OFFSET;
+        for (int[] record : records) {
+            if (record[1] != target) {
+                byte[] bytes = new byte[record[2]];
+                data.get(record[1], bytes);
+                data.put(target, bytes);
+                data.putInt(slotPosition(size, record[0]), target);
+            }
+            target += record[2];
+        }
+        offset = target;
+        data.putInt(USE_OFFSET_SIZE, offset);
+        dirty = true;
+        if (pageCache != null) {
+            setLsn(pageCache.logImage(pageNo, getData()));
+        }
     }
 
     /**
      * 更新数据
      * @author Peiyou
      * @date 2023/7/14 09:20
-     * @param dataOffset
-     * @param updateData
+     * @param slot 记录所在的槽
+     * @param recordOffset 记录内的偏移量
      * @return
      */
-    public boolean update(int dataOffset, byte[] updateData) {
+    public boolean update(int slot, int recordOffset, byte[] updateData) {
+        return update(SUPER_XID, slot, recordOffset, updateData);
+    }
+
+    /**
+     * 更新记录的一部分，并记录xid事务的更新日志（包含修改前的内容，用于回滚）
+     * 日志中记录的是槽号和记录内的偏移量，整理页之后依然可以重做和撤销
+     */
+    public boolean update(long xid, int slot, int recordOffset, byte[] updateData) {
         pageLock.lock();
         try {
+            int position = recordPosition(slot) + recordOffset;
+            // 只能改写记录自身的字节，越过记录长度会覆盖相邻的记录
+            int recordLength = data.getInt(slotPosition(size, slot) + Integer.BYTES);
+            if (recordOffset < 0 || recordOffset + updateData.length > recordLength) {
+                throw new RuntimeException("更新超出记录范围，页号：" + pageNo + "，槽：" + slot);
+            }
             dirty = true;
-            System.arraycopy(updateData, 0, this.data, dataOffset, updateData.length);
+            byte[] before = null;
+            if (pageCache != null) {
+                before = new byte[updateData.length];
+                data.get(position, before);
+            }
+            data.put(position, updateData);
+            if (pageCache != null) {
+                setLsn(pageCache.logUpdate(xid, pageNo, slot, recordOffset, before, updateData));
+            }
         } finally {
             pageLock.unlock();
         }
         return true;
     }
 
-    public boolean isDirty() {
-        return dirty;
+    /**
+     * 释放一条记录，槽可以被之后的插入复用
+     */
+    public void free(int slot) {
+        pageLock.lock();
+        try {
+            int slotPos = slotPosition(size, slot);
+            if (slot >= slotCount(data) || data.getInt(slotPos) == 0) {
+                return;
+            }
+            dirty = true;
+            liveBytes -= data.getInt(slotPos + Integer.BYTES);
+            freeSlots++;
+            freeSlot(data, slot);
+            if (pageCache != null) {
+                setLsn(pageCache.logFree(pageNo, slot));
+            }
+        } finally {
+            pageLock.unlock();
+        }
     }
 
-    private void setOffset() {
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).putInt(offset);
-        System.arraycopy(buffer.array(), 0, data, USE_OFFSET_SIZE, 4);
+    private int recordPosition(int slot) {
+        int position = slotOffset(data, slot);
+        if (position == 0) {
+            throw new RuntimeException("记录不存在，页号：" + pageNo + "，槽：" + slot);
+        }
+        return position;
+    }
+
+    /**
+     * 读取记录中从recordOffset开始的dst.length个字节，和整理互斥
+     */
+    public void readRecord(int slot, int recordOffset, byte[] dst) {
+        pageLock.lock();
+        try {
+            data.get(recordPosition(slot) + recordOffset, dst);
+        } finally {
+            pageLock.unlock();
+        }
+    }
+
+    /**
+     * 槽中记录的长度，槽空闲时返回0
+     */
+    public int recordLength(int slot) {
+        pageLock.lock();
+        try {
+            if (slotOffset(data, slot) == 0) {
+                return 0;
+            }
+            return data.getInt(slotPosition(size, slot) + Integer.BYTES);
+        } finally {
+            pageLock.unlock();
+        }
+    }
+
+    public int slotCount() {
+        return slotCount(data);
+    }
+
+    private void setLsn(long lsn) {
+        if (lsn > this.lsn) {
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * 最后一次修改这个页的日志位置，页写回之前这个位置之前的日志必须落盘
+     */
+    public long getLsn() {
+        return lsn;
+    }
+
+    public boolean isDirty() {
+        return dirty;
     }
 
     /**
@@ -130,12 +395,71 @@ public class Page {
      * @param pageNo
      * @return
      */
-    public static int pageOffset(int pageNo) {
-        return (pageNo - 1) * SIZE;
+    public static long pageOffset(int pageNo) {
+        return (long) (pageNo - 1) * SIZE;
     }
 
+    /**
+     * 页的全部内容，堆内的页直接返回底层数组，映射的页返回一份拷贝
+     */
     public byte[] getData() {
-        return data;
+        if (data.hasArray()) {
+            return data.array();
+        }
+        byte[] copy = new byte[size];
+        data.get(0, copy);
+        return copy;
+    }
+
+    /**
+     * 页内容的一个视图，position为0，读取时不会复制整个页
+     */
+    public ByteBuffer getBuffer() {
+        return data.duplicate().position(0);
+    }
+
+    /**
+     * 从页内的dataOffset开始读取dst.length个字节
+     */
+    public void read(int dataOffset, byte[] dst) {
+        data.get(dataOffset, dst);
+    }
+
+    public byte getByte(int dataOffset) {
+        return data.get(dataOffset);
+    }
+
+    public int getInt(int dataOffset) {
+        return data.getInt(dataOffset);
+    }
+
+    public long getLong(int dataOffset) {
+        return data.getLong(dataOffset);
+    }
+
+    /**
+     * 内容是否来自内存映射
+     */
+    public boolean isMapped() {
+        return data instanceof MappedByteBuffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 把映射的页的修改刷到磁盘
+     */
+    void forceMapping() {
+        ((MappedByteBuffer) data).force();
+    }
+
+    /**
+     * 页级别的锁，写回磁盘时用来和页内的修改互斥
+     */
+    public Lock getPageLock() {
+        return pageLock;
     }
 
     public void setDirty(boolean dirty) {
@@ -154,17 +478,34 @@ public class Page {
         pageCache.release((long)this.pageNo);
     }
 
+    /**
+     * 有日志时修改已经由日志保证不丢失，页留给检查点和淘汰时写回，不在这里等待磁盘
+     */
     public void force() {
-        pageCache.releaseForCache(this);
-        this.dirty = false;
+        pageCache.forcePage(this);
     }
 
+    /**
+     * 下一条记录最多可以放多少字节（整理之后），需要新的槽时已经扣除了槽的大小
+     */
     public int freeSize() {
-        return size - offset;
+        pageLock.lock();
+        try {
+            int slotCount = slotCount(data);
+            int free = size - slotCount * SLOT_SIZE - DATA_OFFSET - liveBytes;
+            if (freeSlots == 0) {
+                free -= SLOT_SIZE;
+            }
+            return Math.max(0, free);
+        } finally {
+            pageLock.unlock();
+        }
     }
 
+    /**
+     * 空闲空间的开始位置
+     */
     public int getOffset() {
         return this.offset;
     }
 }
-
@@ -1,10 +1,17 @@
 package com.learn.page;
 
 import com.learn.cache.AbstractCache;
+import com.learn.log.CheckpointTarget;
+import com.learn.log.LogManager;
+import com.learn.log.LogRecord;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author peiyou
@@ -12,9 +19,12 @@ import java.nio.channels.FileChannel;
  * @className PageCache
  * @date 2023/7/12 13:17
  **/
-public class PageCache extends AbstractCache<Page> {
+public class PageCache extends AbstractCache<Page> implements CheckpointTarget {
 
-    private FileChannel fileChannel;
+    // 默认缓冲池大小 16MB
+    public static final long DEFAULT_BUFFER_SIZE = 16L * 1024 * 1024;
+
+    protected FileChannel fileChannel;
 
     // 当前的最大页面号，每次申请页的时候更新
     private int maxPageNo;
@@ -22,36 +32,103 @@ public class PageCache extends AbstractCache<Page> {
     // 创建了页，但是页未使用完，可以放在这里
     private PageIndex pageIndex;
 
+    // 只保护maxPageNo的分配，页的读写不需要这个锁
+    private final Lock allocLock;
+
+    // 预写日志，为空时不记日志，每次写回都fsync
+    private LogManager logManager;
+
+    // 日志里记录的文件名
+    private String fileName;
+
     public PageCache(FileChannel fileChannel, int maxPageNo) {
-        super();
+        this(fileChannel, maxPageNo, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize 缓冲池可以使用的内存大小（字节），引用数为0的页会一直驻留直到超过这个大小
+     */
+    public PageCache(FileChannel fileChannel, int maxPageNo, long bufferSize) {
+        super(bufferSize);
         this.fileChannel = fileChannel;
         this.maxPageNo = maxPageNo;
         pageIndex = new PageIndex();
+        allocLock = new ReentrantLock();
+    }
+
+
+    /**
+     * 页的修改记录到预写日志中，之后写回页时不再需要每页fsync
+     * 同时由日志的检查点线程负责定期写回脏页
+     * @param fileName 数据库目录下的文件名，恢复时用来找到文件
+     */
+    public void attachLog(LogManager logManager, String fileName) {
+        this.logManager = logManager;
+        this.fileName = fileName;
+        logManager.getCheckpointer().register(this);
     }
 
+    /**
+     * 没有日志时只能立即写回，有日志时什么都不做
+     */
+    void forcePage(Page page) {
+        if (logManager == null) {
+            releaseForCache(page);
+        }
+    }
+
+    /**
+     * 写回页之前保证页上的修改日志已经落盘
+     */
+    protected void flushLog(Page page) {
+        if (logManager != null) {
+            logManager.flush(page.getLsn());
+        }
+    }
+
+    long logInsert(long xid, int pageNo, int slot, int offset, byte[] data) {
+        if (logManager == null) {
+            return 0;
+        }
+        return logManager.append(LogRecord.insert(xid, fileName, pageNo, slot, offset, data));
+    }
+
+    long logUpdate(long xid, int pageNo, int slot, int offset, byte[] before, byte[] after) {
+        if (logManager == null) {
+            return 0;
+        }
+        return logManager.append(LogRecord.update(xid, fileName, pageNo, slot, offset, before, after));
+    }
+
+    long logFree(int pageNo, int slot) {
+        if (logManager == null) {
+            return 0;
+        }
+        return logManager.append(LogRecord.free(fileName, pageNo, slot));
+    }
+
+    long logImage(int pageNo, byte[] image) {
+        if (logManager == null) {
+            return 0;
+        }
+        return logManager.append(LogRecord.pageImage(fileName, pageNo, image.clone()));
+    }
 
     /**
      * 当资源不在缓存时的获取行为
+     * 使用带位置的读，不修改channel的position，不同页的加载可以并行
      */
     @Override
     public Page getForCache(long uid) throws Exception {
-        lock.lock();
-        try {
-            int pageNo = (int) uid;
-            int offset = Page.pageOffset(pageNo);
-            fileChannel.position(offset);
-            // 先读取这个页的大小
-            ByteBuffer sizeBuf = ByteBuffer.allocate(Integer.BYTES);
-            fileChannel.read(sizeBuf);
-            sizeBuf.position(0);
-            int size = sizeBuf.getInt();
-            fileChannel.position(offset);
-            ByteBuffer pageData = ByteBuffer.allocate(size);
-            fileChannel.read(pageData);
-            return Page.loadPage(pageData.array(), pageNo, this);
-        } finally {
-            lock.unlock();
-        }
+        int pageNo = (int) uid;
+        long offset = Page.pageOffset(pageNo);
+        // 先读取这个页的大小
+        ByteBuffer sizeBuf = ByteBuffer.allocate(Integer.BYTES);
+        readFully(sizeBuf, offset);
+        int size = sizeBuf.getInt(0);
+        ByteBuffer pageData = ByteBuffer.allocate(size);
+        readFully(pageData, offset);
+        return Page.loadPage(pageData.array(), pageNo, this);
     }
 
     /**
@@ -59,35 +136,147 @@ public class PageCache extends AbstractCache<Page> {
      */
     @Override
     public void releaseForCache(Page page) {
-        lock.lock();
+        flushForCache(page);
+    }
+
+    /**
+     * 脏页写回，检查点和驱逐时都会调用
+     * 只锁住当前页，写回期间其他页的读写不受影响
+     */
+    @Override
+    protected void flushForCache(Page page) {
+        Lock pageLock = page.getPageLock();
+        pageLock.lock();
         try {
             if (page.isDirty()) {
-                fileChannel.position(Page.pageOffset(page.getPageNo()));
-                ByteBuffer buf = ByteBuffer.wrap(page.getData());
-                fileChannel.write(buf);
-                fileChannel.force(false);
+                getStats().recordWriteBack();
+                // 先写日志
+                flushLog(page);
+                writeFully(ByteBuffer.wrap(page.getData()), Page.pageOffset(page.getPageNo()));
+                if (logManager == null) {
+                    fileChannel.force(false);
+                }
             }
             page.setDirty(false);
         } catch (IOException e) {
            throw new RuntimeException(e);
         } finally {
-            lock.unlock();
+            pageLock.unlock();
+        }
+    }
+
+    protected void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = fileChannel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("读取页失败，位置：" + position);
+            }
         }
     }
 
+    protected void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Override
+    protected long sizeOf(Page page) {
+        return page.size();
+    }
+
     public Page newPage(int needSize) {
-        int pageNo = maxPageNo;
         int num = needSize / Page.SIZE;
-        pageNo += num;
         int mod = needSize % Page.SIZE;
         int allowSize = num * Page.SIZE;
         if (mod > 0) {
             allowSize += Page.SIZE;
-            pageNo++;
+            num++;
+        }
+        int pageNo;
+        allocLock.lock();
+        try {
+            // 多页的大页，页号是它的第一页
+            pageNo = maxPageNo + 1;
+            maxPageNo += num;
+        } finally {
+            allocLock.unlock();
+        }
+        Page page = initPage(pageNo, allowSize);
+        // 新页直接进入缓冲池，后面的get会拿到同一个对象
+        putResident(pageNo, page);
+        return page;
+    }
+
+    /**
+     * 初始化新页的内容并写入文件，文件会因此变长
+     */
+    protected Page initPage(int pageNo, int size) {
+        if (logManager != null) {
+            logManager.append(LogRecord.pageInit(fileName, pageNo, size));
         }
-        Page page = new Page(allowSize, ByteBuffer.allocate(allowSize).array(), pageNo, this);
+        Page page = new Page(size, ByteBuffer.allocate(size).array(), pageNo, this);
         releaseForCache(page);
-        maxPageNo = pageNo;
         return page;
     }
+
+    @Override
+    public int dirtyPageCount() {
+        int count = 0;
+        for (Page page : residentValues()) {
+            if (page.isDirty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int residentPageCount() {
+        return residentValues().size();
+    }
+
+    /**
+     * 按页号顺序写回，相邻的页在文件中也是相邻的，尽量让写入变成顺序IO
+     */
+    @Override
+    public int writeDirtyPages() {
+        List<Page> pages = residentValues();
+        pages.removeIf(page -> !page.isDirty());
+        pages.sort(Comparator.comparingInt(Page::getPageNo));
+        for (Page page : pages) {
+            flushForCache(page);
+        }
+        return pages.size();
+    }
+
+    /**
+     * 写回所有脏页，并把数据文件刷到磁盘
+     */
+    @Override
+    public void flush() {
+        super.flush();
+        sync();
+    }
+
+    @Override
+    public void close() {
+        if (logManager != null) {
+            // 等待正在进行的检查点结束，之后不会再写这个文件
+            logManager.getCheckpointer().unregister(this);
+        }
+        super.close();
+        sync();
+    }
+
+    @Override
+    public void sync() {
+        try {
+            if (fileChannel.isOpen()) {
+                fileChannel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -57,6 +57,14 @@ public class Bootstrap {
         if(!idb.canRead() || !idb.canWrite()) {
             throw new RuntimeException(name + "表不可读写.");
         }
+        // 新表的空闲空间表从空文件开始，留下的旧文件可能属于之前删除的同名表
+        File fsm = new File(path + File.separator + name + Table.fsm);
+        fsm.delete();
+        try {
+            fsm.createNewFile();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
     private void init(File file, List<Column> columns) {
@@ -68,7 +76,8 @@ public class Bootstrap {
         byte[] columnBytes = initData(columns);
 
         byte[] tableBytes = Bytes.concat(rootUidByte, sizeByte, columnBytes);
-        int pageSize = ((tableBytes.length / Page.SIZE) + 1) * Page.SIZE;
+        // 页头和一个槽也要放在这一页中
+        int pageSize = ((tableBytes.length + Page.DATA_OFFSET + Page.SLOT_SIZE) / Page.SIZE + 1) * Page.SIZE;
         Page page = new Page(pageSize, new byte[pageSize], 1, null);
         page.write(tableBytes);
         try(FileOutputStream out = new FileOutputStream(file)) {
@@ -0,0 +1,55 @@
+package com.learn.table;
+
+import com.learn.btree.Cursor;
+import com.learn.version.VersionManager;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 按主键顺序读取一段范围内当前事务能看到的行，见 Table.scan
+ * 索引中的每个uid都经过 VersionManager.read 沿版本链找可见的版本，看不到的行跳过
+ * 用法：while (cursor.next()) { cursor.row(); }
+ * @author peiyou
+ * @version 1.0
+ * @className RowCursor
+ * @date 2026/10/18 23:55
+ **/
+public class RowCursor {
+
+    private final long xid;
+
+    private final Cursor cursor;
+
+    private final VersionManager versionManager;
+
+    private final List<Column> columns;
+
+    private Row row;
+
+    RowCursor(long xid, Cursor cursor, VersionManager versionManager, List<Column> columns) {
+        this.xid = xid;
+        this.cursor = cursor;
+        this.versionManager = versionManager;
+        this.columns = columns;
+    }
+
+    /**
+     * 移到下一个可见的行，没有时返回false
+     */
+    public boolean next() throws Exception {
+        while (cursor.next()) {
+            byte[] data = versionManager.read(xid, cursor.value());
+            if (data != null) {
+                row = new Row(ByteBuffer.wrap(data), columns);
+                return true;
+            }
+        }
+        row = null;
+        return false;
+    }
+
+    public Row row() {
+        return row;
+    }
+}
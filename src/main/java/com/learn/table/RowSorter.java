@@ -0,0 +1,188 @@
+package com.learn.table;
+
+import com.learn.value.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 按主键外部排序行，用于批量加载，见 Table.load
+ * 内存中的行超过 runBytes 字节时排好序写到临时文件，全部加入之后多路归并所有的临时文件和内存中剩下的行，
+ * 内存中最多保留 runBytes 字节的行和每个临时文件一个缓冲
+ * 用法：add 所有的行，然后 while (sorter.next()) { sorter.key(); sorter.data(); }，最后 close 删除临时文件
+ * @author peiyou
+ * @version 1.0
+ * @className RowSorter
+ * @date 2026/10/18 23:58
+ **/
+class RowSorter implements Closeable {
+
+    // 默认每个顺串的大小
+    static final long DEFAULT_RUN_BYTES = 64L * 1024 * 1024;
+
+    private static final Comparator<Run> ORDER = (a, b) -> a.key.compareTo(b.key);
+
+    private final List<Column> columns;
+
+    private final int keyIndex;
+
+    private final long runBytes;
+
+    // 内存中还没有写出去的行
+    private final List<Run> buffer;
+
+    private long bufferBytes;
+
+    private final List<File> files;
+
+    private PriorityQueue<Run> merging;
+
+    private Run current;
+
+    RowSorter(List<Column> columns, int keyIndex, long runBytes) {
+        this.columns = columns;
+        this.keyIndex = keyIndex;
+        this.runBytes = runBytes;
+        this.buffer = new ArrayList<>();
+        this.files = new ArrayList<>();
+    }
+
+    void add(Value key, byte[] data) throws IOException {
+        buffer.add(new Run(key, data, null));
+        bufferBytes += data.length;
+        if (bufferBytes >= runBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * 排序内存中的行，写到一个临时文件中：[长度][行数据]...
+     */
+    private void spill() throws IOException {
+        buffer.sort(ORDER);
+        File file = File.createTempFile("rows", ".run");
+        files.add(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (Run run : buffer) {
+                out.writeInt(run.data.length);
+                out.write(run.data);
+            }
+        }
+        buffer.clear();
+        bufferBytes = 0;
+    }
+
+    /**
+     * 移到主键最小的下一行，第一次调用时开始归并
+     */
+    boolean next() throws IOException {
+        if (merging == null) {
+            merging = new PriorityQueue<>(files.size() + 1, ORDER);
+            for (File file : files) {
+                Run run = new Run(null, null, new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)));
+                if (read(run)) {
+                    merging.add(run);
+                }
+            }
+            // 内存中剩下的行不用写出去，作为一个顺串直接参与归并
+            buffer.sort(ORDER);
+            if (!buffer.isEmpty()) {
+                Run memory = buffer.get(0);
+                merging.add(new Run(memory.key, memory.data, null));
+            }
+            current = null;
+        }
+        if (current != null && read(current)) {
+            merging.add(current);
+        }
+        current = merging.poll();
+        return current != null;
+    }
+
+    /**
+     * 读取顺串的下一行，内存中的顺串按位置往后读
+     */
+    private boolean read(Run run) throws IOException {
+        if (run.in == null) {
+            run.position++;
+            if (run.position >= buffer.size()) {
+                return false;
+            }
+            Run next = buffer.get(run.position);
+            run.key = next.key;
+            run.data = next.data;
+            return true;
+        }
+        int length;
+        try {
+            length = run.in.readInt();
+        } catch (EOFException e) {
+            run.in.close();
+            return false;
+        }
+        run.data = new byte[length];
+        run.in.readFully(run.data);
+        run.key = new Row(ByteBuffer.wrap(run.data), columns).get(keyIndex);
+        return true;
+    }
+
+    Value key() {
+        return current.key;
+    }
+
+    byte[] data() {
+        return current.data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (merging != null) {
+            for (Run run : merging) {
+                if (run.in != null) {
+                    run.in.close();
+                }
+            }
+            if (current != null && current.in != null) {
+                current.in.close();
+            }
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+        buffer.clear();
+    }
+
+    /**
+     * 一个顺串当前的行，in 为null时是内存中的顺串，position 是当前行在 buffer 中的位置
+     */
+    private static final class Run {
+
+        private Value key;
+
+        private byte[] data;
+
+        private final DataInputStream in;
+
+        private int position;
+
+        private Run(Value key, byte[] data, DataInputStream in) {
+            this.key = key;
+            this.data = data;
+            this.in = in;
+        }
+    }
+}
@@ -1,15 +1,20 @@
 package com.learn.table;
 
 import com.learn.btree.BPlusTree;
+import com.learn.btree.BulkLoader;
+import com.learn.btree.Cursor;
 import com.learn.btree.Node;
 import com.learn.data.DataItem;
 import com.learn.data.DataManager;
 import com.learn.database.Database;
+import com.learn.log.LogManager;
+import com.learn.page.FreeSpaceMap;
+import com.learn.page.MappedPageCache;
 import com.learn.page.Page;
 import com.learn.page.PageCache;
-import com.learn.transaction.Transaction;
 import com.learn.transaction.TransactionManager;
 import com.learn.value.Value;
+import com.learn.version.IndexCleaner;
 import com.learn.version.VersionManager;
 
 import java.io.File;
@@ -19,6 +24,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -37,6 +43,13 @@ public class Table {
 
     public static final String idb = ".idb";
     public static final String frm = ".frm";
+    public static final String fsm = ".fsm";
+
+    // 表文件的读写方式，文件格式是一样的，所以每次打开表时都可以重新选择
+    // 普通的文件读写，页的内容复制到堆内
+    public static final int STORAGE_FILE = 0;
+    // 内存映射，页直接是映射上的视图，适合读多的表；有日志时是私有映射，写回和普通的页一样在日志之后
+    public static final int STORAGE_MMAP = 1;
 
     private final String tableName;
 
@@ -48,6 +61,11 @@ public class Table {
 
     private PageCache pageCacheFrm;
 
+    private RandomAccessFile fsmFile;
+
+    // 空闲空间表，不记日志
+    private PageCache pageCacheFsm;
+
     private List<Column> columns;
 
     // 主键索引的根节点
@@ -64,6 +82,10 @@ public class Table {
     private TransactionManager transactionManager;
 
     public Table(String path, String name, TransactionManager transactionManager) throws Exception {
+        this(path, name, transactionManager, STORAGE_FILE);
+    }
+
+    public Table(String path, String name, TransactionManager transactionManager, int storage) throws Exception {
         this.tableName = name;
         File file = new File(path + File.separator + name + frm);
         if (!file.exists()) {
@@ -78,7 +100,7 @@ public class Table {
             raf = new RandomAccessFile(file, "rw");
             fc = raf.getChannel();
             int maxPageNo = (int)(raf.length() / Page.SIZE);
-            pageCacheFrm = new PageCache(fc, maxPageNo);
+            pageCacheFrm = newPageCache(fc, maxPageNo, storage);
             this.frmFile = raf;
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
@@ -95,32 +117,91 @@ public class Table {
             raf = new RandomAccessFile(f1, "rw");
             fc = raf.getChannel();
             int maxPageNo = (int)(raf.length() / Page.SIZE);
-            pageCacheIdb = new PageCache(fc, maxPageNo);
+            pageCacheIdb = newPageCache(fc, maxPageNo, storage);
             this.idbFile = raf;
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
-        this.dataManager = new DataManager(pageCacheIdb);
+        LogManager logManager = transactionManager.getLogManager();
+        if (logManager != null) {
+            pageCacheFrm.attachLog(logManager, name + frm);
+            pageCacheIdb.attachLog(logManager, name + idb);
+        }
+        this.dataManager = new DataManager(pageCacheIdb, openFreeSpaceMap(path, name));
         this.lock = new ReentrantLock();
 
         this.loadTableInfo();
         this.bPlusTree = new BPlusTree(this.dataManager, this.pageCacheIdb, this.rootIndexUid);
         this.transactionManager = transactionManager;
         this.versionManager = new VersionManager(this.dataManager, this.transactionManager);
+        // 旧版本被清理时，删除还指向它的主键索引；回滚换了位置的更新时，主键索引改回旧版本；
+        // 重启后遍历主键索引查找之前留下的旧版本
+        this.versionManager.setIndexCleaner(new IndexCleaner() {
+            @Override
+            public void remove(byte[] data, long uid) throws Exception {
+                bPlusTree.remove(primaryKey(new Row(ByteBuffer.wrap(data), columns)), uid);
+            }
+
+            @Override
+            public void relink(byte[] data, long uid) throws Exception {
+                bPlusTree.add(primaryKey(new Row(ByteBuffer.wrap(data), columns)), uid);
+            }
+
+            @Override
+            public Scan scan() {
+                Cursor cursor = bPlusTree.scan(null, true, null, true);
+                return () -> cursor.next() ? cursor.value() : 0;
+            }
+        });
+        // 行锁统计可以通过JMX查看
+        versionManager.getLockStats().register(name);
         transactionManager.addVersionManager(versionManager);
     }
 
+    /**
+     * 打开空闲空间表，旧的表没有.fsm文件时按idb中每页的空闲空间重新建立
+     */
+    private FreeSpaceMap openFreeSpaceMap(String path, String name) throws Exception {
+        File file = new File(path + File.separator + name + fsm);
+        boolean rebuild = !file.exists();
+        if (rebuild && !file.createNewFile()) {
+            throw new RuntimeException(name + "空闲空间表创建失败.");
+        }
+        this.fsmFile = new RandomAccessFile(file, "rw");
+        int fsmPages = (int) (fsmFile.length() / Page.SIZE);
+        this.pageCacheFsm = new PageCache(fsmFile.getChannel(), fsmPages, Page.SIZE * 4L);
+        FreeSpaceMap freeSpaceMap = new FreeSpaceMap(pageCacheFsm, fsmPages);
+        if (rebuild) {
+            int maxPageNo = (int) (idbFile.length() / Page.SIZE);
+            // 第一页存放的是根节点的位置
+            int pageNo = 2;
+            while (pageNo <= maxPageNo) {
+                Page page = pageCacheIdb.get(pageNo);
+                freeSpaceMap.update(pageNo, page.freeSize());
+                page.release();
+                pageNo += Math.max(1, page.size() / Page.SIZE);
+            }
+        }
+        return freeSpaceMap;
+    }
+
+    private static PageCache newPageCache(FileChannel fc, int maxPageNo, int storage) {
+        return switch (storage) {
+            case STORAGE_FILE -> new PageCache(fc, maxPageNo);
+            case STORAGE_MMAP -> new MappedPageCache(fc, maxPageNo);
+            default -> throw new RuntimeException("不支持的存储方式：" + storage);
+        };
+    }
+
     /**
      * 从frm文件中获取表的信息，列信息，主键信息，root索引信息
      */
     private void loadTableInfo() throws Exception {
         // todo 这里如果字段过多，可能大于1页的情况，暂时先不处理
         Page page = pageCacheFrm.get(1);
-        ByteBuffer buffer = ByteBuffer.wrap(page.getData());
-        // 页大小
-        int pageSize = buffer.getInt();
-        // 写偏移
-        int pageOffset = buffer.getInt();
+        ByteBuffer buffer = page.getBuffer();
+        // 表信息在第一个槽中
+        buffer.position(Page.slotOffset(buffer, 0));
         this.rootIndexUid = buffer.getLong();
         if (rootIndexUid > 0) {
             DataItem dataItem = dataManager.get(rootIndexUid);
@@ -145,38 +226,62 @@ public class Table {
     public void close() throws IOException {
         lock.lock();
         try {
+            // 等待正在进行的清理结束，之后不会再访问这张表
+            transactionManager.removeVersionManager(versionManager);
+            versionManager.getLockStats().unregister();
             pageCacheIdb.close();
             pageCacheFrm.close();
+            pageCacheFsm.close();
             idbFile.close();
             frmFile.close();
+            fsmFile.close();
         } finally {
             lock.unlock();
         }
     }
 
     public static Table create(String path, String name, List<Column> columns, TransactionManager transactionManager) throws Exception {
+        return create(path, name, columns, transactionManager, STORAGE_FILE);
+    }
+
+    public static Table create(String path, String name, List<Column> columns, TransactionManager transactionManager, int storage) throws Exception {
         Bootstrap bootstrap = new Bootstrap(path, name, columns);
-        Table table = new Table(path, name, transactionManager);
+        Table table = new Table(path, name, transactionManager, storage);
         // 往idb的第一页中写入 root 占位
         Page page = table.pageCacheIdb.newPage(Page.SIZE);
         Node node = BPlusTree.newNode(table.pageCacheIdb, table.dataManager);
-        // 前8个字符表示root的uid
-        int offset = page.write(DataItem.wrap(ByteBuffer.allocate(Long.BYTES).putLong(node.getUid()).array()));
-        table.rootIndexUid = (1L << 32 | (long)offset);
-        // 更新
+        // 第一个槽存放root的uid
+        int slot = page.write(DataItem.wrap(ByteBuffer.allocate(Long.BYTES).putLong(node.getUid()).array()));
+        table.rootIndexUid = (1L << 32 | (long)slot);
+        // 更新，表信息是frm第一页第一个槽中的记录，前8个字节是root的uid
         Page frmPage = table.pageCacheFrm.get(1);
-        frmPage.update(Page.DATA_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(table.rootIndexUid).array());
+        frmPage.update(0, 0, ByteBuffer.allocate(Long.BYTES).putLong(table.rootIndexUid).array());
         frmPage.release();
         return table;
     }
 
-    public long insert(long xid, Row row) throws Exception {
+    private int primaryKeyIndex() {
+        for (Column column: this.columns) {
+            if (column.isPrimaryKey()) {
+                return column.index();
+            }
+        }
+        // 异常
+        throw new RuntimeException("不存在主键.");
+    }
+
+    private Value primaryKey(Row row) {
         Value key = null;
         for (Column column: columns) {
             if(column.isPrimaryKey()) {
                 key = row.get(column.index());
             }
         }
+        return key;
+    }
+
+    public long insert(long xid, Row row) throws Exception {
+        Value key = primaryKey(row);
         if (key == null || key.isNull()) {
             throw new RuntimeException("主键不能为空，或没有主键.");
         }
@@ -190,6 +295,49 @@ public class Table {
         return uid;
     }
 
+    /**
+     * 批量加载到空表中：行按主键排好序之后顺序写入数据页，再自底向上建立主键索引，见 BulkLoader
+     * sorted 为true时调用方保证 rows 已经按主键递增，不再排序，否则先外部排序，见 RowSorter
+     * 索引的每个节点写入 fillFactor 比例的key，之后还要插入的表可以留一些空间，少分裂
+     * 主键重复时抛出异常，索引不变，调用方回滚事务
+     * @return 加载的行数
+     */
+    public long load(long xid, Iterator<Row> rows, boolean sorted, double fillFactor) throws Exception {
+        int keyIndex = primaryKeyIndex();
+        BulkLoader loader = bPlusTree.bulkLoad(fillFactor);
+        try {
+            if (sorted) {
+                while (rows.hasNext()) {
+                    Row row = rows.next();
+                    Value key = loadKey(row, keyIndex);
+                    loader.add(key, versionManager.insert(xid, row.getBytes()));
+                }
+            } else {
+                try (RowSorter sorter = new RowSorter(columns, keyIndex, RowSorter.DEFAULT_RUN_BYTES)) {
+                    while (rows.hasNext()) {
+                        Row row = rows.next();
+                        sorter.add(loadKey(row, keyIndex), row.getBytes());
+                    }
+                    while (sorter.next()) {
+                        loader.add(sorter.key(), versionManager.insert(xid, sorter.data()));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            loader.cancel();
+            throw e;
+        }
+        return loader.finish();
+    }
+
+    private static Value loadKey(Row row, int keyIndex) {
+        Value key = row.get(keyIndex);
+        if (key == null || key.isNull()) {
+            throw new RuntimeException("主键不能为空，或没有主键.");
+        }
+        return key;
+    }
+
     public Row select(long xid, Value key) throws Exception {
         Long uid = bPlusTree.search(key);
         if (uid == null) {
@@ -203,53 +351,83 @@ public class Table {
         }
     }
 
-    public boolean delete(long xid, Value key) throws Exception {
-        long uid = bPlusTree.search(key);
-        return versionManager.delete(xid, uid);
+    /**
+     * 主键在 from 和 to 之间的行，from 和 to 为null时不限制
+     * 只从根节点下降一次，之后沿叶子节点往后读，不用每个主键都从根节点查找
+     */
+    public RowCursor scan(long xid, Value from, boolean fromInclusive, Value to, boolean toInclusive) {
+        return new RowCursor(xid, bPlusTree.scan(from, fromInclusive, to, toInclusive), versionManager, columns);
     }
 
+    public boolean delete(long xid, Value key) throws Exception {
+        Long uid = bPlusTree.search(key);
+        while (uid != null) {
+            if (versionManager.delete(xid, uid)) {
+                return true;
+            }
+            uid = moved(key, uid);
+        }
+        return false;
+    }
 
+    /**
+     * 更新一行，row 中不为null的列覆盖旧的值
+     * 新的内容和旧的一样大时原地更新，主键索引不变；大小变了才写到新的位置，主键索引指向它
+     */
     public boolean update(long xid, Row row) throws Exception {
-        Value key = null;
-        int indexKey = -1;
-        for (Column column: this.columns) {
-            if (column.isPrimaryKey()) {
-                indexKey = column.index();
-                break;
+        int indexKey = primaryKeyIndex();
+        Value key = row.get(indexKey);
+        Long uid = bPlusTree.search(key);
+        while (uid != null) {
+            // 用加锁之后的最新版本合并，等待行锁期间别的事务提交的修改不会被覆盖
+            long newUid = versionManager.update(xid, uid, data -> {
+                Row old = new Row(ByteBuffer.wrap(data), columns);
+                for (int i = 0; i < this.columns.size(); i++) {
+                    if (row.get(i) != null) {
+                        old.setCol(i, row.get(i));
+                    }
+                }
+                return old.getBytes();
+            });
+            if (newUid != 0) {
+                if (newUid != uid) {
+                    bPlusTree.add(key, newUid);
+                }
+                return true;
             }
+            uid = moved(key, uid);
         }
-        if (indexKey == -1) {
-            // 异常
-            throw new RuntimeException("不存在主键.");
-        }
-        key = row.get(indexKey);
-        long uid = bPlusTree.search(key);
-        byte[] data = versionManager.read(xid, uid);
-        Row old = null;
-        if (data != null){
-            old = new Row(ByteBuffer.wrap(data), columns);
-        }
+        return false;
+    }
 
-        if (old == null) {
-            return false;
-        }
-        this.delete(xid, key);
+    /**
+     * uid 对当前事务已经不存在时，看等待行锁期间这一行是不是被别的事务换到了新的位置，是的话返回新的位置
+     */
+    private Long moved(Value key, long uid) throws Exception {
+        Long current = bPlusTree.search(key);
+        return current == null || current == uid ? null : current;
+    }
 
-        for (int i = 0; i < this.columns.size(); i++) {
-            if (row.get(i) != null) {
-                old.setCol(i, row.get(i));
-            }
-        }
-        long newUid = this.insert(xid, old);
-        Transaction transaction = versionManager.getActiveTransaction().get(xid);
-        transaction.updateUid(uid, newUid);
-        bPlusTree.add(key, newUid);
-        return true;
+    /**
+     * 冻结主键索引能找到的所有版本中比 limit 小的事务，见 Vacuum.freeze
+     * 对所有事务都不可见的版本删除索引，交给 Vacuum 释放空间
+     * 结束时把数据页写回磁盘，之后 .xid 文件才能丢掉这些事务的状态
+     * @return 修改的版本数
+     */
+    public int freeze(long limit) throws Exception {
+        int frozen = transactionManager.getVacuum().freeze(versionManager, bPlusTree.values(), limit);
+        pageCacheIdb.flush();
+        return frozen;
+    }
+
+    BPlusTree getIndex() {
+        return bPlusTree;
     }
 
     public boolean dropTable(Database database) {
         new File(database.getPath() + File.separator + tableName + Table.frm).delete();
         new File(database.getPath() + File.separator + tableName + Table.idb).delete();
+        new File(database.getPath() + File.separator + tableName + Table.fsm).delete();
         return true;
     }
 }
@@ -0,0 +1,65 @@
+package com.learn.transaction;
+
+import java.util.Arrays;
+
+/**
+ * 事务开始时的快照，(xmin, xmax, 进行中的事务)
+ * xmin 是快照中最老的进行中的事务（没有时是 xmax），比它小的事务在快照建立时都已经结束
+ * xmax 是建立快照的事务自己，之后开始的事务都不小于它
+ * xip 是建立快照时进行中的其他事务，按从小到大排列，判断是否在快照中只需要二分查找
+ * 快照建立后不再修改，同一个事务在所有表中共用一个
+ * @author peiyou
+ * @version 1.0
+ * @className Snapshot
+ * @date 2026/10/18 19:00
+ **/
+public final class Snapshot {
+
+    private static final long[] EMPTY = new long[0];
+
+    private final long xmin;
+
+    private final long xmax;
+
+    private final long[] xip;
+
+    private Snapshot(long xmin, long xmax, long[] xip) {
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.xip = xip;
+    }
+
+    /**
+     * @param xid 建立快照的事务
+     * @param xip 比 xid 小的进行中的事务，已经从小到大排列，只取前 n 个
+     */
+    static Snapshot of(long xid, long[] xip, int n) {
+        if (n == 0) {
+            return new Snapshot(xid, xid, EMPTY);
+        }
+        long[] sorted = n == xip.length ? xip : Arrays.copyOf(xip, n);
+        return new Snapshot(sorted[0], xid, sorted);
+    }
+
+    /**
+     * 快照建立时xid是否还在进行中
+     */
+    public boolean contains(long xid) {
+        if (xid < xmin || xid >= xmax) {
+            return false;
+        }
+        return Arrays.binarySearch(xip, xid) >= 0;
+    }
+
+    public long getXmin() {
+        return xmin;
+    }
+
+    public long getXmax() {
+        return xmax;
+    }
+
+    public int size() {
+        return xip.length;
+    }
+}
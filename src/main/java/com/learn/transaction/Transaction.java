@@ -1,7 +1,9 @@
 package com.learn.transaction;
 
-import java.util.HashMap;
-import java.util.Map;
+import com.learn.version.VersionManager;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 事务实体
@@ -14,94 +16,70 @@ public class Transaction {
 
     public static final int READ_COMMIT = 0;
     public static final int REPEATABLE = 1;
+    // 乐观事务：读取和可重复读一样使用快照，修改先记在写集合中，提交时校验读写过的行没有被并发修改，再加锁写入
+    public static final int OPTIMISTIC = 2;
 
     public static int SUPER_XID = 0;
 
     private long xid;
 
-    // 事务隔离级别 0 表示读提交，1表示可重复读
+    // 事务隔离级别 0 表示读提交，1表示可重复读，2表示乐观事务
     private int level;
 
-    // 事务开启时，当前有多少事务未提交
-    private Map<Long, Boolean> snapshot;
+    // 事务开启时的快照，所有表共用，登记之后才建立
+    private volatile Snapshot snapshot;
 
-    // 进行中的事务已提交。
-    // 进行中的事务修改了哪些数据，因为本质上数据是不会被删除的，修改数据后，只会把旧数据改会无效，并把索引指针指向新数据
-    // 如果有多个事务在同时处理同一条数据时，需要让后面处理数据的事务接着新数据继续
-    private Map<Long, Map<Long, Long>> snapshotUpdateDataOfUid;
+    // 登记时所有进行中的事务都不小于它，快照建立之前代替快照的 xmin
+    private long startFloor;
 
+    // 事务访问过的表，提交和回滚时只通知这些表
+    private final Set<VersionManager> touched = ConcurrentHashMap.newKeySet();
 
-    // 当前事务修改的数据
-    private Map<Long, Long> currentUpdateDataOfUid;
+    // 修改过数据，乐观事务没有修改时提交不需要校验
+    private volatile boolean modified;
 
     // 事务发生异常了。
     private boolean error;
 
-    public static Transaction createTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction createTransaction(long xid, int level, long startFloor) {
         Transaction transaction = new Transaction();
         transaction.xid = xid;
         transaction.level = level;
-        transaction.snapshot = new HashMap<>();
-        transaction.snapshotUpdateDataOfUid = new HashMap<>();
-        transaction.currentUpdateDataOfUid = new HashMap<>();
-        if (xid != SUPER_XID) {
-            if (active != null) {
-                for (Long x : active.keySet()) {
-                    transaction.snapshot.put(x, true);
-                }
-            }
-        }
+        transaction.startFloor = startFloor;
         return transaction;
     }
 
-    public boolean isInSnapshot(long xid) {
-        if(xid == SUPER_XID) {
-            return false;
-        }
-        return snapshot.containsKey(xid);
-    }
-
-    public void notifyActivityTransaction(Map<Long, Transaction> activeTransaction) {
-        if (this.currentUpdateDataOfUid != null && this.currentUpdateDataOfUid.size() > 0) {
-            for (Long xid : activeTransaction.keySet()) {
-                Transaction transaction = activeTransaction.get(xid);
-                if (transaction != null) {
-                    Map<Long, Boolean> map = transaction.snapshot;
-                    if (map.containsKey(this.xid)) {
-                        transaction.snapshotUpdateDataOfUid.put(this.xid, this.currentUpdateDataOfUid);
-                    }
-                }
-            }
-        }
+    /**
+     * 只读事务的编号是负数，不占用xid
+     */
+    public static boolean isReadOnly(long xid) {
+        return xid < 0;
+    }
+
+    public boolean isReadOnly() {
+        return isReadOnly(xid);
     }
 
     /**
-     * 是否存在在xid更新了数据
-     * @author Peiyou
-     * @date 2023/7/20 11:32
-     * @param xid
-     * @return
+     * 乐观的读写事务，只读事务没有修改，不需要校验
      */
-    public boolean commitAfterUpdate(long xid) {
-        if (this.snapshotUpdateDataOfUid != null && this.snapshotUpdateDataOfUid.containsKey(xid)) {
-            return true;
+    public boolean isOptimistic() {
+        return level == OPTIMISTIC && !isReadOnly();
+    }
+
+    public boolean isInSnapshot(long xid) {
+        if(xid == SUPER_XID) {
+            return false;
         }
-        return false;
+        return snapshot.contains(xid);
     }
 
-    /**
-     * 获取被xid修改的uid后的最新uid
-     * @author Peiyou
-     * @date 2023/7/20 12:04
-     * @param xid
-     * @return long
-     */
-    public Long getXidOfUpdateUid(long xid, long uid) {
-        return snapshotUpdateDataOfUid.get(xid).get(uid);
+    public void touch(VersionManager versionManager) {
+        touched.add(versionManager);
     }
 
-    public void updateUid(long uid, long newUid) {
-        this.currentUpdateDataOfUid.put(uid, newUid);
+    public Set<VersionManager> getTouched() {
+        return touched;
     }
 
     public long getXid() {
@@ -120,6 +98,45 @@ public class Transaction {
         this.level = level;
     }
 
+    /**
+     * 快照建立时下一个要分配的xid，不小于它的事务在快照之后开始，读写事务就是它自己
+     */
+    public long getSnapshotXmax() {
+        return snapshot.getXmax();
+    }
+
+    /**
+     * 事务开始时能看到的最老的事务，比它小的已提交事务的修改对这个事务都可见
+     */
+    public long getSnapshotXmin() {
+        Snapshot current = snapshot;
+        return current == null ? startFloor : current.getXmin();
+    }
+
+    /**
+     * 计算释放版本的 horizon 时这个事务的位置，只读事务不超过登记时的 startFloor，见 TransactionManager.beginReadOnly
+     */
+    public long getFreeXmin() {
+        long xmin = getSnapshotXmin();
+        return isReadOnly() ? Math.min(xmin, startFloor) : xmin;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    void setSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public boolean isModified() {
+        return modified;
+    }
+
+    public void setModified(boolean modified) {
+        this.modified = modified;
+    }
+
     public boolean isError() {
         return error;
     }
@@ -1,27 +1,46 @@
 package com.learn.transaction;
 
+import com.learn.log.CheckpointTarget;
+import com.learn.log.LogManager;
+import com.learn.version.LockStatsReporter;
+import com.learn.version.Vacuum;
 import com.learn.version.VersionManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 事务管理器
+ * xid 由 AtomicLong 分配，开始事务不加全局锁。文件头记录的是已经预留到的xid，每次预留 XID_BLOCK 个，
+ * 预留时先把这一段状态写成活跃（0）并fsync，再写文件头，一段xid只持久化一次文件头。
+ * 重新打开后从预留的最大值之后继续分配，上次预留了但没有用到的xid和崩溃时进行中的事务一样是活跃状态，
+ * 有日志时由恢复改为回滚，没有日志时它们不在任何快照中，也不会被认为已提交。
+ * 比 frozenXid 小的事务留下的版本都已经冻结（见 VersionManager.freeze），不再需要它们的状态，
+ * 截断后的文件头是 [FROZEN_MAGIC][frozenXid][预留到的xid]，只保存 frozenXid 之后的状态，这些事务都按已提交处理。
+ * 有日志时参与检查点，检查点fsync事务状态之后，已经结束的事务的日志才能回收。
  * @author peiyou
  * @version 1.0
  * @className TransactionManager
  * @date 2023/7/19 17:29
  **/
-public class TransactionManager {
+public class TransactionManager implements CheckpointTarget {
     // XID文件头长度
     public static final int LEN_XID_HEADER_LENGTH = 8;
 
+    // 截断过的文件的文件头长度，第一个long是 FROZEN_MAGIC，未截断的文件第一个long是预留到的xid，不会是负数
+    private static final int LEN_FROZEN_HEADER_LENGTH = 24;
+    private static final long FROZEN_MAGIC = -1L;
+
     // 每个事务的占用长度
     private static final int XID_FIELD_SIZE = 1;
 
@@ -30,27 +49,84 @@ public class TransactionManager {
     private static final byte FIELD_TRAN_COMMITTED = 1;
     private static final byte FIELD_TRAN_ABORTED  = 2;
 
+    // 每次预留的xid数量
+    static final int XID_BLOCK = 1024;
+
     // 事务文件的后缀，应该在创建数据库的时候创建出对应的事务文件
     public static final String XID_SUFFIX = ".xid";
 
     private RandomAccessFile file;
     private FileChannel fileChannel;
-    private long xidCounter;
-    private Lock counterLock;
 
-    private List<VersionManager> versionManagerList;
+    // 当前文件的文件头长度，预留到的xid在文件头的最后8个字节
+    private int headerLength;
+
+    // 比它小的事务都已冻结，文件中第一个状态属于它
+    private volatile long frozenXid;
+
+    // 截断时替换文件，读写文件的地方持有读锁
+    private final ReadWriteLock fileLock;
+    // 最后一个分配出去的xid
+    private final AtomicLong xidCounter;
+
+    // 文件头中已经预留到的xid
+    private volatile long reserved;
+    private final Lock reserveLock;
+
+    // 只读事务的编号，从-1开始递减，不占用xid
+    private final AtomicLong readOnlyCounter;
+
+    // 比它小的事务都已经结束，只会增大，没有登记的事务时作为 horizon
+    private final AtomicLong activeFloor;
+
+    // 整个数据库进行中的事务
+    private final TransactionRegistry registry;
+
+    // 预写日志，为空时每次修改事务状态都fsync
+    private LogManager logManager;
+
+    // 清理旧版本
+    private final Vacuum vacuum;
+
+    // 定期输出各表的行锁统计
+    private final LockStatsReporter lockStatsReporter;
+
+    // 事务状态在内存中的副本，判断可见性时不再读文件
+    private final XidStatusTable statusTable;
 
     public TransactionManager(RandomAccessFile file, FileChannel fileChannel) {
+        this(file, fileChannel, null);
+    }
+
+    /**
+     * 有预写日志时，提交的持久性由日志中的提交记录保证，事务状态的写入不再fsync，
+     * 崩溃后根据日志修正事务状态。
+     */
+    public TransactionManager(RandomAccessFile file, FileChannel fileChannel, LogManager logManager) {
         this.file = file;
+        this.logManager = logManager;
         this.fileChannel = fileChannel;
-        counterLock = new ReentrantLock();
+        reserveLock = new ReentrantLock();
+        fileLock = new ReentrantReadWriteLock();
+        statusTable = new XidStatusTable();
         checkXIDCounter();
-        versionManagerList = new ArrayList<>();
+        loadStatus();
+        xidCounter = new AtomicLong(reserved);
+        // 之前打开时的事务都不会再运行
+        activeFloor = new AtomicLong(reserved + 1);
+        readOnlyCounter = new AtomicLong();
+        registry = new TransactionRegistry();
+        vacuum = new Vacuum(this);
+        lockStatsReporter = new LockStatsReporter();
+        if (logManager != null) {
+            logManager.getCheckpointer().register(this);
+        }
     }
 
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 预留时先扩展文件再写文件头，崩溃后文件可能比文件头记录的长，多出的部分在下次预留时覆盖
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -63,105 +139,263 @@ public class TransactionManager {
             throw new RuntimeException("事务文件坏的");
         }
 
-        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+        ByteBuffer buf = ByteBuffer.allocate(LEN_FROZEN_HEADER_LENGTH);
+        buf.limit((int) Math.min(fileLen, LEN_FROZEN_HEADER_LENGTH));
         try {
-            fileChannel.position(0);
-            fileChannel.read(buf);
+            while (buf.hasRemaining() && fileChannel.read(buf, buf.position()) >= 0) {
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        buf.position(0);
-        this.xidCounter = buf.getLong();
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        long first = buf.getLong(0);
+        if (first == FROZEN_MAGIC) {
+            if (fileLen < LEN_FROZEN_HEADER_LENGTH) {
+                throw new RuntimeException("事务文件坏的");
+            }
+            this.headerLength = LEN_FROZEN_HEADER_LENGTH;
+            this.frozenXid = buf.getLong(Long.BYTES);
+            this.reserved = buf.getLong(Long.BYTES * 2);
+        } else {
+            this.headerLength = LEN_XID_HEADER_LENGTH;
+            this.frozenXid = 1;
+            this.reserved = first;
+        }
+        long end = getXidPosition(this.reserved + 1);
+        if(end > fileLen) {
             throw new RuntimeException("事务文件坏的");
         }
     }
 
-    private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid-1)*XID_FIELD_SIZE;
-    }
-
-    // 更新xid事务的状态为status
-    private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
+    /**
+     * 把 .xid 文件中所有事务的状态载入内存
+     */
+    private void loadStatus() {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long xid = frozenXid;
         try {
-            fileChannel.position(offset);
-            fileChannel.write(buf);
+            while (xid <= reserved) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), (reserved - xid + 1) * XID_FIELD_SIZE));
+                while (buf.hasRemaining()) {
+                    if (fileChannel.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        throw new RuntimeException("事务文件坏的");
+                    }
+                }
+                for (int i = 0; i < buf.limit(); i += XID_FIELD_SIZE) {
+                    byte status = buf.get(i);
+                    if (status != FIELD_TRAN_ACTIVE) {
+                        statusTable.set(xid, status);
+                    }
+                    xid++;
+                }
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    private long getXidPosition(long xid) {
+        return headerLength + (xid-frozenXid)*XID_FIELD_SIZE;
+    }
+
+    // 更新xid事务的状态为status，先写文件再改内存中的状态
+    // 使用带位置的写，并发的提交之间不会互相改掉channel的position
+    private void updateXID(long xid, byte status) {
+        fileLock.readLock().lock();
         try {
-            fileChannel.force(false);
+            if (xid < frozenXid) {
+                // 已经冻结，只有恢复时会遇到
+                return;
+            }
+            writeFully(ByteBuffer.wrap(new byte[]{status}), getXidPosition(xid));
+            if (logManager == null) {
+                fileChannel.force(false);
+            }
+            statusTable.set(xid, status);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
     }
 
     // 开始一个事务，并返回XID
+    // 预留的xid在文件中已经是活跃状态，开始事务不再写文件
     public long begin(int level) {
-        counterLock.lock();
+        // 分配xid之前先占位置，这时建立的快照不会漏掉它
+        int slot = registry.claim();
+        long xid = xidCounter.incrementAndGet();
+        registry.publish(slot, xid);
         try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            for (VersionManager versionManager: versionManagerList) {
-                versionManager.begin(level, xid);
-            }
-            return xid;
-        } finally {
-            counterLock.unlock();
+            reserve(xid);
+        } catch (RuntimeException e) {
+            // 分配出去的xid不能一直是活跃状态，否则 activeFloor 不再前进
+            statusTable.set(xid, FIELD_TRAN_ABORTED);
+            registry.release(slot);
+            throw e;
         }
+        // 先登记再建立快照，快照中的事务都不小于登记时的 floor
+        long floor = advanceFloor();
+        Transaction transaction = Transaction.createTransaction(xid, level, floor);
+        registry.start(transaction, slot);
+        // 快照只建立一次，所有表共用
+        transaction.setSnapshot(registry.snapshot(xid));
+        return xid;
     }
 
-    // 将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter ++;
-        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES).putLong(xidCounter);
-        buf.position(0);
-        try {
-            fileChannel.position(0);
-            fileChannel.write(buf);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * 开始一个只读事务，返回负数的编号，用它调用查询、提交和回滚
+     * 不分配xid、不写 .xid 文件，快照的 xmax 是下一个要分配的xid，和这时开始的读写事务看到的一样；
+     * 插入、删除和更新会被拒绝。
+     */
+    public long beginReadOnly(int level) {
+        long xid = readOnlyCounter.decrementAndGet();
+        long floor = advanceFloor();
+        // 只读事务不占用xid，快照的 xmin 可能等于之后 Vacuum 删除索引时记下的 unlinkedAt（都是当时下一个要分配的xid），
+        // 计算 freeHorizon 时用开始时已经分配的最大xid兜底，保证比登记之后记下的 unlinkedAt 小
+        Transaction transaction = Transaction.createTransaction(xid, level, Math.min(floor, xidCounter.get()));
+        registry.start(transaction);
+        transaction.setSnapshot(registry.snapshot(xidCounter.get() + 1));
+        return xid;
+    }
+
+    /**
+     * 跳过已经结束的事务，返回最老的进行中的事务，没有时是下一个要分配的xid
+     */
+    private long advanceFloor() {
+        long floor = activeFloor.get();
+        long last = xidCounter.get();
+        while (floor <= last && !checkXID(floor, FIELD_TRAN_ACTIVE)) {
+            floor++;
         }
+        return activeFloor.accumulateAndGet(floor, Math::max);
+    }
+
+    // 预留到xid为止的xid，先把新的一段写成活跃并fsync，再写文件头
+    private void reserve(long xid) {
+        if (xid <= reserved) {
+            return;
+        }
+        fileLock.readLock().lock();
+        reserveLock.lock();
         try {
-            fileChannel.force(false);
+            while (xid > reserved) {
+                long limit = reserved + XID_BLOCK;
+                writeFully(ByteBuffer.allocate(XID_BLOCK * XID_FIELD_SIZE), getXidPosition(reserved + 1));
+                fileChannel.force(true);
+                writeFully(ByteBuffer.allocate(Long.BYTES).putLong(0, limit), headerLength - Long.BYTES);
+                fileChannel.force(false);
+                reserved = limit;
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            reserveLock.unlock();
+            fileLock.readLock().unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            fileChannel.write(buf, position + buf.position());
         }
     }
 
     // 提交XID事务
     public void commit(long xid) throws Exception {
-        for (VersionManager versionManager: versionManagerList) {
-            versionManager.commit(xid);
+        if (Transaction.isReadOnly(xid)) {
+            // 只读事务没有修改，也没有状态要写
+            registry.finish(xid);
+            return;
+        }
+        Transaction t = registry.get(xid);
+        if (t == null && isAborted(xid)) {
+            // 等待行锁时死锁或者超时，已经自动回滚
+            throw new RuntimeException("事务已经回滚。");
+        }
+        if (t != null) {
+            if (t.isError()) {
+                throw new RuntimeException("事务异常。");
+            }
+            if (t.isOptimistic() && t.isModified()) {
+                prepare(t);
+            }
+        }
+        if (logManager != null) {
+            // 等待提交日志落盘，并发的提交共用一次fsync
+            logManager.commit(xid);
         }
         updateXID(xid, FIELD_TRAN_COMMITTED);
+        if (logManager != null) {
+            logManager.finish(xid);
+        }
+        if (t != null) {
+            // 状态改为已提交之后才释放行锁，等待的事务拿到锁时能看到原地写入的版本已提交
+            // 只通知事务访问过的表
+            for (VersionManager versionManager: t.getTouched()) {
+                versionManager.commit(xid);
+            }
+        }
+        // 状态改为已提交之后才离开进行中的事务，之后的快照不包含它时一定能看到它已提交
+        registry.finish(xid);
     }
 
-    // 回滚XID事务
+    /**
+     * 乐观事务在写提交日志之前校验并写入每张表的修改，任何一张表失败都回滚整个事务
+     * 只读过数据的乐观事务读到的是同一个快照，不需要校验
+     */
+    private void prepare(Transaction t) throws Exception {
+        try {
+            for (VersionManager versionManager: t.getTouched()) {
+                versionManager.prepare(t.getXid());
+            }
+        } catch (Exception e) {
+            abort(t.getXid());
+            throw e;
+        }
+    }
+
+    /**
+     * 回滚XID事务：先撤销每张表的修改，再写回滚日志，最后才释放行锁
+     * 回滚日志在释放行锁之前写入，别的事务拿到行锁之后的修改一定在它后面，
+     * 恢复时不会再把这个事务修改前的内容写回去，覆盖掉别的事务已经提交的修改
+     * 等待行锁时死锁或者超时会自动回滚，之后调用方再回滚时什么都不做
+     */
     public void abort(long xid) {
-        for (VersionManager versionManager: versionManagerList) {
-            versionManager.abort(xid);
+        if (Transaction.isReadOnly(xid)) {
+            registry.finish(xid);
+            return;
+        }
+        Transaction t = registry.get(xid);
+        if (t == null && isAborted(xid)) {
+            return;
+        }
+        if (t != null) {
+            for (VersionManager versionManager: t.getTouched()) {
+                versionManager.abort(xid);
+            }
+        }
+        if (logManager != null) {
+            logManager.abort(xid);
         }
         updateXID(xid, FIELD_TRAN_ABORTED);
+        if (logManager != null) {
+            logManager.finish(xid);
+        }
+        if (t != null) {
+            for (VersionManager versionManager: t.getTouched()) {
+                versionManager.releaseLocks(xid);
+            }
+        }
+        registry.finish(xid);
     }
 
-    // 检测XID事务是否处于status状态
+    // 检测XID事务是否处于status状态，只读内存中的状态，冻结的事务都按已提交处理
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fileChannel.position(offset);
-            fileChannel.read(buf);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (xid < frozenXid) {
+            return status == FIELD_TRAN_COMMITTED;
         }
-        return buf.array()[0] == status;
+        return statusTable.get(xid) == status;
     }
 
     public boolean isActive(long xid) {
@@ -179,21 +413,167 @@ public class TransactionManager {
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
-    public void close() {
+    /**
+     * 最后一个分配出去的xid，刚打开时是上次预留到的xid
+     */
+    public long getXidCounter() {
+        return xidCounter.get();
+    }
+
+    /**
+     * 恢复时根据日志修正事务的状态
+     */
+    public void recoverXID(long xid, boolean committed) {
+        updateXID(xid, committed ? FIELD_TRAN_COMMITTED : FIELD_TRAN_ABORTED);
+    }
+
+    // 事务状态不在页缓存里，检查点只需要把文件刷到磁盘
+    @Override
+    public int dirtyPageCount() {
+        return 0;
+    }
+
+    @Override
+    public int residentPageCount() {
+        return 0;
+    }
+
+    @Override
+    public int writeDirtyPages() {
+        return 0;
+    }
+
+    /**
+     * 把事务状态刷到磁盘
+     */
+    @Override
+    public void sync() {
+        fileLock.readLock().lock();
         try {
+            fileChannel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 比它小的事务都已冻结，状态不再保存
+     */
+    public long getFrozenXid() {
+        return frozenXid;
+    }
+
+    /**
+     * 丢掉比 frozenXid 小的事务的状态，把剩下的状态写到新文件，再改名替换 xidFile
+     * 调用方保证这些事务留下的版本都已经冻结并且写回了磁盘，frozenXid 不能超过 horizon
+     * @param xidFile 打开时的 .xid 文件
+     * @return 截断之后的 frozenXid
+     */
+    public long truncate(File xidFile, long frozenXid) {
+        fileLock.writeLock().lock();
+        try {
+            // 还在进行中的事务的状态不能丢
+            frozenXid = Math.min(frozenXid, advanceFloor());
+            if (frozenXid <= this.frozenXid) {
+                return this.frozenXid;
+            }
+            File tmp = new File(xidFile.getPath() + ".tmp");
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(LEN_FROZEN_HEADER_LENGTH)
+                        .putLong(FROZEN_MAGIC).putLong(frozenXid).putLong(reserved);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                long from = getXidPosition(frozenXid);
+                long count = (reserved - frozenXid + 1) * XID_FIELD_SIZE;
+                long copied = 0;
+                while (copied < count) {
+                    copied += fileChannel.transferTo(from + copied, count - copied, channel);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), xidFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             fileChannel.close();
             file.close();
+            file = new RandomAccessFile(xidFile, "rw");
+            fileChannel = file.getChannel();
+            headerLength = LEN_FROZEN_HEADER_LENGTH;
+            this.frozenXid = frozenXid;
+            statusTable.truncate(frozenXid);
+            return frozenXid;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            fileLock.writeLock().unlock();
         }
     }
 
-    public void addVersionManager(VersionManager versionManager) {
-        counterLock.lock();
+    public LogManager getLogManager() {
+        return logManager;
+    }
+
+    public Vacuum getVacuum() {
+        return vacuum;
+    }
+
+    public LockStatsReporter getLockStatsReporter() {
+        return lockStatsReporter;
+    }
+
+    public void close() {
+        vacuum.stop();
+        lockStatsReporter.stop();
+        if (logManager != null) {
+            logManager.close();
+        }
         try {
-            this.versionManagerList.add(versionManager);
-        } finally {
-            counterLock.unlock();
+            fileChannel.close();
+            file.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
+
+    /**
+     * 进行中的事务，没有开始或者已经结束时返回null
+     */
+    public Transaction getTransaction(long xid) {
+        return registry.get(xid);
+    }
+
+    /**
+     * 所有进行中的事务的快照中最老的事务，没有进行中的事务时是下一个要分配的xid
+     * 先读 floor 再遍历登记的事务：读 floor 之后才结束的事务不小于 floor；
+     * 读 floor 之前就看到它还在进行中的快照，所属的事务在那之前已经登记，遍历时一定能找到
+     */
+    public long horizon() {
+        return registry.horizon(advanceFloor(), false);
+    }
+
+    /**
+     * 释放已经删除索引的版本用的 horizon，unlinkedAt 不大于它的版本不会再被进行中的事务访问
+     * 和 horizon 的区别是只读事务按登记时已经分配的最大xid算：只读事务的快照 xmin 是当时下一个要分配的xid，
+     * 可能和它开始之后才记下的 unlinkedAt 相同，这时它可能已经从索引拿到了uid
+     */
+    public long freeHorizon() {
+        return registry.horizon(advanceFloor(), true);
+    }
+
+    public void addVersionManager(VersionManager versionManager) {
+        vacuum.register(versionManager);
+        lockStatsReporter.register(versionManager.getLockStats());
+    }
+
+    /**
+     * 表关闭后不再清理它的旧版本，也不再输出它的行锁统计
+     */
+    public void removeVersionManager(VersionManager versionManager) {
+        vacuum.unregister(versionManager);
+        lockStatsReporter.unregister(versionManager.getLockStats());
+    }
 }
@@ -0,0 +1,152 @@
+package com.learn.transaction;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 整个数据库进行中的事务，所有表共用，代替每个 VersionManager 各自的一份
+ * 事务分配xid后先登记再建立快照，快照建立之前用登记时的 floor 作为 xmin，计算 horizon 不会漏掉它；
+ * 事务先写入提交或回滚的状态，再从这里删除，快照中没有它时一定能看到它的最终状态。
+ * 快照中的进行中的事务只从这里找，不扫描事务状态。分配xid之前先占一个 pending 位置，
+ * 分配到的xid写进去，登记之后才清空，已经分配但还没有登记的xid也能找到。
+ * 登记、删除和查找都不需要加锁。
+ * @author peiyou
+ * @version 1.0
+ * @className TransactionRegistry
+ * @date 2026/10/18 19:20
+ **/
+public class TransactionRegistry {
+
+    // pending 的位置数量，是同时在分配xid的线程数的上限，超过时等待
+    private static final int PENDING_SLOTS = 64;
+
+    // 占了位置还没有拿到xid
+    private static final long ALLOCATING = Long.MAX_VALUE;
+
+    private final Map<Long, Transaction> transactions;
+
+    // 正在开始的事务，0 表示空闲
+    private final AtomicLongArray pending;
+
+    TransactionRegistry() {
+        this.transactions = new ConcurrentHashMap<>();
+        this.pending = new AtomicLongArray(PENDING_SLOTS);
+    }
+
+    /**
+     * 分配xid之前调用，返回占到的位置
+     * 占位置在分配xid之前，之后分配xid的事务建立快照时一定能看到这个位置
+     */
+    int claim() {
+        int start = (int) (Thread.currentThread().getId() % PENDING_SLOTS);
+        for (int i = start; ; i = (i + 1) % PENDING_SLOTS) {
+            if (pending.compareAndSet(i, 0, ALLOCATING)) {
+                return i;
+            }
+            if ((i + 1) % PENDING_SLOTS == start) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 把分配到的xid写到占到的位置
+     */
+    void publish(int slot, long xid) {
+        pending.set(slot, xid);
+    }
+
+    /**
+     * 没有登记就放弃，例如预留xid失败
+     */
+    void release(int slot) {
+        pending.set(slot, 0);
+    }
+
+    /**
+     * 分配xid之后、建立快照之前调用，登记之后才清空占到的位置
+     */
+    void start(Transaction transaction, int slot) {
+        transactions.put(transaction.getXid(), transaction);
+        pending.set(slot, 0);
+    }
+
+    /**
+     * 只读事务不分配xid，直接登记
+     */
+    void start(Transaction transaction) {
+        transactions.put(transaction.getXid(), transaction);
+    }
+
+    /**
+     * 事务的最终状态写入之后调用
+     */
+    void finish(long xid) {
+        transactions.remove(xid);
+    }
+
+    /**
+     * 建立快照，xip 是比 xmax 小的进行中的事务
+     * 先查 pending 再查登记的事务：查 pending 时已经清空的位置，它的事务已经登记，之后一定能找到；
+     * 还没有拿到xid的位置要等它写入，xid可能比 xmax 小
+     */
+    Snapshot snapshot(long xmax) {
+        long[] xip = new long[16];
+        int n = 0;
+        for (int i = 0; i < PENDING_SLOTS; i++) {
+            long xid = pending.get(i);
+            while (xid == ALLOCATING) {
+                Thread.onSpinWait();
+                xid = pending.get(i);
+            }
+            if (xid > 0 && xid < xmax) {
+                if (n == xip.length) {
+                    xip = Arrays.copyOf(xip, n * 2);
+                }
+                xip[n++] = xid;
+            }
+        }
+        for (Long xid : transactions.keySet()) {
+            // 只读事务是负数，不在快照中
+            if (xid > 0 && xid < xmax) {
+                if (n == xip.length) {
+                    xip = Arrays.copyOf(xip, n * 2);
+                }
+                xip[n++] = xid;
+            }
+        }
+        Arrays.sort(xip, 0, n);
+        // 同一个事务可能在 pending 和登记的事务中各找到一次
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || xip[m - 1] != xip[i]) {
+                xip[m++] = xip[i];
+            }
+        }
+        return Snapshot.of(xmax, xip, m);
+    }
+
+    public Transaction get(long xid) {
+        return transactions.get(xid);
+    }
+
+    public Collection<Transaction> transactions() {
+        return transactions.values();
+    }
+
+    /**
+     * 所有进行中的事务的快照中最老的事务
+     * @param floor 调用前读取的最老的进行中的事务，没有登记的事务时返回它
+     * @param free 是否用于释放版本，见 TransactionManager.freeHorizon
+     */
+    long horizon(long floor, boolean free) {
+        long horizon = floor;
+        for (Transaction transaction : transactions.values()) {
+            horizon = Math.min(horizon, free ? transaction.getFreeXmin() : transaction.getSnapshotXmin());
+        }
+        return horizon;
+    }
+}
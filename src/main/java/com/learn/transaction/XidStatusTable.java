@@ -0,0 +1,123 @@
+package com.learn.transaction;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 事务状态在内存中的副本，每个事务占2位，一个long放32个事务
+ * 按块分配，每块 CHUNK_XIDS 个事务，事务增加时只追加新的块，已有的块不会被复制，读取不需要加锁。
+ * .xid 文件仍然是持久化的状态，先写文件再改内存，打开时从文件整体载入。
+ * 状态的取值和 .xid 文件中的一样：0 活跃，1 已提交，2 已回滚
+ * 截断后整块都已冻结的块被丢掉，其中的事务按已提交返回
+ * @author peiyou
+ * @version 1.0
+ * @className XidStatusTable
+ * @date 2026/10/18 18:40
+ **/
+final class XidStatusTable {
+
+    private static final int BITS = 2;
+
+    private static final int XIDS_PER_LONG = Long.SIZE / BITS;
+
+    private static final long MASK = (1L << BITS) - 1;
+
+    private static final byte COMMITTED = 1;
+
+    // 每块的事务数，64K个事务占16KB
+    private static final int CHUNK_XIDS = 64 * 1024;
+
+    private static final int CHUNK_LONGS = CHUNK_XIDS / XIDS_PER_LONG;
+
+    private volatile AtomicLongArray[] chunks;
+
+    private final Lock growLock;
+
+    XidStatusTable() {
+        this.chunks = new AtomicLongArray[0];
+        this.growLock = new ReentrantLock();
+    }
+
+    /**
+     * 超出已经分配的范围时返回活跃，和读取 .xid 文件末尾之后的位置一样
+     */
+    byte get(long xid) {
+        long index = xid - 1;
+        AtomicLongArray[] current = chunks;
+        int chunk = (int) (index / CHUNK_XIDS);
+        if (index < 0 || chunk >= current.length) {
+            return 0;
+        }
+        AtomicLongArray words = current[chunk];
+        if (words == null) {
+            return COMMITTED;
+        }
+        int inChunk = (int) (index % CHUNK_XIDS);
+        long word = words.get(inChunk / XIDS_PER_LONG);
+        return (byte) ((word >>> shift(inChunk)) & MASK);
+    }
+
+    void set(long xid, byte status) {
+        long index = xid - 1;
+        int chunk = (int) (index / CHUNK_XIDS);
+        AtomicLongArray[] current = chunks;
+        if (chunk >= current.length) {
+            current = grow(chunk + 1);
+        }
+        int inChunk = (int) (index % CHUNK_XIDS);
+        AtomicLongArray words = current[chunk];
+        int wordIndex = inChunk / XIDS_PER_LONG;
+        int shift = shift(inChunk);
+        while (true) {
+            long word = words.get(wordIndex);
+            long updated = (word & ~(MASK << shift)) | (((long) status & MASK) << shift);
+            if (word == updated || words.compareAndSet(wordIndex, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 丢掉比 frozenXid 小的事务所在的完整的块
+     */
+    void truncate(long frozenXid) {
+        growLock.lock();
+        try {
+            AtomicLongArray[] current = chunks;
+            int chunkCount = (int) Math.min(current.length, (frozenXid - 1) / CHUNK_XIDS);
+            if (chunkCount == 0) {
+                return;
+            }
+            AtomicLongArray[] truncated = current.clone();
+            Arrays.fill(truncated, 0, chunkCount, null);
+            chunks = truncated;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    private AtomicLongArray[] grow(int chunkCount) {
+        growLock.lock();
+        try {
+            AtomicLongArray[] current = chunks;
+            if (current.length >= chunkCount) {
+                return current;
+            }
+            AtomicLongArray[] grown = new AtomicLongArray[chunkCount];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            for (int i = current.length; i < chunkCount; i++) {
+                grown[i] = new AtomicLongArray(CHUNK_LONGS);
+            }
+            chunks = grown;
+            return grown;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    private static int shift(int inChunk) {
+        return (inChunk % XIDS_PER_LONG) * BITS;
+    }
+}
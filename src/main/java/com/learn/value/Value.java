@@ -3,6 +3,7 @@ package com.learn.value;
 import com.google.common.primitives.Bytes;
 import com.learn.table.Column;
 
+import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 
 /**
@@ -56,18 +57,19 @@ public abstract class Value implements Comparable<Value> {
         } else if (o2.isNull()) {
             return 1;
         } else {
-            long v1 = Long.parseLong(o1.getObject().toString());
-            long v2 = Long.parseLong(o2.getObject().toString());
-            if (v1 > 0 && v2 < 0) {
-                return 1;
-            } else if (v2 > 0 && v1 < 0) {
-                return -1;
-            } else {
-                return (int)(v1 - v2);
+            Object v1 = o1.getObject();
+            Object v2 = o2.getObject();
+            if (isIntegral(v1) && isIntegral(v2)) {
+                return Long.compare(((Number) v1).longValue(), ((Number) v2).longValue());
             }
+            return new BigDecimal(v1.toString()).compareTo(new BigDecimal(v2.toString()));
         }
     }
 
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short;
+    }
+
     /**
      * 获取到对应格式的字节数组
      * @author Peiyou
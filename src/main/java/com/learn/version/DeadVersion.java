@@ -0,0 +1,14 @@
+package com.learn.version;
+
+/**
+ * 已经被删除、被更新替换的版本，或者回滚时丢弃的版本，等待 {@link Vacuum} 清理
+ * @param uid 版本的uid
+ * @param xmax 删除这个版本的事务
+ * @param unlinkedAt 索引删除时下一个要分配的事务id，比它小的事务都结束后才能释放空间，还没有删除索引时为0
+ * @author peiyou
+ * @version 1.0
+ * @className DeadVersion
+ * @date 2026/10/18 17:40
+ **/
+record DeadVersion(long uid, long xmax, long unlinkedAt) {
+}
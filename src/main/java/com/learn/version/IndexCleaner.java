@@ -0,0 +1,43 @@
+package com.learn.version;
+
+/**
+ * 清理版本时删除指向它的索引，回滚换了位置的更新时把索引改回旧版本，重启后遍历索引查找旧版本，由表提供
+ * @author peiyou
+ * @version 1.0
+ * @className IndexCleaner
+ * @date 2026/10/18 17:40
+ **/
+public interface IndexCleaner {
+
+    /**
+     * 删除仍然指向uid的索引项，索引已经指向别的版本时什么都不做
+     * @param data 版本中的数据（不包括xmin、xmax）
+     */
+    void remove(byte[] data, long uid) throws Exception;
+
+    /**
+     * 把 data 对应的索引项重新指向 uid，回滚时调用，这时回滚的事务还持有这一行的锁
+     * 原地更新不修改索引，只有换了位置的更新需要
+     */
+    default void relink(byte[] data, long uid) throws Exception {
+    }
+
+    /**
+     * 从头遍历索引指向的所有版本，Vacuum 重启后分批查找之前留下的旧版本
+     * 两次调用 next 之间索引可以被修改，返回null时不查找
+     */
+    default Scan scan() {
+        return null;
+    }
+
+    /**
+     * 按索引的顺序返回版本的uid
+     */
+    interface Scan {
+
+        /**
+         * 下一个版本的uid，遍历完返回0
+         */
+        long next() throws Exception;
+    }
+}
@@ -0,0 +1,223 @@
+package com.learn.version;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一张表的行锁统计：等待时间的分布、死锁、等待超时、并发更新导致的回滚，以及等待最多的行
+ * 只在发生等待时记录，不需要等待的加锁没有额外的开销。
+ * 等待最多的行只跟踪 MAX_TRACKED 个，超出时所有计数减半并丢掉减到0的行，留下的是近期等待多的行。
+ * @author peiyou
+ * @version 1.0
+ * @className LockStats
+ * @date 2026/10/18 21:10
+ **/
+public class LockStats implements LockStatsMXBean {
+
+    // 等待时间分布的桶数，最后一个桶放等待了 2^30 微秒以上的
+    private static final int BUCKETS = 32;
+
+    // 最多跟踪的行数
+    private static final int MAX_TRACKED = 1024;
+
+    // 默认列出的等待最多的行数
+    public static final int DEFAULT_TOP_N = 10;
+
+    private volatile String table = "";
+
+    private ObjectName objectName;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong waits = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final AtomicLong deadlocks = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong versionSkipAborts = new AtomicLong();
+
+    private final Map<Long, LongAdder> contended = new ConcurrentHashMap<>();
+
+    /**
+     * 等待锁结束，获得了锁或者超时
+     */
+    public void recordWait(long uid, long nanos) {
+        waits.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        histogram.incrementAndGet(bucket);
+        recordContention(uid);
+    }
+
+    public void recordDeadlock(long uid) {
+        deadlocks.incrementAndGet();
+        recordContention(uid);
+    }
+
+    public void recordTimeout(long uid, long nanos) {
+        timeouts.incrementAndGet();
+        recordWait(uid, nanos);
+    }
+
+    public void recordVersionSkip() {
+        versionSkipAborts.incrementAndGet();
+    }
+
+    private void recordContention(long uid) {
+        contended.computeIfAbsent(uid, k -> new LongAdder()).increment();
+        if (contended.size() > MAX_TRACKED) {
+            decay();
+        }
+    }
+
+    private synchronized void decay() {
+        if (contended.size() <= MAX_TRACKED) {
+            return;
+        }
+        contended.entrySet().removeIf(entry -> {
+            long halved = entry.getValue().sumThenReset() / 2;
+            entry.getValue().add(halved);
+            return halved == 0;
+        });
+    }
+
+    /**
+     * 等待最多的 n 行，每一项是 {uid, 次数}
+     */
+    public List<long[]> topContended(int n) {
+        List<long[]> top = new ArrayList<>(contended.size());
+        for (Map.Entry<Long, LongAdder> entry : contended.entrySet()) {
+            top.add(new long[]{entry.getKey(), entry.getValue().sum()});
+        }
+        top.sort((a, b) -> Long.compare(b[1], a[1]));
+        return top.size() > n ? new ArrayList<>(top.subList(0, n)) : top;
+    }
+
+    /**
+     * 注册为JMX的MBean，同名的表已经注册过时替换它
+     */
+    public synchronized void register(String table) {
+        this.table = table;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.learn:type=LockStats,table=" + ObjectName.quote(table));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public long getWaits() {
+        return waits.get();
+    }
+
+    @Override
+    public long getTotalWaitMillis() {
+        return totalWaitNanos.get() / 1_000_000;
+    }
+
+    @Override
+    public long getMaxWaitMicros() {
+        return maxWaitNanos.get() / 1000;
+    }
+
+    @Override
+    public long[] getWaitHistogram() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histogram.get(i);
+        }
+        return buckets;
+    }
+
+    @Override
+    public long getDeadlocks() {
+        return deadlocks.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getVersionSkipAborts() {
+        return versionSkipAborts.get();
+    }
+
+    @Override
+    public String[] getTopContended() {
+        return topContended(DEFAULT_TOP_N).stream().map(e -> e[0] + "=" + e[1]).toArray(String[]::new);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+        waits.set(0);
+        totalWaitNanos.set(0);
+        maxWaitNanos.set(0);
+        deadlocks.set(0);
+        timeouts.set(0);
+        versionSkipAborts.set(0);
+        contended.clear();
+    }
+
+    @Override
+    public String toString() {
+        long[] buckets = getWaitHistogram();
+        int last = buckets.length - 1;
+        while (last > 0 && buckets[last] == 0) {
+            last--;
+        }
+        return "LockStats{table=" + table + ", waits=" + getWaits() + ", totalWaitMillis=" + getTotalWaitMillis()
+                + ", maxWaitMicros=" + getMaxWaitMicros() + ", deadlocks=" + getDeadlocks()
+                + ", timeouts=" + getTimeouts() + ", versionSkipAborts=" + getVersionSkipAborts()
+                + ", histogram=" + Arrays.toString(Arrays.copyOf(buckets, last + 1))
+                + ", top=" + Arrays.toString(getTopContended()) + "}";
+    }
+}
@@ -0,0 +1,43 @@
+package com.learn.version;
+
+/**
+ * 行锁统计的JMX接口，每张表一个，ObjectName 为 com.learn:type=LockStats,table=表名
+ * @author peiyou
+ * @version 1.0
+ * @className LockStatsMXBean
+ * @date 2026/10/18 21:10
+ **/
+public interface LockStatsMXBean {
+
+    String getTable();
+
+    /**
+     * 等待过锁的次数，包括超时的
+     */
+    long getWaits();
+
+    long getTotalWaitMillis();
+
+    long getMaxWaitMicros();
+
+    /**
+     * 等待时间的分布，第 i 个桶是等待了 [2^(i-1), 2^i) 微秒的次数，第0个桶是不到1微秒的
+     */
+    long[] getWaitHistogram();
+
+    long getDeadlocks();
+
+    long getTimeouts();
+
+    /**
+     * 并发更新了同一行（isVersionSkip）导致的回滚
+     */
+    long getVersionSkipAborts();
+
+    /**
+     * 等待次数最多的行，格式为 uid=次数，按次数从多到少
+     */
+    String[] getTopContended();
+
+    void reset();
+}
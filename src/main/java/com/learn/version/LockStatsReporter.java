@@ -0,0 +1,94 @@
+package com.learn.version;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 定期输出所有表的行锁统计，每个事务管理器一个，默认不启动
+ * @author peiyou
+ * @version 1.0
+ * @className LockStatsReporter
+ * @date 2026/10/18 21:30
+ **/
+public class LockStatsReporter {
+
+    private final List<LockStats> targets;
+
+    private final Consumer<String> sink;
+
+    private Thread worker;
+
+    private volatile boolean stopped;
+
+    public LockStatsReporter() {
+        this(System.out::println);
+    }
+
+    public LockStatsReporter(Consumer<String> sink) {
+        this.targets = new CopyOnWriteArrayList<>();
+        this.sink = sink;
+    }
+
+    public void register(LockStats lockStats) {
+        targets.add(lockStats);
+    }
+
+    public void unregister(LockStats lockStats) {
+        targets.remove(lockStats);
+    }
+
+    /**
+     * 每隔 periodMillis 输出一次，已经启动时不做任何事
+     */
+    public synchronized void start(long periodMillis) {
+        if (worker != null) {
+            return;
+        }
+        stopped = false;
+        long period = Math.max(1, periodMillis);
+        worker = new Thread(() -> run(period), "lock-stats");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (worker == null) {
+            return;
+        }
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+
+    private void run(long periodMillis) {
+        while (!stopped) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sink.accept(dump());
+        }
+    }
+
+    /**
+     * 所有表当前的统计，一张表一行
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (LockStats lockStats : targets) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(lockStats);
+        }
+        return builder.toString();
+    }
+}
@@ -95,6 +95,8 @@ public class LockTable {
                 continue;
             } else {
                 u2x.put(uid, xid);
+                // 新的持有者释放时才能找到这个资源
+                putIntoList(x2u, xid, uid);
                // Lock lo = waitLock.remove(xid);
                 CountDownLatch latch = waitLock.remove(xid);
                 waitU.remove(xid);
@@ -0,0 +1,50 @@
+package com.learn.version;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 乐观事务在一张表中的读集合和写集合，只有事务自己的线程访问
+ * 写集合按uid排序，提交时按顺序加锁，乐观事务之间不会因为加锁的顺序死锁
+ * @author peiyou
+ * @version 1.0
+ * @className ReadWriteSet
+ * @date 2026/10/18 23:10
+ **/
+final class ReadWriteSet {
+
+    // 读过的uid，包括没有读到数据的
+    private final Set<Long> reads = new HashSet<>();
+
+    // uid -> 新的内容，删除时为null
+    private final TreeMap<Long, byte[]> writes = new TreeMap<>();
+
+    void read(long uid) {
+        reads.add(uid);
+    }
+
+    void write(long uid, byte[] data) {
+        writes.put(uid, data);
+    }
+
+    boolean isWritten(long uid) {
+        return writes.containsKey(uid);
+    }
+
+    /**
+     * 写集合中的新内容，已经删除时返回null
+     */
+    byte[] written(long uid) {
+        return writes.get(uid);
+    }
+
+    Set<Long> reads() {
+        return reads;
+    }
+
+    Map<Long, byte[]> writes() {
+        return writes;
+    }
+}
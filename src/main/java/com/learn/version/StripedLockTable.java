@@ -0,0 +1,267 @@
+package com.learn.version;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 行锁表，按uid分成 STRIPES 段，每段一把锁，管理这一段的行的持有者和等待队列，不同的行之间不再争用同一把锁
+ * 死锁检测只沿着等待者自己的等待链走：先登记自己在等哪一行，再从这一行的持有者开始，看它在等哪一行、这一行又被谁持有……
+ * 每一步只锁这一行所在的段。
+ * 走回自己就是死锁。两个事务同时形成环时，后登记的一方一定能看到先登记的一方，至少有一个会发现死锁。
+ * 等待链超过 MAX_DEPTH 时不再检测，由等待超时兜底。
+ * @author peiyou
+ * @version 1.0
+ * @className StripedLockTable
+ * @date 2026/10/18 20:30
+ **/
+public class StripedLockTable {
+
+    // 段数，2的幂
+    private static final int STRIPES = 64;
+
+    // 死锁检测最多沿等待链走的步数
+    private static final int MAX_DEPTH = 64;
+
+    // 默认等待锁的超时时间
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private final Stripe[] stripes;
+
+    // 事务持有的uid，只有事务自己和把锁交给它的事务（这时它在等待）会修改
+    private final Map<Long, List<Long>> held;
+
+    // 事务正在等待的uid
+    private final Map<Long, Long> waitsFor;
+
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    // 只在发生等待时记录
+    private final LockStats lockStats;
+
+    public StripedLockTable() {
+        this(new LockStats());
+    }
+
+    public StripedLockTable(LockStats lockStats) {
+        this.lockStats = lockStats;
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.held = new ConcurrentHashMap<>();
+        this.waitsFor = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * xid 获取 uid 的锁，被别的事务持有时等待它释放
+     * 会造成死锁或者等待超时时抛出异常，这时没有获得锁
+     * @return 等待过时返回把锁交给自己的事务，不需要等待时返回null
+     */
+    public Long acquire(long xid, long uid) throws Exception {
+        Stripe stripe = stripe(uid);
+        Waiter waiter;
+        stripe.lock.lock();
+        try {
+            Row row = stripe.rows.get(uid);
+            if (row == null) {
+                stripe.rows.put(uid, new Row(xid));
+                grant(xid, uid);
+                return null;
+            }
+            if (row.holder == xid) {
+                return null;
+            }
+            waiter = new Waiter(xid);
+            row.waiters.add(waiter);
+            // 先登记再检测，和同时开始等待的事务之间不会互相看不到
+            waitsFor.put(xid, uid);
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (hasDeadLock(xid, uid)) {
+            if (cancel(stripe, uid, waiter)) {
+                lockStats.recordDeadlock(uid);
+                throw new RuntimeException("存在死锁");
+            }
+            return waiter.releasedBy;
+        }
+        long begin = System.nanoTime();
+        boolean granted;
+        try {
+            granted = waiter.latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            if (cancel(stripe, uid, waiter)) {
+                throw e;
+            }
+            Thread.currentThread().interrupt();
+            granted = true;
+        }
+        if (!granted && cancel(stripe, uid, waiter)) {
+            lockStats.recordTimeout(uid, System.nanoTime() - begin);
+            throw new RuntimeException("等待锁超时，uid：" + uid);
+        }
+        lockStats.recordWait(uid, System.nanoTime() - begin);
+        return waiter.releasedBy;
+    }
+
+    /**
+     * 释放xid持有的所有锁，每一行交给等待队列中的第一个事务
+     */
+    public void remove(long xid) {
+        Long waiting = waitsFor.get(xid);
+        if (waiting != null) {
+            // 事务在等待时被回滚
+            Stripe stripe = stripe(waiting);
+            stripe.lock.lock();
+            try {
+                Row row = stripe.rows.get(waiting);
+                if (row != null) {
+                    row.waiters.removeIf(waiter -> waiter.xid == xid);
+                }
+                waitsFor.remove(xid);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        List<Long> uids = held.remove(xid);
+        if (uids == null) {
+            return;
+        }
+        for (long uid : uids) {
+            release(xid, uid);
+        }
+    }
+
+    private void release(long xid, long uid) {
+        Stripe stripe = stripe(uid);
+        stripe.lock.lock();
+        try {
+            Row row = stripe.rows.get(uid);
+            if (row == null || row.holder != xid) {
+                return;
+            }
+            Waiter next = row.waiters.poll();
+            if (next == null) {
+                stripe.rows.remove(uid);
+                return;
+            }
+            row.holder = next.xid;
+            waitsFor.remove(next.xid);
+            grant(next.xid, uid);
+            next.releasedBy = xid;
+            next.latch.countDown();
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // 持有段锁时调用
+    private void grant(long xid, long uid) {
+        held.computeIfAbsent(xid, k -> new ArrayList<>(2)).add(uid);
+    }
+
+    /**
+     * 取消等待，返回false表示在取消之前已经获得了锁
+     */
+    private boolean cancel(Stripe stripe, long uid, Waiter waiter) {
+        stripe.lock.lock();
+        try {
+            if (waiter.latch.getCount() == 0) {
+                return false;
+            }
+            Row row = stripe.rows.get(uid);
+            if (row != null) {
+                row.waiters.remove(waiter);
+            }
+            waitsFor.remove(waiter.xid);
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * 从 uid 的持有者开始沿等待链走，走回 xid 说明有环
+     */
+    private boolean hasDeadLock(long xid, long uid) {
+        Long waiting = uid;
+        for (int depth = 0; depth < MAX_DEPTH && waiting != null; depth++) {
+            Long holder = holder(waiting);
+            if (holder == null) {
+                return false;
+            }
+            if (holder == xid) {
+                return true;
+            }
+            waiting = waitsFor.get(holder);
+        }
+        return false;
+    }
+
+    private Long holder(long uid) {
+        Stripe stripe = stripe(uid);
+        stripe.lock.lock();
+        try {
+            Row row = stripe.rows.get(uid);
+            return row == null ? null : row.holder;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Stripe stripe(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58) & (STRIPES - 1)];
+    }
+
+    public LockStats getLockStats() {
+        return lockStats;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = Math.max(1, timeoutMillis);
+    }
+
+    private static final class Stripe {
+
+        private final Lock lock = new ReentrantLock();
+
+        private final Map<Long, Row> rows = new HashMap<>();
+    }
+
+    /**
+     * 一行的持有者和等待队列，按等待的先后获得锁
+     */
+    private static final class Row {
+
+        private long holder;
+
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+        private Row(long holder) {
+            this.holder = holder;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final long xid;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        // 把锁交给这个等待者的事务，countDown 之前写入
+        private volatile long releasedBy;
+
+        private Waiter(long xid) {
+            this.xid = xid;
+        }
+    }
+}
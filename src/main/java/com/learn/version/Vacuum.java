@@ -0,0 +1,323 @@
+package com.learn.version;
+
+import com.learn.transaction.TransactionManager;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 清理已经没有事务能看到的旧版本，每个事务管理器一个
+ * 删除给版本设置 xmax；更新原地写入时旧的内容保存为撤销版本，换位置时给旧版本设置 xmax，
+ * 这些旧版本记录在 VersionManager 的 deadVersions 中，清理分两步：
+ * 1、删除的事务已提交，并且比所有活跃事务快照中最老的事务（horizon）还小时，这个版本对所有事务都不可见了，
+ *    删除仍然指向它的索引，记下这时下一个要分配的事务id
+ * 2、比这个事务id小的事务都结束以后，不会再有事务从索引拿到这个uid，释放它在页中的槽；
+ *    只读事务不占用事务id，按它开始时已经分配的最大事务id算，见 TransactionManager.freeHorizon
+ * 撤销版本没有索引指向它，指向它的 prev 也不用清掉：替换它的事务对所有事务都可见，沿版本链读取时不会再走到它
+ * 冻结时发现的对所有事务都不可见的版本（见 freeze）已经置为无效并删除了索引，直接进入第2步；清理时遇到无效的版本跳过。
+ * 后台线程每轮每张表最多处理 batchSize 个版本，两轮之间至少间隔 delayMillis，不和前台抢太多IO
+ * deadVersions 只在内存中，只有打开之后删除的版本。之前留下的旧版本（上次关闭或者崩溃时还没有清理的）
+ * 由每轮接着上一轮的位置遍历 batchSize 个索引项找出来：删除的事务在打开之前已经提交并且比 horizon 小，
+ * 先置为无效再删除索引，之后和 deadVersions 中的版本一样释放；遍历完一遍之后不再查找。
+ * 只有索引指向的版本能这样找到，重启前留下的撤销版本和换了位置的旧版本只在版本链中，仍然不会被清理。
+ * @author peiyou
+ * @version 1.0
+ * @className Vacuum
+ * @date 2026/10/18 17:40
+ **/
+public class Vacuum {
+
+    // 默认每轮每张表最多处理的版本数
+    public static final int DEFAULT_BATCH_SIZE = 128;
+
+    // 默认两轮之间的间隔
+    public static final long DEFAULT_DELAY_MILLIS = 20;
+
+    // 没有需要清理的版本时的检查间隔
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private final TransactionManager transactionManager;
+
+    private final List<VersionManager> targets;
+
+    // 同一时间只有一轮清理，注销的表要等正在进行的清理结束
+    private final Lock lock;
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private volatile long delayMillis = DEFAULT_DELAY_MILLIS;
+
+    private Thread worker;
+
+    private volatile boolean stopped;
+
+    private volatile long rounds;
+
+    private volatile long unlinkedCount;
+
+    private volatile long freedCount;
+
+    private volatile Exception lastError;
+
+    public Vacuum(TransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+        this.targets = new CopyOnWriteArrayList<>();
+        this.lock = new ReentrantLock();
+    }
+
+    public void register(VersionManager versionManager) {
+        targets.add(versionManager);
+    }
+
+    public void unregister(VersionManager versionManager) {
+        lock.lock();
+        try {
+            targets.remove(versionManager);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 启动后台线程，恢复完成之后调用
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::run, "vacuum");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (worker == null) {
+            return;
+        }
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+
+    private void run() {
+        while (!stopped) {
+            int processed = 0;
+            try {
+                processed = vacuum();
+            } catch (Exception e) {
+                // 下一轮再试，错误留给调用方查看
+                lastError = e;
+            }
+            try {
+                // 还有没处理完的版本时很快开始下一轮
+                TimeUnit.MILLISECONDS.sleep(processed > 0 ? delayMillis : CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 做一轮清理，每张表最多处理 batchSize 个版本，返回处理（删除索引或者释放）的版本数
+     */
+    public int vacuum() throws Exception {
+        lock.lock();
+        try {
+            long horizon = horizon();
+            long freeHorizon = transactionManager.freeHorizon();
+            int processed = 0;
+            for (VersionManager versionManager : targets) {
+                processed += free(versionManager, freeHorizon);
+                processed += unlink(versionManager, horizon);
+                processed += scan(versionManager, horizon);
+            }
+            rounds++;
+            return processed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 冻结 uids 这些版本中比 limit 小的事务，见 VersionManager.freeze
+     * 和清理持有同一把锁，冻结置为无效的版本不会同时被清理删除索引，也就不会被释放两次
+     * @return 修改的版本数
+     */
+    public int freeze(VersionManager versionManager, Iterable<Long> uids, long limit) throws Exception {
+        lock.lock();
+        try {
+            int frozen = 0;
+            for (long uid : uids) {
+                if (versionManager.freeze(uid, limit)) {
+                    frozen++;
+                }
+            }
+            return frozen;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 所有活跃事务的快照中最老的事务，比它小的已提交事务的删除对所有事务都可见
+     * 没有活跃事务时是下一个要分配的事务id
+     */
+    public long horizon() {
+        return transactionManager.horizon();
+    }
+
+    /**
+     * 删除对所有事务都不可见的版本的索引
+     */
+    private int unlink(VersionManager versionManager, long horizon) throws Exception {
+        Queue<DeadVersion> deadVersions = versionManager.getDeadVersions();
+        Queue<DeadVersion> unlinkedVersions = versionManager.getUnlinkedVersions();
+        int size = Math.min(batchSize, deadVersions.size());
+        int processed = 0;
+        for (int i = 0; i < size; i++) {
+            DeadVersion deadVersion = deadVersions.poll();
+            if (deadVersion == null) {
+                break;
+            }
+            long xmax = deadVersion.xmax();
+            if (transactionManager.isAborted(xmax)) {
+                // 删除被回滚了，版本仍然有效，之后再被删除时会重新加入
+                continue;
+            }
+            if (xmax >= horizon || !transactionManager.isCommitted(xmax)) {
+                // 还有事务能看到，放回队尾
+                deadVersions.add(deadVersion);
+                continue;
+            }
+            if (!versionManager.getDataManager().exists(deadVersion.uid())) {
+                // 冻结时已经删除了索引并且释放了
+                continue;
+            }
+            VersionWrap versionWrap = VersionWrap.load(versionManager.getDataManager(), deadVersion.uid());
+            try {
+                if (!versionWrap.isValid()) {
+                    // 冻结时已经删除了索引，等待释放
+                    continue;
+                }
+                if (versionWrap.getXidMax() != xmax) {
+                    // 回滚的删除已经被冻结清掉，事务状态截断后按已提交返回
+                    continue;
+                }
+                IndexCleaner indexCleaner = versionManager.getIndexCleaner();
+                if (indexCleaner != null) {
+                    indexCleaner.remove(versionWrap.data(), deadVersion.uid());
+                }
+            } finally {
+                versionWrap.release();
+            }
+            long unlinkedAt = transactionManager.getXidCounter() + 1;
+            unlinkedVersions.add(new DeadVersion(deadVersion.uid(), xmax, unlinkedAt));
+            unlinkedCount++;
+            processed++;
+        }
+        return processed;
+    }
+
+    /**
+     * 接着上一轮的位置遍历最多 batchSize 个索引项，找出打开之前留下的对所有事务都不可见的版本，返回遍历的索引项数
+     * 打开之后的删除都在 deadVersions 中；置为无效之后 unlink 和冻结遇到它都会跳过，不会释放两次
+     */
+    private int scan(VersionManager versionManager, long horizon) throws Exception {
+        IndexCleaner.Scan scan = versionManager.getStaleScan();
+        if (scan == null) {
+            return 0;
+        }
+        int scanned = 0;
+        while (scanned < batchSize) {
+            long uid = scan.next();
+            if (uid == 0) {
+                versionManager.finishStaleScan();
+                break;
+            }
+            scanned++;
+            if (!versionManager.getDataManager().exists(uid)) {
+                // 游标读到这一项之后索引被删除、空间已经释放；释放只在持有清理的锁时进行，之后不会再被释放
+                continue;
+            }
+            VersionWrap versionWrap = VersionWrap.load(versionManager.getDataManager(), uid);
+            try {
+                long xmax = versionWrap.getXidMax();
+                if (!versionWrap.isValid() || xmax == 0 || xmax > versionManager.getOpenXid()
+                        || xmax >= horizon || !transactionManager.isCommitted(xmax)) {
+                    continue;
+                }
+                if (!versionWrap.invalidate(xmax)) {
+                    continue;
+                }
+                IndexCleaner indexCleaner = versionManager.getIndexCleaner();
+                if (indexCleaner != null) {
+                    indexCleaner.remove(versionWrap.data(), uid);
+                }
+                long unlinkedAt = transactionManager.getXidCounter() + 1;
+                versionManager.getUnlinkedVersions().add(new DeadVersion(uid, xmax, unlinkedAt));
+                unlinkedCount++;
+            } finally {
+                versionWrap.release();
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * 释放索引删除之前开始的事务都已经结束的版本
+     */
+    private int free(VersionManager versionManager, long horizon) throws Exception {
+        Queue<DeadVersion> unlinkedVersions = versionManager.getUnlinkedVersions();
+        int processed = 0;
+        while (processed < batchSize) {
+            DeadVersion deadVersion = unlinkedVersions.peek();
+            // 队列按 unlinkedAt 排列，前面的不能释放，后面的也不能
+            if (deadVersion == null || deadVersion.unlinkedAt() > horizon) {
+                break;
+            }
+            unlinkedVersions.poll();
+            versionManager.getDataManager().free(deadVersion.uid());
+            freedCount++;
+            processed++;
+        }
+        return processed;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = Math.max(0, delayMillis);
+    }
+
+    public long getRounds() {
+        return rounds;
+    }
+
+    public long getUnlinkedCount() {
+        return unlinkedCount;
+    }
+
+    public long getFreedCount() {
+        return freedCount;
+    }
+
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public String toString() {
+        return "Vacuum{rounds=" + rounds + ", unlinked=" + unlinkedCount + ", freed=" + freedCount + "}";
+    }
+}
@@ -4,14 +4,18 @@ import com.learn.data.DataManager;
 import com.learn.transaction.Transaction;
 import com.learn.transaction.TransactionManager;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.UnaryOperator;
 
 /**
  * 版本管理，MVCC的实现
+ * 进行中的事务由 TransactionManager 统一管理，这里只保存本表的行锁、进行中的事务的撤销记录、乐观事务的读写集合和待清理的版本
+ * 同一行的版本从新到旧连成链，读取时从索引指向的版本开始找第一个可见的版本
  * @author peiyou
  * @version 1.0
  * @className VersionManager
@@ -21,20 +25,45 @@ public class VersionManager {
 
     private DataManager dataManager;
 
-    private Lock lock;
+    private TransactionManager transactionManager;
 
-    private Map<Long, Transaction> activeTransaction;
+    private StripedLockTable lockTable;
 
-    private TransactionManager transactionManager;
+    // 本表的行锁统计
+    private final LockStats lockStats;
+
+    // 被删除的版本，删除的事务提交、并且没有事务能看到之后由 Vacuum 清理
+    private final Queue<DeadVersion> deadVersions;
+
+    // 索引已经删除、等待释放空间的版本，按删除索引的先后排列
+    private final Queue<DeadVersion> unlinkedVersions;
+
+    private volatile IndexCleaner indexCleaner;
 
-    private LockTable lockTable;
+    // 创建时已经分配的最大xid，删除的事务不大于它的版本不在 deadVersions 中，由 Vacuum 遍历索引查找
+    private final long openXid;
+
+    // 遍历索引查找旧版本的游标，还没有开始时为null，遍历完之后不再使用
+    private IndexCleaner.Scan staleScan;
+
+    private boolean staleScanned;
+
+    // 进行中的事务在本表的原地更新和换位置的更新，回滚时撤销
+    private final Map<Long, List<Undo>> undoLogs;
+
+    // 乐观事务在本表的读集合和写集合
+    private final Map<Long, ReadWriteSet> readWriteSets;
 
     public VersionManager(DataManager dataManager, TransactionManager transactionManager) {
         this.dataManager = dataManager;
         this.transactionManager = transactionManager;
-        this.lock = new ReentrantLock();
-        this.activeTransaction = new ConcurrentHashMap<>();
-        this.lockTable = new LockTable();
+        this.lockStats = new LockStats();
+        this.lockTable = new StripedLockTable(lockStats);
+        this.deadVersions = new ConcurrentLinkedQueue<>();
+        this.unlinkedVersions = new ConcurrentLinkedQueue<>();
+        this.undoLogs = new ConcurrentHashMap<>();
+        this.readWriteSets = new ConcurrentHashMap<>();
+        this.openXid = transactionManager.getXidCounter();
     }
     /**
      *
@@ -45,24 +74,42 @@ public class VersionManager {
      * @return
      */
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = transaction(xid);
         if (t.isError()) {
             throw new RuntimeException("读取数据失败，当前事务异常.");
         }
+        if (t.isOptimistic()) {
+            return readOptimistic(t, uid);
+        }
 
-        VersionWrap versionWrap = VersionWrap.load(dataManager, uid);
+        VersionWrap versionWrap = visibleVersion(t, uid);
+        if (versionWrap == null) {
+            return null;
+        }
         try {
-            if (versionWrap.isValid()) {
-                if (Visibility.isVisible(transactionManager, t, versionWrap)) {
-                    return versionWrap.data();
-                } else {
-                    return null;
-                }
-            } else {
-                return null;
-            }
+            return versionWrap.data();
+        } finally {
+            versionWrap.release();
+        }
+    }
+
+    /**
+     * 乐观事务先读自己的写集合，再按快照读取，读过的uid记入读集合
+     */
+    private byte[] readOptimistic(Transaction t, long uid) throws Exception {
+        // 提交或者回滚时清掉读写集合
+        t.touch(this);
+        ReadWriteSet readWriteSet = readWriteSets.computeIfAbsent(t.getXid(), k -> new ReadWriteSet());
+        if (readWriteSet.isWritten(uid)) {
+            return readWriteSet.written(uid);
+        }
+        readWriteSet.read(uid);
+        VersionWrap versionWrap = visibleVersion(t, uid);
+        if (versionWrap == null) {
+            return null;
+        }
+        try {
+            return versionWrap.data();
         } finally {
             versionWrap.release();
         }
@@ -70,118 +117,370 @@ public class VersionManager {
 
     // 插入数据
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
-
+        Transaction t = writableTransaction(xid);
         if (t.isError()) {
             throw new RuntimeException("读取数据失败，当前事务异常.");
         }
+        t.touch(this);
+        // 插入直接写入，别的事务看不到，也不会和别的事务修改同一个uid
+        t.setModified(true);
 
         byte[] raw = VersionWrap.wrapRaw(xid, data);
-        return dataManager.insert(raw);
+        return dataManager.insert(xid, raw);
     }
 
     // 删除数据
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = writableTransaction(xid);
+        if (t.isError()) {
+            throw new RuntimeException("读取数据失败，当前事务异常.");
+        }
+        t.touch(this);
+        if (t.isOptimistic()) {
+            if (readOptimistic(t, uid) == null) {
+                return false;
+            }
+            readWriteSets.get(xid).write(uid, null);
+            t.setModified(true);
+            return true;
+        }
 
+        VersionWrap versionWrap = lockVisible(t, uid);
+        if (versionWrap == null) {
+            return false;
+        }
+        try {
+            versionWrap.setXidMax(xid);
+            deadVersions.add(new DeadVersion(uid, xid, 0));
+            return true;
+        } finally {
+            versionWrap.release();
+        }
+    }
+
+    /**
+     * 更新数据，change 用加锁之后的最新内容计算新的内容
+     * 新版本和旧版本一样大时原地写入，旧的内容保存为撤销版本，返回 uid，索引不用修改；
+     * 大小变了时新版本写到新的位置并指向旧版本，返回新的uid，由调用方把索引指向它
+     * @return 新版本的uid，这一行对当前事务不存在时返回0
+     */
+    public long update(long xid, long uid, UnaryOperator<byte[]> change) throws Exception {
+        Transaction t = writableTransaction(xid);
         if (t.isError()) {
             throw new RuntimeException("读取数据失败，当前事务异常.");
         }
+        t.touch(this);
 
-        VersionWrap versionWrap = VersionWrap.load(dataManager, uid);
+        if (t.isOptimistic()) {
+            // 修改记在写集合中，提交时再写入，uid 不变
+            byte[] current = readOptimistic(t, uid);
+            if (current == null) {
+                return 0;
+            }
+            readWriteSets.get(xid).write(uid, change.apply(current));
+            t.setModified(true);
+            return uid;
+        }
+
+        VersionWrap versionWrap = lockVisible(t, uid);
+        if (versionWrap == null) {
+            return 0;
+        }
         try {
-            if(!Visibility.isVisible(transactionManager, t, versionWrap)) {
-                return false;
+            return write(xid, uid, versionWrap, change.apply(versionWrap.data()));
+        } finally {
+            versionWrap.release();
+        }
+    }
+
+    /**
+     * 把新的内容写入已经加锁的版本，见 update
+     */
+    private long write(long xid, long uid, VersionWrap versionWrap, byte[] data) throws Exception {
+        if (versionWrap.fits(data)) {
+            long undo = 0;
+            if (versionWrap.getXidMin() != xid) {
+                // 本事务第一次修改这个版本，先保存旧的内容，之后读到新 prev 的事务一定能找到它
+                undo = dataManager.insert(xid, versionWrap.undoImage(xid));
+                deadVersions.add(new DeadVersion(undo, xid, 0));
+                undoLog(xid).add(new Undo(uid, undo, true));
             }
-            CountDownLatch latch = null;
+            versionWrap.overwrite(xid, undo, data);
+            return uid;
+        }
+        long newUid = dataManager.insert(xid, VersionWrap.wrapRaw(xid, 0, uid, data));
+        // 新的位置也加锁，从索引找到新位置的事务要等当前事务结束
+        lockTable.acquire(xid, newUid);
+        versionWrap.setXidMax(xid);
+        deadVersions.add(new DeadVersion(uid, xid, 0));
+        undoLog(xid).add(new Undo(uid, newUid, false));
+        return newUid;
+    }
+
+    /**
+     * 乐观事务提交前由 TransactionManager 调用：按uid的顺序给写集合中的行加锁，
+     * 校验读过的行在快照之后没有被别的事务修改、也没有正在被修改，再写入写集合中的修改
+     * 换了位置的更新在这里修改索引。只校验读到过的uid，不检测幻读
+     * 校验失败时抛出异常，由 TransactionManager 回滚
+     */
+    public void prepare(long xid) throws Exception {
+        ReadWriteSet readWriteSet = readWriteSets.get(xid);
+        if (readWriteSet == null) {
+            return;
+        }
+        Transaction t = transaction(xid);
+        for (long uid : readWriteSet.writes().keySet()) {
+            lockTable.acquire(xid, uid);
+        }
+        for (long uid : readWriteSet.reads()) {
+            VersionWrap versionWrap = VersionWrap.load(dataManager, uid);
             try {
-                latch = lockTable.add(xid, uid);
-            } catch(Exception e) {
-                internAbort(xid, true);
-                t.setError(true);
-                throw e;
+                if (Visibility.isChangedAfter(transactionManager, t, versionWrap)) {
+                    lockStats.recordVersionSkip();
+                    throw new RuntimeException("并发更新了数据，乐观事务校验失败。uid:" + uid);
+                }
+            } finally {
+                versionWrap.release();
             }
-
-            Long newUid = null;
-            if (latch != null) {
-                latch.await();
-                // 说明上一个线程唤醒了当前线程，上一个线程持有当前线程的资源。
-                if (t.commitAfterUpdate(lockTable.lastXid)) {
-                    newUid = t.getXidOfUpdateUid(lockTable.lastXid, uid);
+        }
+        for (Map.Entry<Long, byte[]> entry : readWriteSet.writes().entrySet()) {
+            long uid = entry.getKey();
+            byte[] data = entry.getValue();
+            VersionWrap versionWrap = VersionWrap.load(dataManager, uid);
+            try {
+                if (data == null) {
+                    versionWrap.setXidMax(xid);
+                    deadVersions.add(new DeadVersion(uid, xid, 0));
+                    continue;
+                }
+                long newUid = write(xid, uid, versionWrap, data);
+                if (newUid != uid && indexCleaner != null) {
+                    indexCleaner.relink(data, newUid);
                 }
+            } finally {
+                versionWrap.release();
             }
-            if (newUid != null) {
-                versionWrap = VersionWrap.load(dataManager, uid);
+        }
+    }
+
+    /**
+     * 从 uid 开始沿版本链找对 t 可见的版本，找不到返回null
+     */
+    private VersionWrap visibleVersion(Transaction t, long uid) throws Exception {
+        VersionWrap versionWrap = VersionWrap.load(dataManager, uid);
+        while (true) {
+            boolean valid = versionWrap.isValid();
+            if (valid && Visibility.isVisible(transactionManager, t, versionWrap)) {
+                return versionWrap;
             }
-            if(versionWrap.getXidMax() == xid) {
-                return false;
+            long prev = versionWrap.getPrev();
+            // 创建这个版本的事务对 t 可见时，更老的版本都已经被替换了，它们可能已经被清理
+            boolean end = !valid || prev == 0 || Visibility.isCreatedVisible(transactionManager, t, versionWrap);
+            versionWrap.release();
+            if (end) {
+                return null;
             }
+            versionWrap = VersionWrap.load(dataManager, prev);
+        }
+    }
 
+    /**
+     * 给这一行加锁，返回加锁之后重新载入的版本，这一行对 t 已经不存在时返回null
+     * 最新的版本是别的事务正在写入的时候看不到它，但是沿版本链能找到可见的版本，也要等那个事务结束
+     */
+    private VersionWrap lockVisible(Transaction t, long uid) throws Exception {
+        long xid = t.getXid();
+        VersionWrap visible = visibleVersion(t, uid);
+        if (visible == null) {
+            return null;
+        }
+        visible.release();
+        try {
+            lockTable.acquire(xid, uid);
+        } catch(Exception e) {
+            t.setError(true);
+            transactionManager.abort(xid);
+            throw e;
+        }
+
+        // 等待期间之前的持有者可能原地修改、删除或者回滚了这一行，持有行锁之后重新读取
+        VersionWrap versionWrap = VersionWrap.load(dataManager, uid);
+        boolean locked = false;
+        try {
+            if (!versionWrap.isValid() || versionWrap.getXidMax() == xid) {
+                return null;
+            }
             if(Visibility.isVersionSkip(transactionManager, t, versionWrap)) {
-                internAbort(xid, true);
+                lockStats.recordVersionSkip();
                 t.setError(true);
-                throw new RuntimeException("并发更新了数据。uid:" + newUid);
+                transactionManager.abort(xid);
+                throw new RuntimeException("并发更新了数据。uid:" + uid);
             }
-            // 更新数据
-            versionWrap.setXidMax(xid);
-            return true;
+            if (!Visibility.isVisible(transactionManager, t, versionWrap)) {
+                return null;
+            }
+            locked = true;
+            return versionWrap;
         } finally {
-            if (versionWrap != null) {
+            if (!locked) {
                 versionWrap.release();
             }
         }
     }
 
-    private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        activeTransaction.remove(xid);
-        lock.unlock();
+    private List<Undo> undoLog(long xid) {
+        return undoLogs.computeIfAbsent(xid, k -> new ArrayList<>());
+    }
 
-        lockTable.remove(xid);
-        // transactionManager.abort(xid);
+    /**
+     * 冻结 uid 这个版本中比 limit 小的事务，见 VersionWrap.freeze
+     * limit 不能超过 horizon，比它小的事务都已经结束，对所有快照的结果都一样
+     * 置为无效的版本还在索引中，和 Vacuum 删除索引一样：删除索引，等之后开始的事务之前的事务都结束时释放。
+     * 由 Vacuum.freeze 持有清理的锁调用，同一个版本不会被清理再删除一次索引、释放两次
+     * @return 是否修改了版本
+     */
+    boolean freeze(long uid, long limit) throws Exception {
+        VersionWrap versionWrap = VersionWrap.load(dataManager, uid);
+        try {
+            int result = versionWrap.freeze(transactionManager, limit);
+            if (result == VersionWrap.FREEZE_DEAD) {
+                if (indexCleaner != null) {
+                    indexCleaner.remove(versionWrap.data(), uid);
+                }
+                unlinkedVersions.add(new DeadVersion(uid, versionWrap.getXidMax(), transactionManager.getXidCounter() + 1));
+            }
+            return result != VersionWrap.FREEZE_UNCHANGED;
+        } finally {
+            versionWrap.release();
+        }
     }
 
-    public Map<Long, Transaction> getActiveTransaction() {
-        return activeTransaction;
+    private Transaction transaction(long xid) {
+        Transaction t = transactionManager.getTransaction(xid);
+        if (t == null) {
+            throw new RuntimeException("事务不存在或者已经结束，xid：" + xid);
+        }
+        return t;
     }
 
-    public long begin(int level, long xid) {
-        lock.lock();
+    private Transaction writableTransaction(long xid) {
+        Transaction t = transaction(xid);
+        if (t.isReadOnly()) {
+            throw new RuntimeException("只读事务不能修改数据，xid：" + xid);
+        }
+        return t;
+    }
+
+    /**
+     * 按相反的顺序撤销 xid 在本表的更新：原地更新用撤销版本覆盖回来，换了位置的更新把索引改回旧版本
+     * 撤销版本和换位置写入的新版本不会再被找到，等之后开始的事务之前的事务都结束时释放
+     */
+    private void rollback(long xid) {
+        List<Undo> undos = undoLogs.remove(xid);
+        if (undos == null) {
+            return;
+        }
+        long unlinkedAt = transactionManager.getXidCounter() + 1;
         try {
-            // long xid = transactionManager.begin();
-            Transaction t = Transaction.createTransaction(xid, level, activeTransaction);
-            activeTransaction.put(xid, t);
-            return xid;
-        } finally {
-            lock.unlock();
+            for (int i = undos.size() - 1; i >= 0; i--) {
+                Undo undo = undos.get(i);
+                VersionWrap versionWrap = VersionWrap.load(dataManager, undo.uid());
+                try {
+                    if (undo.inPlace()) {
+                        VersionWrap image = VersionWrap.load(dataManager, undo.newUid());
+                        try {
+                            versionWrap.restore(xid, image);
+                        } finally {
+                            image.release();
+                        }
+                    } else if (indexCleaner != null) {
+                        indexCleaner.relink(versionWrap.data(), undo.uid());
+                    }
+                } finally {
+                    versionWrap.release();
+                }
+                unlinkedVersions.add(new DeadVersion(undo.newUid(), xid, unlinkedAt));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
     }
 
-    public void commit(long xid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+    public void setIndexCleaner(IndexCleaner indexCleaner) {
+        this.indexCleaner = indexCleaner;
+    }
 
-        if (t.isError()) {
-            throw new RuntimeException("事务异常。");
+    public LockStats getLockStats() {
+        return lockStats;
+    }
+
+    IndexCleaner getIndexCleaner() {
+        return indexCleaner;
+    }
+
+    long getOpenXid() {
+        return openXid;
+    }
+
+    /**
+     * 查找旧版本的游标，由 Vacuum 持有清理的锁调用，遍历完或者表没有提供时返回null
+     */
+    IndexCleaner.Scan getStaleScan() {
+        if (staleScanned) {
+            return null;
         }
+        if (staleScan == null) {
+            staleScan = indexCleaner == null ? null : indexCleaner.scan();
+            if (staleScan == null) {
+                staleScanned = true;
+            }
+        }
+        return staleScan;
+    }
 
-        lock.lock();
-        t.notifyActivityTransaction(activeTransaction);
-        activeTransaction.remove(xid);
-        lock.unlock();
+    void finishStaleScan() {
+        staleScan = null;
+        staleScanned = true;
+    }
 
-        lockTable.remove(xid);
-//        transactionManager.commit(xid);
+    DataManager getDataManager() {
+        return dataManager;
+    }
+
+    Queue<DeadVersion> getDeadVersions() {
+        return deadVersions;
+    }
+
+    Queue<DeadVersion> getUnlinkedVersions() {
+        return unlinkedVersions;
+    }
+
+    /**
+     * 一次更新，uid 是更新前的版本，newUid 是原地更新的撤销版本或者换位置写入的新版本
+     */
+    private record Undo(long uid, long newUid, boolean inPlace) {
     }
 
+    /**
+     * 事务提交，由 TransactionManager 调用，释放事务在本表持有的行锁
+     */
+    public void commit(long xid) {
+        undoLogs.remove(xid);
+        releaseLocks(xid);
+    }
+
+    /**
+     * 事务回滚，由 TransactionManager 调用，撤销事务在本表的修改，不释放行锁
+     * 回滚日志写入之后 TransactionManager 再调用 releaseLocks，等待的事务拿到锁时看到的是修改之前的版本
+     */
     public void abort(long xid) {
-        internAbort(xid, false);
+        readWriteSets.remove(xid);
+        rollback(xid);
+    }
+
+    public void releaseLocks(long xid) {
+        readWriteSets.remove(xid);
+        lockTable.remove(xid);
     }
 
 }
@@ -3,11 +3,17 @@ package com.learn.version;
 import com.google.common.primitives.Bytes;
 import com.learn.data.DataItem;
 import com.learn.data.DataManager;
+import com.learn.transaction.Transaction;
+import com.learn.transaction.TransactionManager;
 
 import java.nio.ByteBuffer;
 
 /**
+ * [xmin][xmax][prev][data]
  * 对数据进行包裹，用于支持版本控制
+ * 同一行的版本通过 prev 连成一条链，从新到旧。
+ * 更新时新版本大小不变就写在原来的位置，旧的内容复制到一个新的位置（撤销版本），索引一直指向同一个uid；
+ * 大小变了才把新版本写到新的位置，指向旧版本，由表修改索引。
  * @author peiyou
  * @version 1.0
  * @className VersionWrap
@@ -19,8 +25,15 @@ public class VersionWrap {
     private static final int OF_XMIN = 0;
     // 删除数据时的事务ID
     private static final int OF_XMAX = OF_XMIN+8;
+    // 上一个版本的uid，没有时为0
+    private static final int OF_PREV = OF_XMAX+8;
     // 数据
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_DATA = OF_PREV+8;
+
+    // freeze 的结果：没有修改、冻结了事务、版本对所有事务都不可见已经置为无效
+    static final int FREEZE_UNCHANGED = 0;
+    static final int FREEZE_CHANGED = 1;
+    static final int FREEZE_DEAD = 2;
 
     private long uid;
 
@@ -32,14 +45,26 @@ public class VersionWrap {
 
     private long xidMax;
 
+    private long prev;
+
+    // 载入时的完整内容，原地更新不会改变已经载入的版本
+    private byte[] raw;
+
     private static VersionWrap getInstance(DataManager dataManager, DataItem dataItem, long uid) {
         VersionWrap wrap = new VersionWrap();
         wrap.uid = uid;
         wrap.dataItem = dataItem;
         wrap.dataManager = dataManager;
-        ByteBuffer buffer = ByteBuffer.wrap(dataItem.getData());
-        wrap.xidMin = buffer.getLong();
-        wrap.xidMax = buffer.getLong();
+        dataItem.getReadLock().lock();
+        try {
+            wrap.raw = dataItem.getData();
+        } finally {
+            dataItem.getReadLock().unlock();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(wrap.raw);
+        wrap.xidMin = buffer.getLong(OF_XMIN);
+        wrap.xidMax = buffer.getLong(OF_XMAX);
+        wrap.prev = buffer.getLong(OF_PREV);
         return wrap;
     }
 
@@ -49,9 +74,12 @@ public class VersionWrap {
     }
 
     public static byte[] wrapRaw(long xid, byte[] data) {
-        byte[] xmin = ByteBuffer.allocate(Long.BYTES).putLong(xid).array();
-        byte[] xmax = ByteBuffer.allocate(Long.BYTES).putLong(0).array();
-        return Bytes.concat(xmin, xmax, data);
+        return wrapRaw(xid, 0, 0, data);
+    }
+
+    public static byte[] wrapRaw(long xmin, long xmax, long prev, byte[] data) {
+        byte[] header = ByteBuffer.allocate(OF_DATA).putLong(xmin).putLong(xmax).putLong(prev).array();
+        return Bytes.concat(header, data);
     }
 
     public void release() throws Exception {
@@ -59,17 +87,67 @@ public class VersionWrap {
     }
 
     public byte[] data() {
-        dataItem.getReadLock().lock();
+        byte[] data = new byte[raw.length - OF_DATA];
+        System.arraycopy(raw, OF_DATA, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * 新的数据能否原地写入，记录的大小在插入时就固定了
+     */
+    public boolean fits(byte[] data) {
+        return raw.length == OF_DATA + data.length;
+    }
+
+    /**
+     * xid 原地写入新版本，旧的内容是 undo 这个撤销版本，自己之前已经写过时 undo 为0，沿用原来的 prev
+     * 整个版本一次写入，和读取互斥，读到的要么是旧版本，要么是新版本
+     */
+    void overwrite(long xid, long undo, byte[] data) {
+        long newPrev = undo == 0 ? prev : undo;
+        replace(xid, wrapRaw(xid, 0, newPrev, data));
+    }
+
+    /**
+     * 撤销版本的内容：和当前版本一样，只是被 xid 删除了
+     */
+    byte[] undoImage(long xid) {
+        byte[] image = raw.clone();
+        ByteBuffer.wrap(image).putLong(OF_XMIN, xidMin).putLong(OF_XMAX, xid).putLong(OF_PREV, prev);
+        return image;
+    }
+
+    /**
+     * 回滚原地更新，用撤销版本的内容覆盖回来，xmax 恢复为0
+     */
+    void restore(long xid, VersionWrap undo) {
+        byte[] image = undo.raw.clone();
+        ByteBuffer.wrap(image).putLong(OF_XMAX, 0);
+        replace(xid, image);
+    }
+
+    private void replace(long xid, byte[] image) {
+        dataItem.getWriteLock().lock();
         try {
-            byte[] sa = dataItem.getData();
-            byte[] data = new byte[sa.length - OF_DATA];
-            System.arraycopy(sa, OF_DATA, data, 0, data.length);
-            return data;
+            dataItem.update(xid, image);
+            this.raw = image;
+            ByteBuffer buffer = ByteBuffer.wrap(image);
+            this.xidMin = buffer.getLong(OF_XMIN);
+            this.xidMax = buffer.getLong(OF_XMAX);
+            this.prev = buffer.getLong(OF_PREV);
         } finally {
-            dataItem.getReadLock().unlock();
+            dataItem.getWriteLock().unlock();
         }
     }
 
+    public long getUid() {
+        return uid;
+    }
+
+    public long getPrev() {
+        return prev;
+    }
+
     public long getXidMin() {
         return xidMin;
     }
@@ -82,13 +160,75 @@ public class VersionWrap {
         return dataItem.isValid();
     }
 
+    /**
+     * 冻结比 limit 小的事务留下的 xmin 和 xmax，返回 FREEZE_UNCHANGED、FREEZE_CHANGED 或 FREEZE_DEAD
+     * 已提交的插入把 xmin 改为 SUPER_XID，回滚的删除把 xmax 清零，
+     * 回滚的插入和已提交的删除对所有事务都不可见，直接置为无效，返回 FREEZE_DEAD，由调用方删除索引、释放空间。
+     * xmin 冻结后所有事务都能看到这个版本，不会再沿 prev 去找更老的版本，prev 一起清零。
+     * 冻结不属于任何事务，用 SUPER_XID 写日志，恢复时不会被撤销。
+     * 持有写锁重新读取，不会覆盖同时进行的删除。
+     */
+    int freeze(TransactionManager tm, long limit) {
+        dataItem.getWriteLock().lock();
+        try {
+            if (!dataItem.isValid()) {
+                return FREEZE_UNCHANGED;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(dataItem.getData());
+            long xmin = buffer.getLong(OF_XMIN);
+            long xmax = buffer.getLong(OF_XMAX);
+            boolean changed = false;
+            if (xmin != Transaction.SUPER_XID && xmin < limit) {
+                if (!tm.isCommitted(xmin)) {
+                    dataItem.updateValid(false);
+                    return FREEZE_DEAD;
+                }
+                dataItem.update(Transaction.SUPER_XID, OF_XMIN, ByteBuffer.allocate(Long.BYTES).putLong(0).array());
+                this.xidMin = Transaction.SUPER_XID;
+                if (buffer.getLong(OF_PREV) != 0) {
+                    dataItem.update(Transaction.SUPER_XID, OF_PREV, ByteBuffer.allocate(Long.BYTES).putLong(0).array());
+                    this.prev = 0;
+                }
+                changed = true;
+            }
+            if (xmax != 0 && xmax < limit) {
+                if (tm.isCommitted(xmax)) {
+                    dataItem.updateValid(false);
+                    return FREEZE_DEAD;
+                }
+                dataItem.update(Transaction.SUPER_XID, OF_XMAX, ByteBuffer.allocate(Long.BYTES).putLong(0).array());
+                this.xidMax = 0;
+                changed = true;
+            }
+            return changed ? FREEZE_CHANGED : FREEZE_UNCHANGED;
+        } finally {
+            dataItem.getWriteLock().unlock();
+        }
+    }
+
+    /**
+     * 删除这个版本的事务是 xmax 时置为无效，返回是否修改了
+     * 持有写锁重新读取，xmax 已经被冻结清掉或者版本已经无效时不修改
+     */
+    boolean invalidate(long xmax) {
+        dataItem.getWriteLock().lock();
+        try {
+            if (!dataItem.isValid() || ByteBuffer.wrap(dataItem.getData()).getLong(OF_XMAX) != xmax) {
+                return false;
+            }
+            dataItem.updateValid(false);
+            return true;
+        } finally {
+            dataItem.getWriteLock().unlock();
+        }
+    }
+
     public void setXidMax(long xid) {
         dataItem.getWriteLock().lock();
         try {
-            byte[] data = this.data();
             byte[] xidMax = ByteBuffer.allocate(Long.BYTES).putLong(xid).array();
-            System.arraycopy(xidMax, 0, data, OF_XMAX, xidMax.length);
-            dataItem.update(data);
+            dataItem.update(xid, OF_XMAX, xidMax);
+            this.xidMax = xid;
         } finally {
             dataItem.getWriteLock().unlock();
         }
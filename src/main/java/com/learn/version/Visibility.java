@@ -12,15 +12,61 @@ import com.learn.transaction.TransactionManager;
  **/
 public class Visibility {
 
+    /**
+     * 可重复读时，快照之后提交的事务删除了这个版本，或者原地写入了这个版本，都是并发更新
+     */
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, VersionWrap e) {
         long xmax = e.getXidMax();
+        long xmin = e.getXidMin();
         if(t.getLevel() == Transaction.READ_COMMIT) {
             return false;
         } else {
-            return tm.isCommitted(xmax) && (xmax > t.getXid() || t.isInSnapshot(xmax));
+            if (xmin != t.getXid() && isCommittedAfter(tm, t, xmin)) {
+                return true;
+            }
+            return isCommittedAfter(tm, t, xmax);
+        }
+    }
+
+    private static boolean isCommittedAfter(TransactionManager tm, Transaction t, long xid) {
+        return tm.isCommitted(xid) && (xid >= t.getSnapshotXmax() || t.isInSnapshot(xid));
+    }
+
+    /**
+     * 乐观事务提交时的校验：版本在 t 的快照之后被别的事务修改过，或者正在被修改，回滚的修改不算
+     */
+    public static boolean isChangedAfter(TransactionManager tm, Transaction t, VersionWrap e) {
+        if (!e.isValid()) {
+            return false;
         }
+        long xmax = e.getXidMax();
+        return isUnseen(tm, t, e.getXidMin()) || (xmax != 0 && isUnseen(tm, t, xmax));
     }
 
+    private static boolean isUnseen(TransactionManager tm, Transaction t, long xid) {
+        if (xid == t.getXid() || tm.isAborted(xid)) {
+            return false;
+        }
+        return !tm.isCommitted(xid) || xid >= t.getSnapshotXmax() || t.isInSnapshot(xid);
+    }
+
+    /**
+     * 创建这个版本的事务对 t 可见，这时比它更老的版本都已经被替换，不用再沿版本链往前找
+     */
+    public static boolean isCreatedVisible(TransactionManager tm, Transaction t, VersionWrap e) {
+        long xmin = e.getXidMin();
+        if (xmin == t.getXid()) {
+            return true;
+        }
+        if (!tm.isCommitted(xmin)) {
+            return false;
+        }
+        return t.getLevel() == Transaction.READ_COMMIT || (xmin < t.getSnapshotXmax() && !t.isInSnapshot(xmin));
+    }
+
+    /**
+     * 乐观事务和可重复读一样按快照判断
+     */
     public static boolean isVisible(TransactionManager tm, Transaction t, VersionWrap e) {
         if(t.getLevel() == Transaction.READ_COMMIT) {
             return readCommitted(tm, t, e);
@@ -64,6 +110,8 @@ public class Visibility {
 
     private static boolean repeatableRead(TransactionManager tm, Transaction t,  VersionWrap e) {
         long xid = t.getXid();
+        // 读写事务是它自己的xid，只读事务是开始时下一个要分配的xid
+        long snapshotXmax = t.getSnapshotXmax();
         long xmin = e.getXidMin();
         long xmax = e.getXidMax();
         // 是当前事务
@@ -74,10 +122,10 @@ public class Visibility {
          * 2、插入数据的事务在本次事务之前
          * 3、
          */
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if(tm.isCommitted(xmin) && xmin < snapshotXmax && !t.isInSnapshot(xmin)) {
             if(xmax == 0) return true;
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(!tm.isCommitted(xmax) || xmax >= snapshotXmax || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
@@ -0,0 +1,125 @@
+package com.learn.btree;
+
+import com.learn.data.DataItem;
+import com.learn.data.DataManager;
+import com.learn.page.Page;
+import com.learn.page.PageCache;
+import com.learn.value.Value;
+import com.learn.value.ValueInt;
+import com.learn.value.ValueString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主键索引的查找
+ * search 是一次完整的查找，包括从节点缓存中获取节点和加锁；
+ * nodeSearch 是在一个满的节点中二分查找，nodeLinearScan 是原来逐个 Value.compareTo 的线性查找，作为对照
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.learn.btree.BPlusTreeBenchmark
+ * 或者直接运行 main 方法
+ * @author peiyou
+ * @version 1.0
+ * @className BPlusTreeBenchmark
+ * @date 2026/10/18 23:40
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class BPlusTreeBenchmark {
+
+    private static final int KEYS = 20000;
+
+    @Param({"INT", "STRING"})
+    public String keyType;
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    private PageCache pageCache;
+
+    private BPlusTree tree;
+
+    private Value[] keys;
+
+    // 一个满的叶子节点和它的key
+    private Node leaf;
+
+    private Value[] leafKeys;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = File.createTempFile("btree_benchmark", ".idb");
+        raf = new RandomAccessFile(file, "rw");
+        pageCache = new PageCache(raf.getChannel(), 0);
+        DataManager dataManager = new DataManager(pageCache);
+        Page page = pageCache.newPage(Page.SIZE);
+        page.write(DataItem.wrap(new byte[Long.BYTES]));
+        pageCache.releaseForCache(page);
+        tree = new BPlusTree(dataManager, pageCache, 0);
+        keys = new Value[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "INT".equals(keyType) ? new ValueInt(i, false) : new ValueString(String.format("key-%08d", i));
+            tree.add(keys[i], i + 1);
+        }
+
+        leaf = BPlusTree.newNode(pageCache, dataManager);
+        int size = 399;
+        leafKeys = new Value[size];
+        for (int i = 0; i < size; i++) {
+            leafKeys[i] = keys[i];
+            leaf.insert(i, keys[i], i + 1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pageCache.close();
+        raf.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public Long search() throws Exception {
+        return tree.search(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public int nodeSearch() {
+        return leaf.childIndex(leafKeys[ThreadLocalRandom.current().nextInt(leafKeys.length)]);
+    }
+
+    @Benchmark
+    public int nodeLinearScan() {
+        Value key = leafKeys[ThreadLocalRandom.current().nextInt(leafKeys.length)];
+        int keyIndex = 0;
+        while (keyIndex < leafKeys.length && leafKeys[keyIndex].compareTo(key) <= 0) {
+            keyIndex++;
+        }
+        return keyIndex;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(BPlusTreeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
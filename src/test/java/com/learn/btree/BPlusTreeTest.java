@@ -0,0 +1,307 @@
+package com.learn.btree;
+
+import com.learn.cache.CacheStats;
+import com.learn.data.DataItem;
+import com.learn.data.DataManager;
+import com.learn.page.Page;
+import com.learn.page.PageCache;
+import com.learn.value.Value;
+import com.learn.value.ValueInt;
+import com.learn.value.ValueString;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className BPlusTreeTest
+ * @date 2026/10/18 23:40
+ **/
+public class BPlusTreeTest {
+
+    /**
+     * 乱序插入足够多的key，根节点和非叶子节点都会分裂，之后每个key都能找到，按顺序遍历，重新打开后仍然能找到
+     */
+    @Test
+    public void testIntKeys() throws Exception {
+        int count = 5000;
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(i * 2 - count);
+        }
+        Collections.shuffle(keys, new Random(7));
+        List<Value> values = new ArrayList<>();
+        for (int key : keys) {
+            values.add(new ValueInt(key, false));
+        }
+        check(values, "btree_int.idb");
+    }
+
+    @Test
+    public void testStringKeys() throws Exception {
+        List<Value> values = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            values.add(new ValueString("key-" + i));
+        }
+        Collections.shuffle(values, new Random(7));
+        check(values, "btree_string.idb");
+    }
+
+    /**
+     * 范围扫描的边界，扫描过程中插入的key分裂了叶子节点，之后的key仍然按顺序读到，不重复
+     */
+    @Test
+    public void testScan() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "btree_scan.idb");
+        file.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            PageCache pageCache = new PageCache(raf.getChannel(), 0);
+            DataManager dataManager = new DataManager(pageCache);
+            Page page = pageCache.newPage(Page.SIZE);
+            page.write(DataItem.wrap(new byte[Long.BYTES]));
+            pageCache.releaseForCache(page);
+
+            BPlusTree tree = new BPlusTree(dataManager, pageCache, 0);
+            Assert.assertFalse(tree.scan(null, true, null, true).next());
+            for (int i = 0; i < 3000; i += 2) {
+                tree.add(new ValueInt(i, false), i + 1);
+            }
+            Assert.assertEquals(1500, scan(tree.scan(null, true, null, true)).size());
+            List<Long> values = scan(tree.scan(new ValueInt(100, false), true, new ValueInt(200, false), false));
+            Assert.assertEquals(50, values.size());
+            Assert.assertEquals(Long.valueOf(101), values.get(0));
+            Assert.assertEquals(Long.valueOf(199), values.get(49));
+            values = scan(tree.scan(new ValueInt(99, false), false, new ValueInt(200, false), true));
+            Assert.assertEquals(51, values.size());
+            Assert.assertEquals(Long.valueOf(101), values.get(0));
+            values = scan(tree.scan(new ValueInt(100, false), false, null, true));
+            Assert.assertEquals(Long.valueOf(103), values.get(0));
+            Assert.assertEquals(1449, values.size());
+
+            Cursor cursor = tree.scan(null, true, null, true);
+            int count = 0;
+            int last = -1;
+            while (cursor.next()) {
+                int key = (int) (cursor.value() - 1);
+                Assert.assertTrue(key > last);
+                last = key;
+                count++;
+                if (key == 10) {
+                    for (int i = 1; i < 3000; i += 2) {
+                        tree.add(new ValueInt(i, false), i + 1);
+                    }
+                }
+            }
+            // 已经读到缓冲中的那个叶子节点范围内新插入的key读不到，之后的都能读到
+            Assert.assertEquals(2999, last);
+            Assert.assertTrue(count > 1500);
+            pageCache.close();
+        }
+        file.delete();
+    }
+
+    /**
+     * 批量加载建立多层的树，每个key都能找到，之后还能继续插入；key不递增时放弃加载，树还是空的
+     */
+    @Test
+    public void testBulkLoad() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "btree_bulk.idb");
+        file.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            PageCache pageCache = new PageCache(raf.getChannel(), 0);
+            DataManager dataManager = new DataManager(pageCache);
+            Page page = pageCache.newPage(Page.SIZE);
+            page.write(DataItem.wrap(new byte[Long.BYTES]));
+            pageCache.releaseForCache(page);
+
+            BPlusTree tree = new BPlusTree(dataManager, pageCache, 0);
+            BulkLoader loader = tree.bulkLoad(0.5);
+            loader.add(new ValueInt(2, false), 1);
+            Assert.assertThrows(RuntimeException.class, () -> loader.add(new ValueInt(2, false), 2));
+            loader.cancel();
+            Assert.assertNull(tree.search(new ValueInt(2, false)));
+
+            // 每个节点19个key，20000个key有四层
+            int count = 20000;
+            BulkLoader bulk = tree.bulkLoad(0.05);
+            for (int i = 0; i < count; i++) {
+                bulk.add(new ValueInt(i * 2, false), i + 1);
+            }
+            Assert.assertEquals(count, bulk.finish());
+            Assert.assertThrows(RuntimeException.class, () -> tree.bulkLoad(0.5));
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals(Long.valueOf(i + 1), tree.search(new ValueInt(i * 2, false)));
+            }
+            Assert.assertNull(tree.search(new ValueInt(1, false)));
+            List<Long> values = scan(tree.scan(null, true, null, true));
+            Assert.assertEquals(count, values.size());
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals(Long.valueOf(i + 1), values.get(i));
+            }
+            for (int i = 0; i < 2000; i++) {
+                tree.add(new ValueInt(i * 2 + 1, false), -i);
+            }
+            Assert.assertEquals(Long.valueOf(-1999), tree.search(new ValueInt(3999, false)));
+            Assert.assertEquals(count + 2000, tree.values().size());
+            pageCache.close();
+        }
+        file.delete();
+    }
+
+    /**
+     * 多个线程同时插入和查找，分裂和换根节点时不会丢失key，结束后每个key都能找到，按顺序遍历
+     */
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "btree_concurrent.idb");
+        file.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            PageCache pageCache = new PageCache(raf.getChannel(), 0);
+            DataManager dataManager = new DataManager(pageCache);
+            Page page = pageCache.newPage(Page.SIZE);
+            page.write(DataItem.wrap(new byte[Long.BYTES]));
+            pageCache.releaseForCache(page);
+
+            BPlusTree tree = new BPlusTree(dataManager, pageCache, 0);
+            int threads = 4;
+            int perThread = 3000;
+            ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                futures.add(executor.submit(() -> {
+                    List<Integer> keys = new ArrayList<>();
+                    for (int i = 0; i < perThread; i++) {
+                        keys.add(i * threads + offset);
+                    }
+                    Collections.shuffle(keys, new Random(offset));
+                    for (int key : keys) {
+                        tree.add(new ValueInt(key, false), key + 1);
+                        Assert.assertEquals(Long.valueOf(key + 1), tree.search(new ValueInt(key, false)));
+                    }
+                    return null;
+                }));
+            }
+            futures.add(executor.submit(() -> {
+                // 插入期间的范围扫描总是递增的
+                for (int round = 0; round < 20; round++) {
+                    Cursor cursor = tree.scan(null, true, null, true);
+                    long last = 0;
+                    while (cursor.next()) {
+                        Assert.assertTrue(cursor.value() > last);
+                        last = cursor.value();
+                    }
+                }
+                return null;
+            }));
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+            List<Long> values = tree.values();
+            Assert.assertEquals(threads * perThread, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                Assert.assertEquals(Long.valueOf(i + 1), values.get(i));
+            }
+            pageCache.close();
+        }
+        file.delete();
+    }
+
+    /**
+     * 节点缓存很小时不断淘汰和重新解析，修改过的节点淘汰之后重新读到的是最新的内容；上层节点一直命中
+     */
+    @Test
+    public void testNodeCache() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "btree_node_cache.idb");
+        file.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            PageCache pageCache = new PageCache(raf.getChannel(), 0);
+            DataManager dataManager = new DataManager(pageCache);
+            Page page = pageCache.newPage(Page.SIZE);
+            page.write(DataItem.wrap(new byte[Long.BYTES]));
+            pageCache.releaseForCache(page);
+
+            BPlusTree tree = new BPlusTree(dataManager, pageCache, 0, 64 * 1024);
+            int count = 5000;
+            for (int i = 0; i < count; i++) {
+                tree.add(new ValueInt(i, false), i + 1);
+            }
+            for (int i = 0; i < count; i += 3) {
+                Assert.assertTrue(tree.remove(new ValueInt(i, false), i + 1));
+            }
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals(i % 3 == 0 ? null : Long.valueOf(i + 1), tree.search(new ValueInt(i, false)));
+            }
+            CacheStats stats = tree.getNodeCacheStats();
+            Assert.assertTrue(stats.getEvictions() > 0);
+            Assert.assertTrue(stats.getHits() > stats.getMisses());
+            pageCache.close();
+        }
+        file.delete();
+    }
+
+    private List<Long> scan(Cursor cursor) throws Exception {
+        List<Long> values = new ArrayList<>();
+        while (cursor.next()) {
+            values.add(cursor.value());
+        }
+        return values;
+    }
+
+    private void check(List<Value> keys, String fileName) throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), fileName);
+        file.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            PageCache pageCache = new PageCache(raf.getChannel(), 0);
+            DataManager dataManager = new DataManager(pageCache);
+            // 第一页第一个槽存放根节点的uid
+            Page page = pageCache.newPage(Page.SIZE);
+            page.write(DataItem.wrap(new byte[Long.BYTES]));
+            pageCache.releaseForCache(page);
+
+            BPlusTree tree = new BPlusTree(dataManager, pageCache, 0);
+            for (int i = 0; i < keys.size(); i++) {
+                tree.add(keys.get(i), i + 1);
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                Assert.assertEquals(Long.valueOf(i + 1), tree.search(keys.get(i)));
+            }
+            Assert.assertEquals(keys.size(), tree.values().size());
+            // 同一个key再次添加时更新值
+            tree.add(keys.get(0), 100_000);
+            Assert.assertEquals(Long.valueOf(100_000), tree.search(keys.get(0)));
+            // 只有指向uid时才删除
+            Assert.assertFalse(tree.remove(keys.get(1), 100_000));
+            Assert.assertTrue(tree.remove(keys.get(1), 2));
+            Assert.assertNull(tree.search(keys.get(1)));
+
+            DataItem rootItem = dataManager.get(BPlusTree.ROOT_POINTER_UID);
+            long rootUid = ByteBuffer.wrap(rootItem.getData()).getLong();
+            dataManager.release(BPlusTree.ROOT_POINTER_UID);
+            BPlusTree reopened = new BPlusTree(dataManager, pageCache, rootUid);
+            List<Long> values = reopened.values();
+            Assert.assertEquals(keys.size() - 1, values.size());
+            List<Value> sorted = new ArrayList<>(keys);
+            sorted.remove(1);
+            sorted.sort(Value::compareTo);
+            for (int i = 0; i < sorted.size(); i++) {
+                Assert.assertEquals(reopened.search(sorted.get(i)), values.get(i));
+            }
+            pageCache.close();
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,67 @@
+package com.learn.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存的争用测试，多个线程在少量的热点资源上反复 get/release
+ * 容量小于热点资源数时会不断淘汰和未命中，同一资源的未命中会撞在一起
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.learn.cache.AbstractCacheBenchmark
+ * 或者直接运行 main 方法
+ * @author peiyou
+ * @version 1.0
+ * @className AbstractCacheBenchmark
+ * @date 2026/10/18 14:40
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class AbstractCacheBenchmark {
+
+    // 热点资源的个数
+    @Param({"16", "1024"})
+    public int keys;
+
+    // 缓存能放下的资源个数
+    @Param({"8", "4096"})
+    public int capacity;
+
+    private AbstractCacheTest.SlowCache cache;
+
+    @Setup
+    public void setup() {
+        // 模拟一次10微秒的读盘
+        cache = new AbstractCacheTest.SlowCache(capacity, 10_000L);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long[] getRelease() throws Exception {
+        long uid = ThreadLocalRandom.current().nextInt(keys) + 1;
+        long[] obj = cache.get(uid);
+        cache.release(uid);
+        return obj;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(AbstractCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
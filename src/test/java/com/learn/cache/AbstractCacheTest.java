@@ -0,0 +1,124 @@
+package com.learn.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className AbstractCacheTest
+ * @date 2026/10/18 14:20
+ **/
+public class AbstractCacheTest {
+
+    /**
+     * 加载很慢的缓存，记录每个资源被加载和写回的次数
+     */
+    static class SlowCache extends AbstractCache<long[]> {
+
+        final AtomicInteger loads = new AtomicInteger();
+
+        final AtomicInteger writeBacks = new AtomicInteger();
+
+        private final long loadNanos;
+
+        SlowCache(long capacity, long loadNanos) {
+            super(capacity);
+            this.loadNanos = loadNanos;
+        }
+
+        @Override
+        protected long[] getForCache(long uid) {
+            loads.incrementAndGet();
+            long end = System.nanoTime() + loadNanos;
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+            return new long[]{uid};
+        }
+
+        @Override
+        public void releaseForCache(long[] obj) {
+            writeBacks.incrementAndGet();
+        }
+    }
+
+    /**
+     * 多个线程同时未命中同一个资源，只加载一次，其他线程等待同一次加载的结果，争用下的吞吐见 AbstractCacheBenchmark
+     */
+    @Test
+    public void testSingleFlight() throws Exception {
+        SlowCache cache = new SlowCache(16, 20_000_000L);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<long[]> results = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    long[] obj = cache.get(1);
+                    synchronized (results) {
+                        results.add(obj);
+                    }
+                    cache.release(1);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertNull(error.get());
+        Assert.assertEquals(1, cache.loads.get());
+        for (long[] obj : results) {
+            Assert.assertSame(results.get(0), obj);
+        }
+        Assert.assertEquals(threads - 1, cache.getStats().getHits());
+    }
+
+    /**
+     * 淘汰中的资源写回完成后才能重新加载，引用中的资源不会被淘汰
+     */
+    @Test
+    public void testEvictPinned() throws Exception {
+        SlowCache cache = new SlowCache(2, 0);
+        long[] pinned = cache.get(1);
+        for (long uid = 2; uid <= 10; uid++) {
+            cache.get(uid);
+            cache.release(uid);
+        }
+        Assert.assertSame(pinned, cache.get(1));
+        cache.release(1);
+        cache.release(1);
+        Assert.assertTrue(cache.getStats().getEvictions() >= 7);
+        Assert.assertEquals(cache.getStats().getEvictions(), cache.writeBacks.get());
+    }
+
+    /**
+     * 容量为0时引用数为0就写回
+     */
+    @Test
+    public void testNoBufferPool() throws Exception {
+        SlowCache cache = new SlowCache(0, 0);
+        cache.get(1);
+        cache.get(1);
+        cache.release(1);
+        Assert.assertEquals(0, cache.writeBacks.get());
+        cache.release(1);
+        Assert.assertEquals(1, cache.writeBacks.get());
+        cache.get(1);
+        Assert.assertEquals(2, cache.loads.get());
+    }
+}
@@ -0,0 +1,72 @@
+package com.learn.log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 组提交的吞吐：每次调用是一个事务，写一条修改和提交记录并等待落盘，并发的提交共用一次fsync
+ * 结束时输出 fsync 的次数，和提交的次数对比
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.learn.log.LogManagerBenchmark
+ * 或者直接运行 main 方法
+ * @author peiyou
+ * @version 1.0
+ * @className LogManagerBenchmark
+ * @date 2026/10/17 16:30
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class LogManagerBenchmark {
+
+    private final AtomicLong xids = new AtomicLong();
+
+    private File file;
+
+    private LogManager logManager;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = File.createTempFile("log_manager_benchmark", LogManager.LOG_SUFFIX);
+        file.delete();
+        logManager = LogManager.open(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(logManager.getRecordCount() / 2 + "次提交，fsync " + logManager.getSyncCount() + "次");
+        logManager.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void commit() {
+        long xid = xids.incrementAndGet();
+        logManager.append(LogRecord.update(xid, "test.idb", 2, 0, 100, new byte[8], new byte[8]));
+        logManager.commit(xid);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(LogManagerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,154 @@
+package com.learn.log;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className LogManagerTest
+ * @date 2026/10/17 16:30
+ **/
+public class LogManagerTest {
+
+    private File newLogFile(String name) {
+        File file = new File(System.getProperty("java.io.tmpdir"), name + LogManager.LOG_SUFFIX);
+        file.delete();
+        return file;
+    }
+
+    /**
+     * 多个线程并发提交，fsync的次数应该远小于提交的次数，吞吐见 LogManagerBenchmark
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        File file = newLogFile("group_commit");
+        LogManager logManager = LogManager.open(file);
+        int threads = 16;
+        int commitsPerThread = 200;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long base = (long) t * commitsPerThread;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 1; i <= commitsPerThread; i++) {
+                        long xid = base + i;
+                        logManager.append(LogRecord.update(xid, "test.idb", 2, 0, 100, new byte[8], new byte[8]));
+                        logManager.commit(xid);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertNull(error.get());
+        int commits = threads * commitsPerThread;
+        Assert.assertTrue(logManager.getSyncCount() < commits);
+        logManager.close();
+
+        // 重新读取，所有的记录都在
+        LogManager reopened = LogManager.open(file);
+        AtomicInteger committed = new AtomicInteger();
+        reopened.forEach(0, record -> {
+            if (record.getType() == LogRecord.COMMIT) {
+                committed.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(commits, committed.get());
+        reopened.close();
+        file.delete();
+    }
+
+    /**
+     * 最后一条写了一半的记录在打开时被截掉
+     */
+    @Test
+    public void testTruncateTornTail() throws Exception {
+        File file = newLogFile("torn_tail");
+        LogManager logManager = LogManager.open(file);
+        logManager.commit(1);
+        long end = logManager.getNextLsn();
+        logManager.close();
+        long length = file.length();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(length);
+            raf.writeInt(100);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        logManager = LogManager.open(file);
+        Assert.assertEquals(end, logManager.getNextLsn());
+        Assert.assertEquals(length, file.length());
+        logManager.close();
+        file.delete();
+    }
+
+    /**
+     * 检查点之后回收还没有结束的事务之前的日志，lsn 不变，重新打开后从文件头找到检查点
+     */
+    @Test
+    public void testRecycleAfterCheckpoint() throws Exception {
+        File file = newLogFile("recycle");
+        LogManager logManager = LogManager.open(file);
+        logManager.setRecycleBytes(0);
+        Checkpointer checkpointer = logManager.getCheckpointer();
+        byte[] data = new byte[1024];
+        logManager.append(LogRecord.update(1, "t.idb", 1, 0, 0, data, data));
+        for (int i = 0; i < 100; i++) {
+            logManager.append(LogRecord.update(2, "t.idb", 2, 0, 0, data, data));
+        }
+        logManager.commit(2);
+        logManager.finish(2);
+
+        // 事务1还没有结束，它的日志不能回收
+        checkpointer.checkpoint();
+        Assert.assertEquals(0, logManager.getStartLsn());
+        Assert.assertEquals(0, logManager.getRecycleCount());
+        Assert.assertNotEquals(LogManager.NO_CHECKPOINT, logManager.getCheckpointLsn());
+
+        logManager.commit(1);
+        logManager.finish(1);
+        long length = file.length();
+        checkpointer.checkpoint();
+        long redoLsn = checkpointer.getLastRedoLsn();
+        long checkpointLsn = logManager.getCheckpointLsn();
+        long end = logManager.getNextLsn();
+        Assert.assertEquals(1, logManager.getRecycleCount());
+        Assert.assertEquals(redoLsn, logManager.getStartLsn());
+        Assert.assertTrue(file.length() < length);
+        logManager.close();
+
+        logManager = LogManager.open(file);
+        Assert.assertEquals(redoLsn, logManager.getStartLsn());
+        Assert.assertEquals(end, logManager.getNextLsn());
+        Assert.assertEquals(checkpointLsn, logManager.getCheckpointLsn());
+        LogRecord checkpoint = logManager.read(checkpointLsn);
+        Assert.assertEquals(LogRecord.CHECKPOINT, checkpoint.getType());
+        Assert.assertEquals(redoLsn, checkpoint.getRedoLsn());
+        List<LogRecord> records = new ArrayList<>();
+        logManager.forEach(0, records::add);
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals(checkpointLsn, records.get(0).getLsn());
+        logManager.close();
+        file.delete();
+    }
+}
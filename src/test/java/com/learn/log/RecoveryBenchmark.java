@@ -0,0 +1,148 @@
+package com.learn.log;
+
+import com.learn.page.Page;
+import com.learn.transaction.TransactionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按页并行重做，比较不同线程数重做同一份日志的耗时
+ * 合成的日志全部是随机页上的修改，每次调用之前把数据文件和日志还原成崩溃时的样子
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.learn.log.RecoveryBenchmark
+ * 或者直接运行 main 方法
+ * @author peiyou
+ * @version 1.0
+ * @className RecoveryBenchmark
+ * @date 2026/10/18 10:10
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class RecoveryBenchmark {
+
+    private static final int PAGES = 2048;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    // 日志大小（MB）
+    @Param({"32"})
+    public int logMb;
+
+    private File dir;
+
+    private File dataFile;
+
+    private File logFile;
+
+    private File xidFile;
+
+    private TransactionManager tm;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("recovery_benchmark").toFile();
+        dataFile = new File(dir, "bench.idb");
+        logFile = new File(dir, "bench" + LogManager.LOG_SUFFIX);
+        xidFile = new File(dir, "bench" + TransactionManager.XID_SUFFIX);
+        // 每页的槽0是一条占满整页的记录
+        int recordSize = Page.SIZE - Page.DATA_OFFSET - Page.SLOT_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            ByteBuffer empty = ByteBuffer.allocate(Page.SIZE);
+            Page.init(empty, Page.SIZE);
+            Page.putRecord(empty, 0, Page.DATA_OFFSET, new byte[recordSize]);
+            for (int pageNo = 1; pageNo <= PAGES; pageNo++) {
+                raf.getChannel().write(empty.position(0), Page.pageOffset(pageNo));
+            }
+        }
+        TransactionManager tm = open();
+        LogManager logManager = tm.getLogManager();
+        Random random = new Random(1);
+        byte[] before = new byte[256];
+        byte[] after = new byte[256];
+        long logSize = logMb * 1024L * 1024;
+        while (logManager.getNextLsn() < logSize) {
+            random.nextBytes(after);
+            int pageNo = random.nextInt(PAGES) + 1;
+            int offset = random.nextInt(recordSize - after.length);
+            logManager.append(LogRecord.update(Page.SUPER_XID, "bench.idb", pageNo, 0, offset, before, after.clone()));
+        }
+        tm.close();
+        backup(dataFile);
+        backup(logFile);
+        backup(xidFile);
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() throws Exception {
+        restore(dataFile);
+        restore(logFile);
+        restore(xidFile);
+        tm = open();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        tm.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long redo() {
+        return Recovery.recover(dir.getPath(), tm.getLogManager(), tm, threads).getRedoCount();
+    }
+
+    private TransactionManager open() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(xidFile, "rw");
+        if (raf.length() == 0) {
+            raf.writeLong(0);
+        }
+        return new TransactionManager(raf, raf.getChannel(), LogManager.open(logFile));
+    }
+
+    private static void backup(File file) throws Exception {
+        Files.copy(file.toPath(), new File(file.getPath() + ".bak").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void restore(File file) throws Exception {
+        Files.copy(new File(file.getPath() + ".bak").toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(RecoveryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,285 @@
+package com.learn.log;
+
+import com.learn.data.DataItem;
+import com.learn.page.Page;
+import com.learn.page.PageCache;
+import com.learn.transaction.TransactionManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className RecoveryTest
+ * @date 2026/10/18 10:10
+ **/
+public class RecoveryTest {
+
+    private File newDir(String name) {
+        File dir = new File(System.getProperty("java.io.tmpdir"), name);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        return dir;
+    }
+
+    private TransactionManager openTransactionManager(File dir, String dbName) throws IOException {
+        File xidFile = new File(dir, dbName + TransactionManager.XID_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(xidFile, "rw");
+        if (raf.length() == 0) {
+            raf.writeLong(0);
+        }
+        LogManager logManager = LogManager.open(new File(dir, dbName + LogManager.LOG_SUFFIX));
+        return new TransactionManager(raf, raf.getChannel(), logManager);
+    }
+
+    /**
+     * 页没有写回就崩溃：已提交事务的修改被重做，没有提交的事务被撤销
+     */
+    @Test
+    public void testRedoUndo() throws Exception {
+        File dir = newDir("recovery_redo_undo");
+        TransactionManager tm = openTransactionManager(dir, "test");
+        File dataFile = new File(dir, "t.idb");
+        dataFile.createNewFile();
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        PageCache pageCache = new PageCache(raf.getChannel(), 0);
+        pageCache.attachLog(tm.getLogManager(), "t.idb");
+
+        byte[] committedData = "committed".getBytes();
+        byte[] activeData = "active".getBytes();
+        Page page = pageCache.newPage(Page.SIZE);
+        long xid1 = tm.begin(0);
+        int committedSlot = page.write(xid1, DataItem.wrap(committedData));
+        tm.commit(xid1);
+        long xid2 = tm.begin(0);
+        int activeSlot = page.write(xid2, DataItem.wrap(activeData));
+        // 没有提交的事务修改了已提交的数据
+        page.update(xid2, committedSlot, DataItem.DATA, "X".getBytes());
+        int end = page.getOffset();
+
+        // 日志落盘，但是页没有写回
+        tm.close();
+        raf.close();
+
+        tm = openTransactionManager(dir, "test");
+        Recovery recovery = Recovery.recover(dir.getPath(), tm.getLogManager(), tm, 4);
+        Assert.assertNotNull(recovery);
+        Assert.assertEquals(2, recovery.getUndoCount());
+        Assert.assertTrue(tm.isCommitted(xid1));
+        Assert.assertTrue(tm.isAborted(xid2));
+        Assert.assertEquals(0, tm.getLogManager().getNextLsn());
+        tm.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(Page.SIZE);
+            file.getChannel().read(buffer, Page.pageOffset(1));
+            Assert.assertEquals(end, buffer.getInt(Page.USE_OFFSET_SIZE));
+            int committedOffset = Page.slotOffset(buffer, committedSlot);
+            byte[] read = new byte[committedData.length];
+            buffer.get(committedOffset + DataItem.DATA, read);
+            Assert.assertArrayEquals(committedData, read);
+            Assert.assertEquals(1, buffer.get(committedOffset));
+            Assert.assertEquals(0, buffer.get(Page.slotOffset(buffer, activeSlot)));
+        }
+    }
+
+    /**
+     * 检查点写回所有脏页，恢复时只重做检查点之后的修改
+     */
+    @Test
+    public void testCheckpoint() throws Exception {
+        File dir = newDir("recovery_checkpoint");
+        TransactionManager tm = openTransactionManager(dir, "test");
+        File dataFile = new File(dir, "t.idb");
+        dataFile.createNewFile();
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        PageCache pageCache = new PageCache(raf.getChannel(), 0);
+        pageCache.attachLog(tm.getLogManager(), "t.idb");
+        Checkpointer checkpointer = tm.getLogManager().getCheckpointer();
+
+        int pages = 4;
+        byte[] before = "before".getBytes();
+        byte[] after = "after".getBytes();
+        for (int i = 0; i < pages; i++) {
+            Page page = pageCache.newPage(Page.SIZE);
+            page.write(before);
+            page.force();
+        }
+        // force 不再写回，页仍然是脏的
+        Assert.assertEquals(pages, pageCache.dirtyPageCount());
+        Assert.assertEquals(pages, checkpointer.checkpoint());
+        Assert.assertEquals(pages, checkpointer.getLastPagesWritten());
+        Assert.assertEquals(0, pageCache.dirtyPageCount());
+        System.out.println(checkpointer);
+
+        Page page = pageCache.get(1);
+        page.write(after);
+        page.release();
+        tm.close();
+        raf.close();
+
+        tm = openTransactionManager(dir, "test");
+        Recovery recovery = Recovery.recover(dir.getPath(), tm.getLogManager(), tm, 2);
+        Assert.assertEquals(1, recovery.getRedoCount());
+        tm.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(Page.SIZE);
+            file.getChannel().read(buffer, Page.pageOffset(1));
+            Assert.assertEquals(Page.DATA_OFFSET + before.length + after.length, buffer.getInt(Page.USE_OFFSET_SIZE));
+            byte[] read = new byte[after.length];
+            buffer.get(Page.DATA_OFFSET + before.length, read);
+            Assert.assertArrayEquals(after, read);
+        }
+    }
+
+    /**
+     * 检查点之后回收日志前缀，恢复从检查点开始：检查点之前提交的事务不受影响，
+     * 跨过检查点没有结束的事务从它的第一条修改开始撤销
+     */
+    @Test
+    public void testRecoverFromCheckpoint() throws Exception {
+        File dir = newDir("recovery_from_checkpoint");
+        TransactionManager tm = openTransactionManager(dir, "test");
+        LogManager logManager = tm.getLogManager();
+        logManager.setRecycleBytes(0);
+        File dataFile = new File(dir, "t.idb");
+        dataFile.createNewFile();
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        PageCache pageCache = new PageCache(raf.getChannel(), 0);
+        pageCache.attachLog(logManager, "t.idb");
+
+        byte[] data = "data".getBytes();
+        Page page = pageCache.newPage(Page.SIZE);
+        long xid1 = tm.begin(0);
+        int committedSlot = page.write(xid1, DataItem.wrap(data));
+        tm.commit(xid1);
+        long xid2 = tm.begin(0);
+        long firstLsn = logManager.getNextLsn();
+        int activeSlot = page.write(xid2, DataItem.wrap(data));
+        logManager.getCheckpointer().checkpoint();
+        // 事务1的日志已经回收，事务2的还在
+        Assert.assertEquals(firstLsn, logManager.getStartLsn());
+
+        long xid3 = tm.begin(0);
+        int laterSlot = page.write(xid3, DataItem.wrap(data));
+        tm.commit(xid3);
+        page.update(xid2, committedSlot, DataItem.DATA, "X".getBytes());
+        page.release();
+        tm.close();
+        raf.close();
+
+        tm = openTransactionManager(dir, "test");
+        Recovery recovery = Recovery.recover(dir.getPath(), tm.getLogManager(), tm, 2);
+        Assert.assertEquals(firstLsn, recovery.getAnalysisLsn());
+        Assert.assertEquals(2, recovery.getUndoCount());
+        Assert.assertTrue(tm.isCommitted(xid1));
+        Assert.assertTrue(tm.isAborted(xid2));
+        Assert.assertTrue(tm.isCommitted(xid3));
+        tm.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(Page.SIZE);
+            file.getChannel().read(buffer, Page.pageOffset(1));
+            byte[] read = new byte[data.length];
+            buffer.get(Page.slotOffset(buffer, committedSlot) + DataItem.DATA, read);
+            Assert.assertArrayEquals(data, read);
+            Assert.assertEquals(0, buffer.get(Page.slotOffset(buffer, activeSlot)));
+            Assert.assertEquals(1, buffer.get(Page.slotOffset(buffer, laterSlot)));
+        }
+    }
+
+    /**
+     * 文件中的页比日志新：修改之后数据项被释放，页已经写回，重做这条修改时跳过，不写到页头上
+     */
+    @Test
+    public void testRedoUpdateOfFreedSlot() throws Exception {
+        File dir = newDir("recovery_freed_slot");
+        File dataFile = new File(dir, "t.idb");
+        ByteBuffer empty = ByteBuffer.allocate(Page.SIZE);
+        Page.init(empty, Page.SIZE);
+        Page.putRecord(empty, 0, Page.DATA_OFFSET, DataItem.wrap("data".getBytes()));
+        Page.freeSlot(empty, 0);
+        int useOffset = empty.getInt(Page.USE_OFFSET_SIZE);
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            raf.getChannel().write(empty.position(0), Page.pageOffset(1));
+        }
+
+        TransactionManager tm = openTransactionManager(dir, "test");
+        // 修改有效标志位，数据项开头的第一个字节
+        tm.getLogManager().append(LogRecord.update(Page.SUPER_XID, "t.idb", 1, 0, 0, new byte[]{0}, new byte[]{1}));
+        tm.close();
+
+        tm = openTransactionManager(dir, "test");
+        Recovery recovery = Recovery.recover(dir.getPath(), tm.getLogManager(), tm, 1);
+        Assert.assertEquals(1, recovery.getRedoCount());
+        tm.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(Page.SIZE);
+            file.getChannel().read(buffer, Page.pageOffset(1));
+            Assert.assertEquals(Page.SIZE, buffer.getInt(Page.SIZE_OFFSET));
+            Assert.assertEquals(useOffset, buffer.getInt(Page.USE_OFFSET_SIZE));
+            Assert.assertEquals(0, Page.slotOffset(buffer, 0));
+        }
+    }
+
+    /**
+     * 同一份日志用一个线程和多个线程重做，得到的数据文件完全一样，耗时见 RecoveryBenchmark
+     */
+    @Test
+    public void testParallelRedo() throws Exception {
+        int pages = 64;
+        File serial = newDir("recovery_redo_serial");
+        File parallel = newDir("recovery_redo_parallel");
+        // 每页的槽0是一条占满整页的记录
+        int recordSize = Page.SIZE - Page.DATA_OFFSET - Page.SLOT_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(new File(serial, "redo.idb"), "rw")) {
+            ByteBuffer empty = ByteBuffer.allocate(Page.SIZE);
+            Page.init(empty, Page.SIZE);
+            Page.putRecord(empty, 0, Page.DATA_OFFSET, new byte[recordSize]);
+            for (int pageNo = 1; pageNo <= pages; pageNo++) {
+                raf.getChannel().write(empty.position(0), Page.pageOffset(pageNo));
+            }
+        }
+        TransactionManager tm = openTransactionManager(serial, "redo");
+        LogManager logManager = tm.getLogManager();
+        Random random = new Random(1);
+        byte[] before = new byte[256];
+        byte[] after = new byte[256];
+        for (int i = 0; i < 4000; i++) {
+            random.nextBytes(after);
+            int pageNo = random.nextInt(pages) + 1;
+            int offset = random.nextInt(recordSize - after.length);
+            logManager.append(LogRecord.update(Page.SUPER_XID, "redo.idb", pageNo, 0, offset, before, after.clone()));
+        }
+        tm.close();
+        File[] files = serial.listFiles();
+        for (File file : files) {
+            Files.copy(file.toPath(), new File(parallel, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (File dir : new File[]{serial, parallel}) {
+            tm = openTransactionManager(dir, "redo");
+            Recovery recovery = Recovery.recover(dir.getPath(), tm.getLogManager(), tm, dir == serial ? 1 : threads);
+            Assert.assertEquals(4000, recovery.getRedoCount());
+            tm.close();
+        }
+        Assert.assertArrayEquals(Files.readAllBytes(new File(serial, "redo.idb").toPath()),
+                Files.readAllBytes(new File(parallel, "redo.idb").toPath()));
+    }
+}
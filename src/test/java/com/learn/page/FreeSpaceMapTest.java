@@ -0,0 +1,60 @@
+package com.learn.page;
+
+import com.learn.data.DataManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className FreeSpaceMapTest
+ * @date 2026/10/18 16:10
+ **/
+public class FreeSpaceMapTest {
+
+    /**
+     * 重新打开后空闲空间表还在，没有写满的页继续使用，文件不再变长
+     */
+    @Test
+    public void testReuseAfterReopen() throws Exception {
+        File idb = new File(System.getProperty("java.io.tmpdir"), "fsm_reuse.idb");
+        File fsm = new File(System.getProperty("java.io.tmpdir"), "fsm_reuse.fsm");
+        idb.delete();
+        fsm.delete();
+        byte[] data = new byte[1000];
+
+        // 每次只插入一条就关闭，模拟多次重启
+        for (int round = 0; round < 10; round++) {
+            try (RandomAccessFile idbFile = new RandomAccessFile(idb, "rw");
+                 RandomAccessFile fsmFile = new RandomAccessFile(fsm, "rw")) {
+                PageCache pageCache = new PageCache(idbFile.getChannel(), (int) (idbFile.length() / Page.SIZE));
+                int fsmPages = (int) (fsmFile.length() / Page.SIZE);
+                PageCache fsmCache = new PageCache(fsmFile.getChannel(), fsmPages);
+                FreeSpaceMap freeSpaceMap = new FreeSpaceMap(fsmCache, fsmPages);
+                DataManager dataManager = new DataManager(pageCache, freeSpaceMap);
+                dataManager.insert(data);
+                // 打开时不读取，用到时才载入
+                Assert.assertEquals(1, freeSpaceMap.getLoadedPages());
+                pageCache.close();
+                fsmCache.close();
+            }
+        }
+        // 10条1000字节的数据放在同一页中
+        Assert.assertEquals(Page.SIZE, idb.length());
+        Assert.assertEquals(Page.SIZE, fsm.length());
+
+        try (RandomAccessFile fsmFile = new RandomAccessFile(fsm, "rw")) {
+            PageCache fsmCache = new PageCache(fsmFile.getChannel(), 1);
+            FreeSpaceMap freeSpaceMap = new FreeSpaceMap(fsmCache, 1);
+            PageInfo pageInfo = freeSpaceMap.select(1000);
+            Assert.assertEquals(1, pageInfo.pageNo());
+            Assert.assertNull(freeSpaceMap.select(Page.SIZE - 100));
+            fsmCache.close();
+        }
+        idb.delete();
+        fsm.delete();
+    }
+}
@@ -0,0 +1,86 @@
+package com.learn.page;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程读不同的页，bufferPages 为0时每次get都走带位置的文件读取，观察吞吐随线程数的变化
+ * 线程数用 -t 指定，默认4个
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.learn.page.PageCacheBenchmark
+ * 或者直接运行 main 方法
+ * @author peiyou
+ * @version 1.0
+ * @className PageCacheBenchmark
+ * @date 2026/10/17 11:30
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PageCacheBenchmark {
+
+    private static final int PAGES = 1024;
+
+    // 缓冲池能放下的页数
+    @Param({"0", "1024"})
+    public int bufferPages;
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    private PageCache pageCache;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = File.createTempFile("page_cache_benchmark", ".idb");
+        raf = new RandomAccessFile(file, "rw");
+        pageCache = new PageCache(raf.getChannel(), 0, (long) Page.SIZE * bufferPages);
+        for (int i = 0; i < PAGES; i++) {
+            pageCache.newPage(Page.SIZE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pageCache.close();
+        raf.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int read() throws Exception {
+        Page page = pageCache.get(ThreadLocalRandom.current().nextInt(PAGES) + 1);
+        try {
+            return page.getOffset();
+        } finally {
+            page.release();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(PageCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
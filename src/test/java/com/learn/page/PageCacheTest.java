@@ -0,0 +1,257 @@
+package com.learn.page;
+
+import com.learn.cache.CacheStats;
+import com.learn.log.LogManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className PageCacheTest
+ * @date 2026/10/17 11:30
+ **/
+public class PageCacheTest {
+
+    private RandomAccessFile raf;
+
+    private FileChannel fileChannel;
+
+    private File openFile(String name) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), name);
+        file.delete();
+        file.createNewFile();
+        raf = new RandomAccessFile(file, "rw");
+        fileChannel = raf.getChannel();
+        return file;
+    }
+
+    private void closeFile(File file) throws IOException {
+        fileChannel.close();
+        raf.close();
+        file.delete();
+    }
+
+    /**
+     * 引用数为0的页会留在缓冲池中，再次获取时命中
+     */
+    @Test
+    public void testBufferPoolHit() throws Exception {
+        File file = openFile("page_cache_hit.idb");
+        int pages = 8;
+        PageCache pageCache = new PageCache(fileChannel, 0, (long) Page.SIZE * pages);
+        for (int i = 0; i < pages; i++) {
+            pageCache.newPage(Page.SIZE);
+        }
+        pageCache.close();
+
+        pageCache = new PageCache(fileChannel, pages, (long) Page.SIZE * pages);
+        for (int round = 0; round < 10; round++) {
+            for (int pageNo = 1; pageNo <= pages; pageNo++) {
+                Page page = pageCache.get(pageNo);
+                page.release();
+            }
+        }
+        CacheStats stats = pageCache.getStats();
+        System.out.println(stats);
+        Assert.assertEquals(pages, stats.getMisses());
+        Assert.assertEquals(pages * 9, stats.getHits());
+        Assert.assertEquals(0, stats.getEvictions());
+        pageCache.close();
+        closeFile(file);
+    }
+
+    /**
+     * 超过容量后按CLOCK淘汰，脏页在淘汰时写回
+     */
+    @Test
+    public void testEvictWriteBack() throws Exception {
+        File file = openFile("page_cache_evict.idb");
+        int pages = 8;
+        PageCache pageCache = new PageCache(fileChannel, 0, (long) Page.SIZE * 2);
+        for (int i = 0; i < pages; i++) {
+            pageCache.newPage(Page.SIZE);
+        }
+        byte[] data = "hello".getBytes();
+        for (int pageNo = 1; pageNo <= pages; pageNo++) {
+            Page page = pageCache.get(pageNo);
+            page.write(data);
+            page.release();
+        }
+        CacheStats stats = pageCache.getStats();
+        System.out.println(stats);
+        Assert.assertTrue(stats.getEvictions() >= pages - 2);
+
+        // 重新打开，数据应该都已经写回
+        pageCache.close();
+        pageCache = new PageCache(fileChannel, pages, 0);
+        for (int pageNo = 1; pageNo <= pages; pageNo++) {
+            Page page = pageCache.get(pageNo);
+            Assert.assertEquals(Page.DATA_OFFSET + data.length, page.getOffset());
+            page.release();
+        }
+        // 没有缓冲池时释放即丢弃，不算作淘汰
+        stats = pageCache.getStats();
+        Assert.assertEquals(0, stats.getEvictions());
+        Assert.assertEquals(pages, stats.getPassThroughs());
+        pageCache.close();
+        closeFile(file);
+    }
+
+    /**
+     * 映射方式：页是映射上的视图，文件变长后重新映射，写入的内容普通方式也能读到
+     */
+    @Test
+    public void testMappedPageCache() throws Exception {
+        File file = openFile("page_cache_mmap.idb");
+        PageCache pageCache = new MappedPageCache(fileChannel, 0);
+        byte[] data = "mapped".getBytes();
+        int pages = 16;
+        for (int i = 0; i < pages; i++) {
+            // 每次newPage后文件都变长，下一次访问会重新映射
+            Page page = pageCache.newPage(Page.SIZE);
+            Assert.assertTrue(page.isMapped());
+            Page cached = pageCache.get(page.getPageNo());
+            Assert.assertSame(page, cached);
+            cached.write(data);
+            cached.release();
+        }
+        pageCache.close();
+
+        pageCache = new PageCache(fileChannel, pages, 0);
+        for (int pageNo = 1; pageNo <= pages; pageNo++) {
+            Page page = pageCache.get(pageNo);
+            Assert.assertFalse(page.isMapped());
+            Assert.assertEquals(Page.DATA_OFFSET + data.length, page.getOffset());
+            byte[] read = new byte[data.length];
+            page.read(Page.DATA_OFFSET, read);
+            Assert.assertArrayEquals(data, read);
+            page.release();
+        }
+        pageCache.close();
+        closeFile(file);
+    }
+
+    /**
+     * 挂了日志的映射是私有的，修改不会直接到达文件，写回时先等日志落盘再写入文件
+     * 读取过页之后不能再挂日志
+     */
+    @Test
+    public void testMappedPageCacheWithLog() throws Exception {
+        File file = openFile("page_cache_mmap_log.idb");
+        File logFile = new File(System.getProperty("java.io.tmpdir"), "page_cache_mmap" + LogManager.LOG_SUFFIX);
+        logFile.delete();
+        LogManager logManager = LogManager.open(logFile);
+        PageCache pageCache = new MappedPageCache(fileChannel, 0);
+        pageCache.attachLog(logManager, "page_cache_mmap_log.idb");
+        byte[] data = "mapped".getBytes();
+        Page page = pageCache.newPage(Page.SIZE);
+        Assert.assertTrue(page.isMapped());
+        page.write(data);
+        long lsn = page.getLsn();
+        page.release();
+
+        byte[] onDisk = new byte[data.length];
+        raf.seek(Page.pageOffset(page.getPageNo()) + Page.DATA_OFFSET);
+        raf.readFully(onDisk);
+        Assert.assertArrayEquals(new byte[data.length], onDisk);
+
+        pageCache.flush();
+        Assert.assertTrue(logManager.getFlushedLsn() >= lsn);
+        raf.seek(Page.pageOffset(page.getPageNo()) + Page.DATA_OFFSET);
+        raf.readFully(onDisk);
+        Assert.assertArrayEquals(data, onDisk);
+        pageCache.close();
+
+        pageCache = new MappedPageCache(fileChannel, 1);
+        pageCache.get(1).release();
+        PageCache read = pageCache;
+        Assert.assertThrows(RuntimeException.class, () -> read.attachLog(logManager, "page_cache_mmap_log.idb"));
+        pageCache.close();
+        logManager.close();
+        logFile.delete();
+        closeFile(file);
+    }
+
+    /**
+     * 多个线程同时读写，缓冲池只放得下几页，页不断被淘汰、写回、重新读取
+     * 每页只由一个线程写入，读到的记录都属于这一页，最后每页的内容和写入的一样
+     */
+    @Test
+    public void testConcurrentReadWrite() throws Exception {
+        File file = openFile("page_cache_concurrent.idb");
+        int pages = 32;
+        int threads = 4;
+        int records = 40;
+        PageCache pageCache = new PageCache(fileChannel, 0, (long) Page.SIZE * 4);
+        for (int i = 0; i < pages; i++) {
+            pageCache.newPage(Page.SIZE);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            int writer = t;
+            Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < records; i++) {
+                        // 写自己的页
+                        for (int pageNo = writer + 1; pageNo <= pages; pageNo += threads) {
+                            Page page = pageCache.get(pageNo);
+                            Assert.assertEquals(i, page.write(record(pageNo, i)));
+                            page.release();
+                        }
+                        // 读任意的页
+                        Page page = pageCache.get(random.nextInt(pages) + 1);
+                        for (int slot = 0; slot < page.slotCount(); slot++) {
+                            byte[] read = new byte[record(0, 0).length];
+                            page.readRecord(slot, 0, read);
+                            Assert.assertArrayEquals(record(page.getPageNo(), slot), read);
+                        }
+                        page.release();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertNull(error.get());
+        pageCache.close();
+
+        PageCache reopened = new PageCache(fileChannel, pages, 0);
+        for (int pageNo = 1; pageNo <= pages; pageNo++) {
+            Page page = reopened.get(pageNo);
+            Assert.assertEquals(records, page.slotCount());
+            for (int slot = 0; slot < records; slot++) {
+                byte[] read = new byte[record(0, 0).length];
+                page.readRecord(slot, 0, read);
+                Assert.assertArrayEquals(record(pageNo, slot), read);
+            }
+            page.release();
+        }
+        reopened.close();
+        closeFile(file);
+    }
+
+    private static byte[] record(int pageNo, int index) {
+        return String.format("page%04d-record%04d", pageNo, index).getBytes();
+    }
+}
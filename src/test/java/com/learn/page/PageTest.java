@@ -0,0 +1,94 @@
+package com.learn.page;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className PageTest
+ * @date 2026/10/18 17:20
+ **/
+public class PageTest {
+
+    /**
+     * 释放的记录留下空洞，放不下时整理页，槽号不变，空闲的槽被复用
+     */
+    @Test
+    public void testFreeAndCompact() {
+        Page page = new Page(Page.SIZE, new byte[Page.SIZE], 1, null);
+        int recordSize = 1000;
+        int count = 0;
+        while (page.freeSize() >= recordSize) {
+            byte[] record = new byte[recordSize];
+            Arrays.fill(record, (byte) count);
+            Assert.assertEquals(count, page.write(record));
+            count++;
+        }
+        // 释放偶数槽，连续的空闲空间没有变化
+        int offset = page.getOffset();
+        for (int slot = 0; slot < count; slot += 2) {
+            page.free(slot);
+        }
+        Assert.assertEquals(offset, page.getOffset());
+        Assert.assertEquals(0, page.recordLength(0));
+
+        // 两个空洞合起来才放得下
+        byte[] big = new byte[recordSize * 2];
+        Arrays.fill(big, (byte) -1);
+        Assert.assertTrue(page.freeSize() >= big.length);
+        int slot = page.write(big);
+        Assert.assertEquals(0, slot);
+        Assert.assertTrue(page.getOffset() < offset);
+
+        // 没有释放的记录挪了位置，内容不变
+        for (int i = 1; i < count; i += 2) {
+            byte[] read = new byte[recordSize];
+            page.readRecord(i, 0, read);
+            byte[] expected = new byte[recordSize];
+            Arrays.fill(expected, (byte) i);
+            Assert.assertArrayEquals(expected, read);
+        }
+        byte[] read = new byte[big.length];
+        page.readRecord(slot, 0, read);
+        Assert.assertArrayEquals(big, read);
+
+        // 重新载入后空闲空间一样
+        Page loaded = Page.loadPage(page.getData().clone(), 1, null);
+        Assert.assertEquals(page.freeSize(), loaded.freeSize());
+        Assert.assertEquals(page.getOffset(), loaded.getOffset());
+    }
+
+    /**
+     * 更新不能越过记录的长度，否则会覆盖相邻的记录
+     */
+    @Test
+    public void testUpdateOutOfRecord() {
+        Page page = new Page(Page.SIZE, new byte[Page.SIZE], 1, null);
+        byte[] first = new byte[8];
+        byte[] second = new byte[8];
+        Arrays.fill(second, (byte) 2);
+        int slot = page.write(first);
+        page.write(second);
+
+        // 记录内的更新正常写入
+        page.update(slot, 4, new byte[]{1, 1, 1, 1});
+        byte[] read = new byte[8];
+        page.readRecord(slot, 0, read);
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 0, 1, 1, 1, 1}, read);
+
+        try {
+            page.update(slot, 6, new byte[]{9, 9, 9, 9});
+            Assert.fail("越过记录长度的更新应该失败");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().startsWith("更新超出记录范围"));
+        }
+        // 相邻的记录和本记录都没有被改动
+        page.readRecord(slot + 1, 0, read);
+        Assert.assertArrayEquals(second, read);
+        page.readRecord(slot, 0, read);
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 0, 1, 1, 1, 1}, read);
+    }
+}
@@ -0,0 +1,51 @@
+package com.learn.table;
+
+import com.learn.value.Value;
+import com.learn.value.ValueLong;
+import com.learn.value.ValueString;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className RowSorterTest
+ * @date 2026/10/18 23:58
+ **/
+public class RowSorterTest {
+
+    /**
+     * 顺串很小时写出多个临时文件，归并之后按主键递增，一行不少
+     */
+    @Test
+    public void testSort() throws Exception {
+        List<Column> columns = new ArrayList<>();
+        columns.add(new Column("id", 0, Value.LONG, false, true));
+        columns.add(new Column("name", 1, Value.STRING, true, false));
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, new Random(7));
+        try (RowSorter sorter = new RowSorter(columns, 0, 1000)) {
+            for (long id : ids) {
+                Row row = new Row(new Value[]{new ValueLong(id, false), new ValueString("name" + id)});
+                sorter.add(row.get(0), row.getBytes());
+            }
+            long expected = 0;
+            while (sorter.next()) {
+                Assert.assertEquals(expected, sorter.key().getObject());
+                Row row = new Row(ByteBuffer.wrap(sorter.data()), columns);
+                Assert.assertEquals("name" + expected, row.get(1).getObject());
+                expected++;
+            }
+            Assert.assertEquals(1000, expected);
+        }
+    }
+}
@@ -10,12 +10,16 @@ import com.learn.value.ValueDouble;
 import com.learn.value.ValueInt;
 import com.learn.value.ValueLong;
 import com.learn.value.ValueString;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author peiyou
@@ -101,4 +105,114 @@ public class TableTest {
 
         System.out.println(row);
     }
+
+    private Row row(List<Column> columns, long id) {
+        byte[] rowBytes = Bytes.concat(new ValueLong(id, false).getInputBytes(), new ValueString("李四" + id).getInputBytes(),
+                new ValueInt(20, false).getInputBytes(), new ValueDouble(80, false).getInputBytes(),
+                new ValueLong(id, false).getInputBytes(), new ValueLong(101, false).getInputBytes());
+        return new Row(ByteBuffer.wrap(rowBytes), columns);
+    }
+
+    /**
+     * 重启之前删除的行不在清理队列中，冻结时删除它们的索引、释放空间，新插入的行复用这些槽
+     */
+    @Test
+    public void testFreezeAfterRestart() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "freeze_table_test");
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File file : old) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        Database database = Database.newDatabase(dir.getPath(), "freeze");
+        // 删除的版本只留给冻结处理
+        database.getTransactionManager().getVacuum().stop();
+        Table table = createTable(database, "freeze");
+        List<Column> columns = new ArrayList<>();
+        columns.add(new Column("id", 0, Value.LONG, false, true));
+        columns.add(new Column("name", 1, Value.STRING, true, false));
+        columns.add(new Column("age", 2, Value.INT, true, false));
+        columns.add(new Column("score", 3, Value.DOUBLE, true, false));
+        columns.add(new Column("createDate", 4, Value.LONG, true, false));
+        columns.add(new Column("createBy", 5, Value.LONG, false, false));
+        TransactionManager transactionManager = database.getTransactionManager();
+        long xid = transactionManager.begin(Transaction.REPEATABLE);
+        Set<Long> deleted = new HashSet<>();
+        for (long id = 1; id <= 20; id++) {
+            long uid = table.insert(xid, row(columns, id));
+            if (id % 2 == 0 || id == 1) {
+                deleted.add(uid);
+            }
+        }
+        transactionManager.commit(xid);
+        xid = transactionManager.begin(Transaction.REPEATABLE);
+        for (long id = 2; id <= 20; id += 2) {
+            Assert.assertTrue(table.delete(xid, new ValueLong(id, false)));
+        }
+        transactionManager.commit(xid);
+        database.close();
+
+        database = Database.initDatabase("freeze", new File(dir, "freeze" + TransactionManager.XID_SUFFIX));
+        database.getTransactionManager().getVacuum().stop();
+        transactionManager = database.getTransactionManager();
+        table = database.getTable("freeze");
+        // 重启之后的删除在清理队列中，冻结之后也不能被释放两次
+        xid = transactionManager.begin(Transaction.REPEATABLE);
+        Assert.assertTrue(table.delete(xid, new ValueLong(1, false)));
+        transactionManager.commit(xid);
+        database.freeze();
+        for (long id = 1; id <= 20; id++) {
+            Long uid = table.getIndex().search(new ValueLong(id, false));
+            Assert.assertEquals(id % 2 == 1 && id != 1, uid != null);
+        }
+        xid = transactionManager.begin(Transaction.REPEATABLE);
+        for (long id = 21; id <= 31; id++) {
+            Assert.assertTrue(deleted.remove(table.insert(xid, row(columns, id))));
+        }
+        transactionManager.commit(xid);
+        database.close();
+    }
+
+    /**
+     * 库上总是挂着日志，内存映射的表也能使用，重新打开后数据还在
+     */
+    @Test
+    public void testMappedTable() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "mapped_table_test");
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File file : old) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        List<Column> columns = new ArrayList<>();
+        columns.add(new Column("id", 0, Value.LONG, false, true));
+        columns.add(new Column("name", 1, Value.STRING, true, false));
+        columns.add(new Column("age", 2, Value.INT, true, false));
+        columns.add(new Column("score", 3, Value.DOUBLE, true, false));
+        columns.add(new Column("createDate", 4, Value.LONG, true, false));
+        columns.add(new Column("createBy", 5, Value.LONG, false, false));
+        Database database = Database.newDatabase(dir.getPath(), "mapped");
+        Table table = database.createTable("mapped", columns, Table.STORAGE_MMAP);
+        TransactionManager transactionManager = database.getTransactionManager();
+        long xid = transactionManager.begin(Transaction.REPEATABLE);
+        for (long id = 1; id <= 20; id++) {
+            table.insert(xid, row(columns, id));
+        }
+        transactionManager.commit(xid);
+        database.close();
+
+        database = Database.initDatabase("mapped", new File(dir, "mapped" + TransactionManager.XID_SUFFIX));
+        transactionManager = database.getTransactionManager();
+        table = database.getTable("mapped", Table.STORAGE_MMAP);
+        xid = transactionManager.begin(Transaction.REPEATABLE);
+        for (long id = 1; id <= 20; id++) {
+            Assert.assertNotNull(table.select(xid, new ValueLong(id, false)));
+        }
+        transactionManager.commit(xid);
+        database.close();
+    }
 }
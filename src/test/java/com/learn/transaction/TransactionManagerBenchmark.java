@@ -0,0 +1,90 @@
+package com.learn.transaction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 事务管理器的热点操作
+ * isCommitted 是判断可见性时对事务状态的查询，只读内存中的状态
+ * beginCommit 是多个线程并发开始并提交事务，xid 分配和文件头的块预留都在这条路径上
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.learn.transaction.TransactionManagerBenchmark
+ * 或者直接运行 main 方法
+ * @author peiyou
+ * @version 1.0
+ * @className TransactionManagerBenchmark
+ * @date 2026/10/18 18:50
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class TransactionManagerBenchmark {
+
+    // .xid 文件中已有的事务数
+    private static final int COUNT = 70000;
+
+    private File xidFile;
+
+    private RandomAccessFile raf;
+
+    private TransactionManager tm;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        xidFile = File.createTempFile("tm_benchmark", TransactionManager.XID_SUFFIX);
+        // 直接写出 .xid 文件，按 提交、回滚、活跃 轮流
+        try (RandomAccessFile out = new RandomAccessFile(xidFile, "rw")) {
+            byte[] status = new byte[COUNT];
+            for (int i = 0; i < COUNT; i++) {
+                status[i] = (byte) ((i + 1) % 3);
+            }
+            out.setLength(0);
+            out.writeLong(COUNT);
+            out.write(status);
+        }
+        raf = new RandomAccessFile(xidFile, "rw");
+        tm = new TransactionManager(raf, raf.getChannel());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        tm.close();
+        xidFile.delete();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean isCommitted() {
+        return tm.isCommitted(ThreadLocalRandom.current().nextInt(COUNT) + 1);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void beginCommit() throws Exception {
+        tm.commit(tm.begin(Transaction.REPEATABLE));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(TransactionManagerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
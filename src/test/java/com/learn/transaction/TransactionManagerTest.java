@@ -0,0 +1,327 @@
+package com.learn.transaction;
+
+import com.learn.data.DataManager;
+import com.learn.page.PageCache;
+import com.learn.version.VersionManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className TransactionManagerTest
+ * @date 2026/10/18 18:50
+ **/
+public class TransactionManagerTest {
+
+    /**
+     * 事务状态从内存中读取，重新打开后从 .xid 文件载入，跨过内存中的块边界也不丢失，查询的耗时见 TransactionManagerBenchmark
+     */
+    @Test
+    public void testStatusReload() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "tm_status.xid");
+        xidFile.delete();
+        int count = 70000;
+        // 直接写出 .xid 文件，按 提交、回滚、活跃 轮流
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile, "rw")) {
+            byte[] status = new byte[count];
+            for (int i = 0; i < count; i++) {
+                status[i] = (byte) ((i + 1) % 3);
+            }
+            raf.writeLong(count);
+            raf.write(status);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile, "rw")) {
+            TransactionManager tm = new TransactionManager(raf, raf.getChannel());
+            for (long xid = 1; xid <= count; xid++) {
+                Assert.assertEquals(xid % 3 == 1, tm.isCommitted(xid));
+                Assert.assertEquals(xid % 3 == 2, tm.isAborted(xid));
+                Assert.assertEquals(xid % 3 == 0, tm.isActive(xid));
+            }
+            Assert.assertTrue(tm.isCommitted(Transaction.SUPER_XID));
+            Assert.assertTrue(tm.isActive(count + 1));
+            long xid = tm.begin(Transaction.READ_COMMIT);
+            tm.commit(xid);
+            Assert.assertTrue(tm.isCommitted(xid));
+            tm.close();
+        }
+        xidFile.delete();
+    }
+
+    /**
+     * 快照只包含比自己小的进行中的事务
+     */
+    @Test
+    public void testSnapshot() {
+        // 数组末尾是没有用到的位置，只取前3个
+        Snapshot snapshot = Snapshot.of(10, new long[]{3, 5, 7, 0}, 3);
+        Assert.assertEquals(3, snapshot.getXmin());
+        Assert.assertEquals(10, snapshot.getXmax());
+        Assert.assertEquals(3, snapshot.size());
+        Assert.assertTrue(snapshot.contains(3));
+        Assert.assertTrue(snapshot.contains(7));
+        Assert.assertFalse(snapshot.contains(4));
+        Assert.assertFalse(snapshot.contains(10));
+        Assert.assertFalse(snapshot.contains(12));
+
+        Snapshot empty = Snapshot.of(10, new long[4], 0);
+        Assert.assertEquals(10, empty.getXmin());
+        Assert.assertFalse(empty.contains(3));
+    }
+
+    /**
+     * 所有表共用一个事务和快照，结束的事务离开登记表，horizon 随之前进
+     */
+    @Test
+    public void testRegistry() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "tm_registry.xid");
+        xidFile.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile, "rw")) {
+            raf.writeLong(0);
+            TransactionManager tm = new TransactionManager(raf, raf.getChannel());
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            long xid2 = tm.begin(Transaction.REPEATABLE);
+            long xid3 = tm.begin(Transaction.REPEATABLE);
+            Transaction t3 = tm.getTransaction(xid3);
+            Assert.assertTrue(t3.isInSnapshot(xid1));
+            Assert.assertTrue(t3.isInSnapshot(xid2));
+            // 自己和之后开始的事务不在快照中
+            Assert.assertEquals(2, t3.getSnapshot().size());
+            Assert.assertFalse(t3.isInSnapshot(xid3));
+            Assert.assertEquals(xid1, tm.horizon());
+
+            tm.commit(xid1);
+            Assert.assertNull(tm.getTransaction(xid1));
+            // xid3 的快照中还有 xid1
+            Assert.assertEquals(xid1, tm.horizon());
+            tm.abort(xid2);
+            tm.commit(xid3);
+            Assert.assertEquals(xid3 + 1, tm.horizon());
+            long xid4 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertEquals(0, tm.getTransaction(xid4).getSnapshot().size());
+            tm.close();
+        }
+        xidFile.delete();
+    }
+
+    /**
+     * 并发开始的事务xid不重复，文件头按块预留，重新打开后从预留的最大值之后继续分配，吞吐见 TransactionManagerBenchmark
+     */
+    @Test
+    public void testConcurrentBegin() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "tm_concurrent.xid");
+        xidFile.delete();
+        int threads = 8;
+        int perThread = 500;
+        Set<Long> xids = ConcurrentHashMap.newKeySet();
+        long reserved;
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile, "rw")) {
+            raf.writeLong(0);
+            TransactionManager tm = new TransactionManager(raf, raf.getChannel());
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                new Thread(() -> {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            long xid = tm.begin(Transaction.REPEATABLE);
+                            xids.add(xid);
+                            if (xid % 2 == 0) {
+                                tm.commit(xid);
+                            } else {
+                                tm.abort(xid);
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            Assert.assertEquals(threads * perThread, xids.size());
+            long last = threads * perThread;
+            Assert.assertEquals(last, tm.getXidCounter());
+            for (long xid = 1; xid <= last; xid++) {
+                Assert.assertEquals(xid % 2 == 0, tm.isCommitted(xid));
+                Assert.assertEquals(xid % 2 == 1, tm.isAborted(xid));
+            }
+            Assert.assertEquals(last + 1, tm.horizon());
+            raf.seek(0);
+            reserved = raf.readLong();
+            Assert.assertEquals(0, reserved % TransactionManager.XID_BLOCK);
+            Assert.assertTrue(reserved >= last);
+            tm.close();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile, "rw")) {
+            TransactionManager tm = new TransactionManager(raf, raf.getChannel());
+            Assert.assertTrue(tm.isCommitted(2));
+            long xid = tm.begin(Transaction.REPEATABLE);
+            Assert.assertEquals(reserved + 1, xid);
+            // 上次预留了没有用到的xid不在快照中
+            Assert.assertEquals(0, tm.getTransaction(xid).getSnapshot().size());
+            tm.commit(xid);
+            tm.close();
+        }
+        xidFile.delete();
+    }
+
+    /**
+     * 快照从登记的事务建立，并发开始时已经分配xid还没有登记的事务也在快照中，
+     * 快照中没有的比自己小的事务都已经结束
+     */
+    @Test
+    public void testConcurrentSnapshot() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "tm_concurrent_snapshot.xid");
+        xidFile.delete();
+        int threads = 8;
+        int perThread = 300;
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile, "rw")) {
+            raf.writeLong(0);
+            TransactionManager tm = new TransactionManager(raf, raf.getChannel());
+            // 一直不结束的事务，之后所有快照都包含它
+            long oldest = tm.begin(Transaction.REPEATABLE);
+            Set<Long> missed = ConcurrentHashMap.newKeySet();
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                new Thread(() -> {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            long xid = tm.begin(Transaction.REPEATABLE);
+                            Transaction t = tm.getTransaction(xid);
+                            for (long x = oldest; x < xid; x++) {
+                                if (!t.isInSnapshot(x) && tm.isActive(x)) {
+                                    missed.add(x);
+                                }
+                            }
+                            tm.commit(xid);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            Assert.assertTrue(missed.isEmpty());
+            long xid = tm.begin(Transaction.REPEATABLE);
+            Snapshot snapshot = tm.getTransaction(xid).getSnapshot();
+            Assert.assertEquals(1, snapshot.size());
+            Assert.assertEquals(oldest, snapshot.getXmin());
+            tm.commit(xid);
+            tm.commit(oldest);
+            tm.close();
+        }
+        xidFile.delete();
+    }
+
+    /**
+     * 只读事务不占用xid、不写 .xid 文件，快照和同时开始的读写事务一样，修改数据被拒绝
+     */
+    @Test
+    public void testReadOnly() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "tm_read_only.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "tm_read_only.idb");
+        xidFile.delete();
+        dataFile.delete();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            xidRaf.writeLong(0);
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+
+            byte[] data = "read only".getBytes();
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            long uid = versionManager.insert(xid1, data);
+            long reader1 = tm.beginReadOnly(Transaction.REPEATABLE);
+            tm.commit(xid1);
+
+            long counter = tm.getXidCounter();
+            long length = xidFile.length();
+            long reader2 = tm.beginReadOnly(Transaction.REPEATABLE);
+            Assert.assertTrue(reader2 < 0);
+            Assert.assertEquals(counter, tm.getXidCounter());
+            Assert.assertEquals(length, xidFile.length());
+            // reader1 开始时 xid1 还没有提交
+            Assert.assertNull(versionManager.read(reader1, uid));
+            Assert.assertArrayEquals(data, versionManager.read(reader2, uid));
+            Assert.assertEquals(xid1, tm.horizon());
+
+            long xid2 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertTrue(versionManager.delete(xid2, uid));
+            tm.commit(xid2);
+            Assert.assertArrayEquals(data, versionManager.read(reader2, uid));
+            Assert.assertThrows(RuntimeException.class, () -> versionManager.insert(reader2, data));
+            Assert.assertThrows(RuntimeException.class, () -> versionManager.delete(reader2, uid));
+
+            tm.commit(reader1);
+            tm.abort(reader2);
+            Assert.assertNull(tm.getTransaction(reader2));
+            Assert.assertEquals(xid2 + 1, tm.horizon());
+            long reader3 = tm.beginReadOnly(Transaction.READ_COMMIT);
+            Assert.assertNull(versionManager.read(reader3, uid));
+            tm.commit(reader3);
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * 截断后只保存 frozenXid 之后的状态，之前的按已提交处理，重新打开后继续使用截断后的文件
+     */
+    @Test
+    public void testTruncate() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "tm_truncate.xid");
+        xidFile.delete();
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile, "rw")) {
+            raf.writeLong(0);
+        }
+        RandomAccessFile raf = new RandomAccessFile(xidFile, "rw");
+        TransactionManager tm = new TransactionManager(raf, raf.getChannel());
+        for (int i = 1; i <= 1500; i++) {
+            long xid = tm.begin(Transaction.READ_COMMIT);
+            if (i % 2 == 0) {
+                tm.commit(xid);
+            } else {
+                tm.abort(xid);
+            }
+        }
+        long running = tm.begin(Transaction.READ_COMMIT);
+        long aborted = tm.begin(Transaction.READ_COMMIT);
+        tm.abort(aborted);
+        // 不能越过还在进行中的事务
+        Assert.assertEquals(running, tm.truncate(xidFile, aborted + 1));
+        Assert.assertEquals(running, tm.getFrozenXid());
+        Assert.assertTrue(tm.isCommitted(1));
+        Assert.assertFalse(tm.isAborted(1));
+        Assert.assertTrue(tm.isActive(running));
+        Assert.assertTrue(tm.isAborted(aborted));
+        Assert.assertEquals(24 + 2 * TransactionManager.XID_BLOCK - running + 1, xidFile.length());
+        tm.commit(running);
+        tm.close();
+
+        raf = new RandomAccessFile(xidFile, "rw");
+        tm = new TransactionManager(raf, raf.getChannel());
+        Assert.assertEquals(running, tm.getFrozenXid());
+        Assert.assertTrue(tm.isCommitted(running - 1));
+        Assert.assertTrue(tm.isCommitted(running));
+        Assert.assertTrue(tm.isAborted(aborted));
+        long xid = tm.begin(Transaction.READ_COMMIT);
+        Assert.assertEquals(2 * TransactionManager.XID_BLOCK + 1, xid);
+        tm.commit(xid);
+        Assert.assertTrue(tm.isCommitted(xid));
+        tm.close();
+        xidFile.delete();
+    }
+}
@@ -0,0 +1,79 @@
+package com.learn.version;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 热点行上的加锁和释放，比较 LockTable 和 StripedLockTable
+ * 每次调用是一个只锁一行的事务，rows 越少争用越激烈
+ * 运行：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.learn.version.LockTableBenchmark
+ * 或者直接运行 main 方法
+ * @author peiyou
+ * @version 1.0
+ * @className LockTableBenchmark
+ * @date 2026/10/18 20:50
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class LockTableBenchmark {
+
+    // 热点行的个数
+    @Param({"1", "16", "1024"})
+    public int rows;
+
+    private final AtomicLong xids = new AtomicLong();
+
+    private LockTable lockTable;
+
+    private StripedLockTable stripedLockTable;
+
+    @Setup
+    public void setup() {
+        lockTable = new LockTable();
+        stripedLockTable = new StripedLockTable();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void lockTable() throws Exception {
+        long xid = xids.incrementAndGet();
+        CountDownLatch latch = lockTable.add(xid, ThreadLocalRandom.current().nextInt(rows) + 1);
+        if (latch != null) {
+            latch.await();
+        }
+        lockTable.remove(xid);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void stripedLockTable() throws Exception {
+        long xid = xids.incrementAndGet();
+        stripedLockTable.acquire(xid, ThreadLocalRandom.current().nextInt(rows) + 1);
+        stripedLockTable.remove(xid);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(LockTableBenchmark.class.getSimpleName()).build()).run();
+    }
+}
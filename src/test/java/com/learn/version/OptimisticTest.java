@@ -0,0 +1,100 @@
+package com.learn.version;
+
+import com.learn.data.DataManager;
+import com.learn.page.PageCache;
+import com.learn.transaction.Transaction;
+import com.learn.transaction.TransactionManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className OptimisticTest
+ * @date 2026/10/18 23:10
+ **/
+public class OptimisticTest {
+
+    /**
+     * 修改不同行的乐观事务都能提交，提交之前别的事务看不到修改；修改同一行时后提交的校验失败并回滚
+     * 只读过数据的乐观事务不校验
+     */
+    @Test
+    public void testValidate() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "optimistic_test.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "optimistic_test.idb");
+        xidFile.delete();
+        dataFile.delete();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            xidRaf.writeLong(0);
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+            Map<String, Long> index = new HashMap<>();
+            versionManager.setIndexCleaner(new IndexCleaner() {
+                @Override
+                public void remove(byte[] data, long uid) {
+                }
+
+                @Override
+                public void relink(byte[] data, long uid) {
+                    index.put(new String(data), uid);
+                }
+            });
+            tm.addVersionManager(versionManager);
+
+            long xid0 = tm.begin(Transaction.REPEATABLE);
+            long a = versionManager.insert(xid0, "a0".getBytes());
+            long b = versionManager.insert(xid0, "b0".getBytes());
+            tm.commit(xid0);
+
+            long xid1 = tm.begin(Transaction.OPTIMISTIC);
+            long xid2 = tm.begin(Transaction.OPTIMISTIC);
+            long reader = tm.begin(Transaction.OPTIMISTIC);
+            Assert.assertEquals(a, versionManager.update(xid1, a, data -> "a1".getBytes()));
+            Assert.assertEquals(b, versionManager.update(xid2, b, data -> "b2".getBytes()));
+            Assert.assertArrayEquals("a1".getBytes(), versionManager.read(xid1, a));
+            Assert.assertArrayEquals("a0".getBytes(), versionManager.read(reader, a));
+            tm.commit(xid1);
+            tm.commit(xid2);
+            Assert.assertEquals(0, versionManager.getLockStats().getWaits());
+            // reader 读过的 a 已经被修改，只读不用校验
+            Assert.assertArrayEquals("a0".getBytes(), versionManager.read(reader, a));
+            tm.commit(reader);
+
+            long xid3 = tm.begin(Transaction.OPTIMISTIC);
+            long xid4 = tm.begin(Transaction.OPTIMISTIC);
+            versionManager.update(xid3, a, data -> "a3".getBytes());
+            versionManager.update(xid4, a, data -> "a4".getBytes());
+            Assert.assertTrue(versionManager.delete(xid4, b));
+            Assert.assertNull(versionManager.read(xid4, b));
+            tm.commit(xid3);
+            Assert.assertThrows(RuntimeException.class, () -> tm.commit(xid4));
+            Assert.assertTrue(tm.isAborted(xid4));
+            Assert.assertEquals(1, versionManager.getLockStats().getVersionSkipAborts());
+
+            // 大小变了时提交时换位置，并修改索引
+            long xid5 = tm.begin(Transaction.OPTIMISTIC);
+            Assert.assertEquals(b, versionManager.update(xid5, b, data -> "b-longer".getBytes()));
+            tm.commit(xid5);
+            long moved = index.get("b-longer");
+            Assert.assertNotEquals(b, moved);
+
+            long xid6 = tm.begin(Transaction.READ_COMMIT);
+            Assert.assertArrayEquals("a3".getBytes(), versionManager.read(xid6, a));
+            Assert.assertArrayEquals("b-longer".getBytes(), versionManager.read(xid6, moved));
+            tm.commit(xid6);
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+}
@@ -0,0 +1,110 @@
+package com.learn.version;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className StripedLockTableTest
+ * @date 2026/10/18 20:50
+ **/
+public class StripedLockTableTest {
+
+    /**
+     * 持有者释放后锁按等待的先后交出，等待者知道是谁交给它的
+     */
+    @Test
+    public void testHandOver() throws Exception {
+        StripedLockTable lockTable = new StripedLockTable();
+        Assert.assertNull(lockTable.acquire(1, 100));
+        Assert.assertNull(lockTable.acquire(1, 100));
+        CompletableFuture<Long> second = CompletableFuture.supplyAsync(() -> acquire(lockTable, 2, 100));
+        waitUntilQueued();
+        CompletableFuture<Long> third = CompletableFuture.supplyAsync(() -> acquire(lockTable, 3, 100));
+        waitUntilQueued();
+        Assert.assertFalse(second.isDone());
+        lockTable.remove(1);
+        Assert.assertEquals(Long.valueOf(1), second.get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(third.isDone());
+        lockTable.remove(2);
+        Assert.assertEquals(Long.valueOf(2), third.get(5, TimeUnit.SECONDS));
+        lockTable.remove(3);
+        Assert.assertNull(lockTable.acquire(4, 100));
+
+        LockStats lockStats = lockTable.getLockStats();
+        Assert.assertEquals(2, lockStats.getWaits());
+        Assert.assertEquals(2, Arrays.stream(lockStats.getWaitHistogram()).sum());
+        Assert.assertArrayEquals(new long[]{100, 2}, lockStats.topContended(1).get(0));
+    }
+
+    /**
+     * 形成环的事务被拒绝，没有检测到的等待由超时兜底
+     */
+    @Test
+    public void testDeadLockAndTimeout() throws Exception {
+        StripedLockTable lockTable = new StripedLockTable();
+        lockTable.acquire(1, 100);
+        lockTable.acquire(2, 200);
+        CompletableFuture<Long> first = CompletableFuture.supplyAsync(() -> acquire(lockTable, 1, 200));
+        waitUntilQueued();
+        RuntimeException e = Assert.assertThrows(RuntimeException.class, () -> lockTable.acquire(2, 100));
+        Assert.assertEquals("存在死锁", e.getMessage());
+        lockTable.remove(2);
+        Assert.assertEquals(Long.valueOf(2), first.get(5, TimeUnit.SECONDS));
+
+        lockTable.setTimeoutMillis(50);
+        Assert.assertThrows(RuntimeException.class, () -> lockTable.acquire(3, 200));
+        lockTable.remove(1);
+        // 超时的等待已经离开队列，锁直接空出来
+        Assert.assertNull(lockTable.acquire(4, 200));
+
+        LockStats lockStats = lockTable.getLockStats();
+        Assert.assertEquals(1, lockStats.getDeadlocks());
+        Assert.assertEquals(1, lockStats.getTimeouts());
+        Assert.assertEquals(2, lockStats.getWaits());
+    }
+
+    /**
+     * 统计注册为MBean后可以通过JMX读取，注销后消失
+     */
+    @Test
+    public void testStatsMBean() throws Exception {
+        LockStats lockStats = new LockStats();
+        lockStats.recordWait(7, 3_000_000);
+        lockStats.recordVersionSkip();
+        lockStats.register("lock_stats_test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.learn:type=LockStats,table=" + ObjectName.quote("lock_stats_test"));
+        Assert.assertEquals(1L, server.getAttribute(name, "Waits"));
+        Assert.assertEquals(1L, server.getAttribute(name, "VersionSkipAborts"));
+        Assert.assertArrayEquals(new String[]{"7=1"}, (String[]) server.getAttribute(name, "TopContended"));
+        // 3毫秒落在 [2048, 4096) 微秒的桶
+        Assert.assertEquals(1L, ((long[]) server.getAttribute(name, "WaitHistogram"))[12]);
+
+        LockStatsReporter reporter = new LockStatsReporter();
+        reporter.register(lockStats);
+        Assert.assertTrue(reporter.dump().contains("table=lock_stats_test, waits=1"));
+        lockStats.unregister();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    private static Long acquire(StripedLockTable lockTable, long xid, long uid) {
+        try {
+            return lockTable.acquire(xid, uid);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void waitUntilQueued() throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(100);
+    }
+}
@@ -0,0 +1,258 @@
+package com.learn.version;
+
+import com.learn.data.DataManager;
+import com.learn.page.Page;
+import com.learn.page.PageCache;
+import com.learn.transaction.Transaction;
+import com.learn.transaction.TransactionManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className VacuumTest
+ * @date 2026/10/18 18:10
+ **/
+public class VacuumTest {
+
+    /**
+     * 还有事务能看到时不清理，之后先删除索引，再等一轮释放空间，释放的槽被新数据复用
+     */
+    @Test
+    public void testVacuum() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "vacuum_test.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "vacuum_test.idb");
+        xidFile.delete();
+        dataFile.delete();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            xidRaf.writeLong(0);
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            DataManager dataManager = new DataManager(pageCache);
+            VersionManager versionManager = new VersionManager(dataManager, tm);
+            List<Long> removed = new ArrayList<>();
+            versionManager.setIndexCleaner((data, uid) -> removed.add(uid));
+            tm.addVersionManager(versionManager);
+            Vacuum vacuum = tm.getVacuum();
+
+            byte[] data = "vacuum".getBytes();
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            long uid = versionManager.insert(xid1, data);
+            tm.commit(xid1);
+
+            long reader = tm.begin(Transaction.REPEATABLE);
+            long xid2 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertTrue(versionManager.delete(xid2, uid));
+            tm.commit(xid2);
+
+            // reader 开始时删除还没有提交，仍然能看到
+            Assert.assertEquals(reader, vacuum.horizon());
+            Assert.assertEquals(0, vacuum.vacuum());
+            Assert.assertArrayEquals(data, versionManager.read(reader, uid));
+            tm.commit(reader);
+
+            Assert.assertEquals(1, vacuum.vacuum());
+            Assert.assertEquals(List.of(uid), removed);
+            Assert.assertEquals(0, vacuum.getFreedCount());
+            Assert.assertEquals(1, vacuum.vacuum());
+            Assert.assertEquals(1, vacuum.getFreedCount());
+
+            long xid3 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertEquals(uid, versionManager.insert(xid3, "reused".getBytes()));
+            tm.commit(xid3);
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * 只读事务开始之后删除的索引，它可能已经从索引拿到了uid，结束之前不释放这个版本的槽
+     */
+    @Test
+    public void testReadOnlyHoldsFree() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "vacuum_read_only.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "vacuum_read_only.idb");
+        xidFile.delete();
+        dataFile.delete();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            xidRaf.writeLong(0);
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+            versionManager.setIndexCleaner((data, uid) -> {});
+            tm.addVersionManager(versionManager);
+            Vacuum vacuum = tm.getVacuum();
+
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            long uid = versionManager.insert(xid1, "vacuum".getBytes());
+            tm.commit(xid1);
+            long xid2 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertTrue(versionManager.delete(xid2, uid));
+            tm.commit(xid2);
+
+            // reader 在删除索引之前开始，快照的 xmin 和删除索引时记下的下一个xid相同
+            long reader = tm.beginReadOnly(Transaction.REPEATABLE);
+            Assert.assertEquals(1, vacuum.vacuum());
+            Assert.assertEquals(0, vacuum.vacuum());
+            Assert.assertEquals(0, vacuum.getFreedCount());
+            Assert.assertNull(versionManager.read(reader, uid));
+            tm.commit(reader);
+
+            Assert.assertEquals(1, vacuum.vacuum());
+            Assert.assertEquals(1, vacuum.getFreedCount());
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * 重启前删除、还没有清理的版本不在 deadVersions 中，分批遍历索引找出来清理；
+     * 重启后的删除走 deadVersions，不会被遍历再处理一次
+     */
+    @Test
+    public void testScanAfterRestart() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "vacuum_scan.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "vacuum_scan.idb");
+        xidFile.delete();
+        dataFile.delete();
+        List<Long> uids = new ArrayList<>();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            xidRaf.writeLong(0);
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            for (int i = 0; i < 5; i++) {
+                uids.add(versionManager.insert(xid1, ("row" + i).getBytes()));
+            }
+            tm.commit(xid1);
+            long xid2 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertTrue(versionManager.delete(xid2, uids.get(1)));
+            Assert.assertTrue(versionManager.delete(xid2, uids.get(3)));
+            tm.commit(xid2);
+            pageCache.close();
+            tm.close();
+        }
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), (int) (dataFile.length() / Page.SIZE));
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+            List<Long> removed = new ArrayList<>();
+            versionManager.setIndexCleaner(new IndexCleaner() {
+                @Override
+                public void remove(byte[] data, long uid) {
+                    removed.add(uid);
+                }
+
+                @Override
+                public Scan scan() {
+                    Iterator<Long> iterator = uids.iterator();
+                    return () -> iterator.hasNext() ? iterator.next() : 0;
+                }
+            });
+            tm.addVersionManager(versionManager);
+            Vacuum vacuum = tm.getVacuum();
+            vacuum.setBatchSize(2);
+
+            long xid3 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertTrue(versionManager.delete(xid3, uids.get(4)));
+            tm.commit(xid3);
+            // 每轮最多遍历2个索引项
+            Assert.assertEquals(List.of(), removed);
+            Assert.assertEquals(3, vacuum.vacuum());
+            Assert.assertEquals(List.of(uids.get(4), uids.get(1)), removed);
+            while (vacuum.vacuum() > 0) {
+            }
+            Assert.assertEquals(List.of(uids.get(4), uids.get(1), uids.get(3)), removed);
+            Assert.assertEquals(3, vacuum.getFreedCount());
+            long reader = tm.begin(Transaction.REPEATABLE);
+            Assert.assertArrayEquals("row0".getBytes(), versionManager.read(reader, uids.get(0)));
+            Assert.assertArrayEquals("row2".getBytes(), versionManager.read(reader, uids.get(2)));
+            tm.commit(reader);
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * 冻结后已提交的插入不再依赖事务状态，回滚的插入和已提交的删除置为无效，回滚的删除被清掉
+     * 之后截断事务状态，读取的结果不变
+     */
+    @Test
+    public void testFreeze() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "freeze_test.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "freeze_test.idb");
+        xidFile.delete();
+        dataFile.delete();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw")) {
+            xidRaf.writeLong(0);
+        }
+        try (RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            DataManager dataManager = new DataManager(pageCache);
+            VersionManager versionManager = new VersionManager(dataManager, tm);
+
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            long live = versionManager.insert(xid1, "live".getBytes());
+            long undeleted = versionManager.insert(xid1, "undeleted".getBytes());
+            long deleted = versionManager.insert(xid1, "deleted".getBytes());
+            tm.commit(xid1);
+            long xid2 = tm.begin(Transaction.REPEATABLE);
+            long rolledBack = versionManager.insert(xid2, "rolled back".getBytes());
+            Assert.assertTrue(versionManager.delete(xid2, undeleted));
+            tm.abort(xid2);
+            long xid3 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertTrue(versionManager.delete(xid3, deleted));
+            tm.commit(xid3);
+
+            long limit = tm.horizon();
+            for (long uid : List.of(live, undeleted, deleted, rolledBack)) {
+                Assert.assertTrue(versionManager.freeze(uid, limit));
+                Assert.assertFalse(versionManager.freeze(uid, limit));
+            }
+            // 置为无效的版本等待释放
+            Assert.assertEquals(2, versionManager.getUnlinkedVersions().size());
+            VersionWrap versionWrap = VersionWrap.load(dataManager, live);
+            Assert.assertEquals(Transaction.SUPER_XID, versionWrap.getXidMin());
+            versionWrap.release();
+            versionWrap = VersionWrap.load(dataManager, undeleted);
+            Assert.assertEquals(0, versionWrap.getXidMax());
+            versionWrap.release();
+
+            Assert.assertEquals(limit, tm.truncate(xidFile, limit));
+            long reader = tm.begin(Transaction.REPEATABLE);
+            Assert.assertArrayEquals("live".getBytes(), versionManager.read(reader, live));
+            Assert.assertArrayEquals("undeleted".getBytes(), versionManager.read(reader, undeleted));
+            Assert.assertNull(versionManager.read(reader, deleted));
+            Assert.assertNull(versionManager.read(reader, rolledBack));
+            tm.commit(reader);
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+}
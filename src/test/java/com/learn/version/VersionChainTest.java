@@ -0,0 +1,220 @@
+package com.learn.version;
+
+import com.learn.data.DataManager;
+import com.learn.log.LogManager;
+import com.learn.log.LogRecord;
+import com.learn.page.PageCache;
+import com.learn.transaction.Transaction;
+import com.learn.transaction.TransactionManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author peiyou
+ * @version 1.0
+ * @className VersionChainTest
+ * @date 2026/10/18 22:30
+ **/
+public class VersionChainTest {
+
+    /**
+     * 大小不变的更新原地写入，uid 不变，之前开始的事务沿版本链读到旧版本，回滚后恢复旧的内容
+     * 撤销版本在没有事务能看到之后被清理
+     */
+    @Test
+    public void testUpdateInPlace() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "chain_in_place.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "chain_in_place.idb");
+        xidFile.delete();
+        dataFile.delete();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            xidRaf.writeLong(0);
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+            versionManager.setIndexCleaner((data, uid) -> {});
+            tm.addVersionManager(versionManager);
+
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            long uid = versionManager.insert(xid1, "v1".getBytes());
+            tm.commit(xid1);
+
+            long reader = tm.begin(Transaction.REPEATABLE);
+            long xid2 = tm.begin(Transaction.READ_COMMIT);
+            Assert.assertEquals(uid, versionManager.update(xid2, uid, data -> "v2".getBytes()));
+            // 同一个事务再次修改不再保存撤销版本
+            Assert.assertEquals(uid, versionManager.update(xid2, uid, data -> "v3".getBytes()));
+            Assert.assertArrayEquals("v3".getBytes(), versionManager.read(xid2, uid));
+            Assert.assertArrayEquals("v1".getBytes(), versionManager.read(reader, uid));
+            tm.abort(xid2);
+            Assert.assertArrayEquals("v1".getBytes(), versionManager.read(reader, uid));
+
+            long xid3 = tm.begin(Transaction.READ_COMMIT);
+            Assert.assertEquals(uid, versionManager.update(xid3, uid, data -> "v4".getBytes()));
+            tm.commit(xid3);
+            Assert.assertArrayEquals("v1".getBytes(), versionManager.read(reader, uid));
+            // reader 的快照之后提交的修改，可重复读的事务不能再修改这一行
+            Assert.assertThrows(RuntimeException.class, () -> versionManager.update(reader, uid, data -> "v5".getBytes()));
+            tm.abort(reader);
+
+            long xid4 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertArrayEquals("v4".getBytes(), versionManager.read(xid4, uid));
+            tm.commit(xid4);
+
+            // 回滚的和提交的两个撤销版本
+            Vacuum vacuum = tm.getVacuum();
+            vacuum.vacuum();
+            vacuum.vacuum();
+            Assert.assertEquals(2, vacuum.getFreedCount());
+            long xid5 = tm.begin(Transaction.REPEATABLE);
+            Assert.assertArrayEquals("v4".getBytes(), versionManager.read(xid5, uid));
+            tm.commit(xid5);
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * 大小变了的更新写到新的位置，由调用方修改索引，回滚时索引改回旧版本
+     */
+    @Test
+    public void testUpdateMoved() throws Exception {
+        File xidFile = new File(System.getProperty("java.io.tmpdir"), "chain_moved.xid");
+        File dataFile = new File(System.getProperty("java.io.tmpdir"), "chain_moved.idb");
+        xidFile.delete();
+        dataFile.delete();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(xidFile, "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(dataFile, "rw")) {
+            xidRaf.writeLong(0);
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel());
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+            Map<String, Long> index = new HashMap<>();
+            versionManager.setIndexCleaner(new IndexCleaner() {
+                @Override
+                public void remove(byte[] data, long uid) {
+                    index.remove("key", uid);
+                }
+
+                @Override
+                public void relink(byte[] data, long uid) {
+                    index.put("key", uid);
+                }
+            });
+            tm.addVersionManager(versionManager);
+
+            long xid1 = tm.begin(Transaction.REPEATABLE);
+            long uid = versionManager.insert(xid1, "short".getBytes());
+            index.put("key", uid);
+            tm.commit(xid1);
+
+            long reader = tm.begin(Transaction.REPEATABLE);
+            long xid2 = tm.begin(Transaction.REPEATABLE);
+            long newUid = versionManager.update(xid2, uid, data -> "much longer".getBytes());
+            Assert.assertNotEquals(uid, newUid);
+            index.put("key", newUid);
+            Assert.assertArrayEquals("short".getBytes(), versionManager.read(reader, newUid));
+            tm.abort(xid2);
+            Assert.assertEquals(uid, (long) index.get("key"));
+            Assert.assertArrayEquals("short".getBytes(), versionManager.read(reader, uid));
+
+            long xid3 = tm.begin(Transaction.REPEATABLE);
+            newUid = versionManager.update(xid3, uid, data -> "much longer".getBytes());
+            index.put("key", newUid);
+            tm.commit(xid3);
+            Assert.assertArrayEquals("short".getBytes(), versionManager.read(reader, newUid));
+            tm.commit(reader);
+            long xid4 = tm.begin(Transaction.READ_COMMIT);
+            Assert.assertArrayEquals("much longer".getBytes(), versionManager.read(xid4, newUid));
+            Assert.assertNull(versionManager.read(xid4, uid));
+            tm.commit(xid4);
+
+            pageCache.close();
+            tm.close();
+        }
+        xidFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * 回滚日志在释放行锁之前写入：等待同一行的事务拿到锁之后写的日志都在回滚日志后面，
+     * 恢复时不会把回滚事务修改前的内容写回到之后的修改上
+     */
+    @Test
+    public void testAbortLoggedBeforeUnlock() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "chain_abort_log");
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        try (RandomAccessFile xidRaf = new RandomAccessFile(new File(dir, "test.xid"), "rw");
+             RandomAccessFile dataRaf = new RandomAccessFile(new File(dir, "t.idb"), "rw")) {
+            xidRaf.writeLong(0);
+            LogManager logManager = LogManager.open(new File(dir, "test" + LogManager.LOG_SUFFIX));
+            TransactionManager tm = new TransactionManager(xidRaf, xidRaf.getChannel(), logManager);
+            PageCache pageCache = new PageCache(dataRaf.getChannel(), 0);
+            pageCache.attachLog(logManager, "t.idb");
+            VersionManager versionManager = new VersionManager(new DataManager(pageCache), tm);
+            versionManager.setIndexCleaner((data, uid) -> {});
+            tm.addVersionManager(versionManager);
+
+            long xid1 = tm.begin(Transaction.READ_COMMIT);
+            long uid = versionManager.insert(xid1, "v1".getBytes());
+            tm.commit(xid1);
+
+            long xid2 = tm.begin(Transaction.READ_COMMIT);
+            versionManager.update(xid2, uid, data -> "v2".getBytes());
+            long xid3 = tm.begin(Transaction.READ_COMMIT);
+            CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return versionManager.update(xid3, uid, data -> "v3".getBytes());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            // 等 xid3 开始等待行锁
+            TimeUnit.MILLISECONDS.sleep(100);
+            Assert.assertFalse(waiting.isDone());
+            tm.abort(xid2);
+            Assert.assertEquals(uid, (long) waiting.get(5, TimeUnit.SECONDS));
+            tm.commit(xid3);
+
+            List<LogRecord> records = new ArrayList<>();
+            logManager.forEach(0, records::add);
+            int abort = -1;
+            int firstOfXid3 = -1;
+            for (int i = 0; i < records.size(); i++) {
+                LogRecord record = records.get(i);
+                if (record.getType() == LogRecord.ABORT && record.getXid() == xid2) {
+                    abort = i;
+                } else if (record.getXid() == xid3 && firstOfXid3 < 0) {
+                    firstOfXid3 = i;
+                }
+            }
+            Assert.assertTrue(abort >= 0);
+            Assert.assertTrue(abort < firstOfXid3);
+
+            long xid4 = tm.begin(Transaction.READ_COMMIT);
+            Assert.assertArrayEquals("v3".getBytes(), versionManager.read(xid4, uid));
+            tm.commit(xid4);
+            pageCache.close();
+            tm.close();
+        }
+    }
+}